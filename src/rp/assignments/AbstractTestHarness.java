@@ -2,8 +2,12 @@ package rp.assignments;
 
 import static org.junit.Assert.fail;
 
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import lejos.robotics.navigation.Pose;
 import rp.robotics.DifferentialDriveRobot;
@@ -11,6 +15,7 @@ import rp.robotics.MobileRobotWrapper;
 import rp.robotics.EventBasedTouchSensor;
 import rp.robotics.mapping.LineMap;
 import rp.robotics.simulation.MapBasedSimulation;
+import rp.robotics.simulation.SimulationRecorder;
 import rp.robotics.simulation.SimulatedRobots;
 import rp.robotics.simulation.SimulatorListener;
 import rp.robotics.testing.RobotTest;
@@ -24,6 +29,17 @@ public class AbstractTestHarness {
 
 	private final Class<?> m_solutionCls;
 
+	// run simulations in virtual time with cooperative controllers, e.g. for
+	// batch regression runs
+	private boolean m_virtualTime = Boolean
+			.getBoolean("rp.simulation.virtualTime");
+
+	// record every test run into this directory, e.g. so failures on a build
+	// server can be replayed
+	private Path m_recordingDirectory = System
+			.getProperty("rp.simulation.recordDir") == null ? null : Paths
+			.get(System.getProperty("rp.simulation.recordDir"));
+
 	public AbstractTestHarness(String _solutionFactoryClassName) {
 		Class<?> solutionCls = null;
 		try {
@@ -35,6 +51,43 @@ public class AbstractTestHarness {
 		m_solutionCls = solutionCls;
 	}
 
+	/**
+	 * Whether simulations created by this harness run in virtual time. This
+	 * defaults to the value of the system property
+	 * <code>rp.simulation.virtualTime</code>. Controllers then run
+	 * cooperatively in the simulation (see
+	 * {@link rp.robotics.simulation.SimulationCore#setCooperativeControllers(boolean)}),
+	 * so that they can't fall behind it, which means they must wait with
+	 * {@link rp.robotics.simulation.SimulationDelay} or
+	 * {@link rp.robotics.simulation.SimulationRate} rather than on the wall
+	 * clock.
+	 * 
+	 * @return
+	 */
+	public boolean isVirtualTime() {
+		return m_virtualTime;
+	}
+
+	public void setVirtualTime(boolean _virtualTime) {
+		m_virtualTime = _virtualTime;
+	}
+
+	/**
+	 * The directory each test run by this harness is recorded into with a
+	 * {@link SimulationRecorder}, one log per test, or null if tests aren't
+	 * recorded. This defaults to the value of the system property
+	 * <code>rp.simulation.recordDir</code>.
+	 * 
+	 * @return
+	 */
+	public Path getRecordingDirectory() {
+		return m_recordingDirectory;
+	}
+
+	public void setRecordingDirectory(Path _recordingDirectory) {
+		m_recordingDirectory = _recordingDirectory;
+	}
+
 	/**
 	 * Returns the StoppableRunnable controller from the class provided in the
 	 * constructor.
@@ -133,8 +186,64 @@ public class AbstractTestHarness {
 	 * @param test
 	 */
 	public void runTest(RobotTest<?> test) {
+		SimulationRecorder recorder = startRecording(test);
 		test.getSimulation().start();
-		test.run();
+		try {
+			test.run();
+		} finally {
+			// don't leave the simulation running once the test is done
+			test.getSimulation().shutdown();
+			if (recorder != null) {
+				try {
+					recorder.close();
+				} catch (IOException e) {
+					System.err.println("Failed to close recording: "
+							+ e.getMessage());
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Start recording the given test into a new log in
+	 * {@link #getRecordingDirectory()}, if set.
+	 * 
+	 * @param _test
+	 * @return The recorder, or null if the test isn't being recorded.
+	 */
+	private SimulationRecorder startRecording(RobotTest<?> _test) {
+		if (m_recordingDirectory == null) {
+			return null;
+		}
+		try {
+			Files.createDirectories(m_recordingDirectory);
+			Path log = Files.createTempFile(m_recordingDirectory,
+					m_solutionCls.getSimpleName() + "-", ".simlog");
+			System.out.println("Recording test to " + log);
+			return new SimulationRecorder(_test.getSimulation(), log);
+		} catch (IOException e) {
+			// the test can still run without being recorded
+			System.err.println("Failed to start recording: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Create a simulation for a test, in virtual time with cooperative
+	 * controllers if {@link #isVirtualTime()}.
+	 * 
+	 * @param _map
+	 * @param _visualise
+	 * @return
+	 */
+	protected MapBasedSimulation createSimulation(LineMap _map,
+			boolean _visualise) {
+		MapBasedSimulation sim = new MapBasedSimulation(_map, _visualise,
+				isVirtualTime());
+		sim.getSimulationCore().setCooperativeControllers(isVirtualTime());
+		return sim;
 	}
 
 	public EventBasedTouchSensor getTouchSensor(String _method, Object... _args) {
@@ -155,7 +264,7 @@ public class AbstractTestHarness {
 			long _timeoutMillis, SimulatorListener _listener, String _method,
 			Object... _args) {
 		try {
-			MapBasedSimulation sim = new MapBasedSimulation(_map);
+			MapBasedSimulation sim = createSimulation(_map, true);
 
 			Pose start = _sequence.getStart();
 
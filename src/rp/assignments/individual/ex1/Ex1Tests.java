@@ -7,7 +7,6 @@ import java.util.ArrayList;
 
 import lejos.geom.Point;
 import lejos.robotics.navigation.Pose;
-import lejos.util.Delay;
 
 import org.junit.Test;
 
@@ -17,6 +16,7 @@ import rp.robotics.EventBasedTouchSensor;
 import rp.robotics.LocalisedRangeScanner;
 import rp.robotics.MobileRobotWrapper;
 import rp.robotics.TouchSensorListener;
+import rp.robotics.simulation.SimulationDelay;
 import rp.robotics.testing.MockRangeFinder;
 import rp.robotics.testing.TargetZone;
 import rp.robotics.testing.TestMaps;
@@ -270,7 +270,7 @@ public class Ex1Tests extends AbstractTestHarness {
 
 		ranger.setRange(touchRange + description.getNoise() + 0.01f);
 		ranger.waitForReading(delayMs);
-		Delay.msDelay(delayMs);
+		SimulationDelay.msDelay(delayMs);
 
 		assertTrue("The readings should still be out of touch range",
 				!sensor.isPressed());
@@ -295,7 +295,7 @@ public class Ex1Tests extends AbstractTestHarness {
 
 		ranger.setRange(touchRange - description.getNoise());
 		ranger.waitForReading(delayMs);
-		Delay.msDelay(delayMs);
+		SimulationDelay.msDelay(delayMs);
 
 		assertTrue("Within touch range so sensor should be pressed",
 				sensor.isPressed());
@@ -116,7 +116,7 @@ public class Ex2Tests extends AbstractTestHarness {
 
 			float mapWidth = 16f;
 
-			MapBasedSimulation sim = new MapBasedSimulation(
+			MapBasedSimulation sim = createSimulation(
 					MapUtils.createRectangularMap(mapWidth, 1), false);
 
 			// we're only testing for half the duration, so reduce the distance
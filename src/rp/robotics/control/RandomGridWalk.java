@@ -23,9 +23,27 @@ public class RandomGridWalk implements StoppableRunnable {
 	private boolean m_running = true;
 	private final RangeFinder m_ranger;
 	private final MovableRobot m_robot;
+	private final Random m_rand;
 
 	public RandomGridWalk(MovableRobot _robot, GridMap _map, GridPose _start,
 			RangeFinder _ranger) {
+		this(_robot, _map, _start, _ranger, new Random());
+	}
+
+	/**
+	 * 
+	 * @param _robot
+	 * @param _map
+	 * @param _start
+	 * @param _ranger
+	 * @param _random
+	 *            Used to choose where to go, e.g. from
+	 *            {@link rp.robotics.simulation.MapBasedSimulation#createRandom()}
+	 *            for repeatable runs.
+	 */
+	public RandomGridWalk(MovableRobot _robot, GridMap _map, GridPose _start,
+			RangeFinder _ranger, Random _random) {
+		m_rand = _random;
 		m_map = _map;
 		m_pilot = new GridPilot(_robot.getPilot(), _map, _start);
 		m_ranger = _ranger;
@@ -59,11 +77,9 @@ public class RandomGridWalk implements StoppableRunnable {
 	@Override
 	public void run() {
 
-		Random rand = new Random();
-
 		while (m_running) {
 
-			int choice = rand.nextInt(3);
+			int choice = m_rand.nextInt(3);
 
 			// choice of direction. choice == 0 is straight ahead
 			if (choice == 1) {
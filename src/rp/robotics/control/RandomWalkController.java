@@ -1,11 +1,13 @@
 package rp.robotics.control;
 
+import java.util.Random;
+
 import lejos.robotics.RangeFinder;
 import lejos.robotics.navigation.DifferentialPilot;
 import rp.robotics.DifferentialDriveRobot;
 import rp.robotics.TouchSensorEvent;
 import rp.systems.ControllerWithTouchSensor;
-import rp.util.Rate;
+import rp.robotics.simulation.SimulationRate;
 
 /**
  * A controller that randomly moves the robot around with some care for its
@@ -22,8 +24,22 @@ public class RandomWalkController implements ControllerWithTouchSensor {
 	private final DifferentialPilot m_pilot;
 	private boolean m_bumped = false;
 	private RangeFinder m_ranger;
+	private final Random m_rand;
 
 	public RandomWalkController(DifferentialDriveRobot _robot) {
+		this(_robot, new Random());
+	}
+
+	/**
+	 * 
+	 * @param _robot
+	 * @param _random
+	 *            Used to choose the moves, e.g. from
+	 *            {@link rp.robotics.simulation.MapBasedSimulation#createRandom()}
+	 *            for repeatable runs.
+	 */
+	public RandomWalkController(DifferentialDriveRobot _robot, Random _random) {
+		m_rand = _random;
 		m_robot = _robot;
 		m_pilot = m_robot.getDifferentialPilot();
 	}
@@ -39,11 +55,11 @@ public class RandomWalkController implements ControllerWithTouchSensor {
 		m_pilot.setTravelSpeed(0.10f);
 		m_pilot.setRotateSpeed(20);
 
-		Rate r;
+		SimulationRate r;
 		while (m_running) {
-			float move = (float) (moveMin + (Math.random() * moveDiff));
+			float move = (float) (moveMin + (m_rand.nextDouble() * moveDiff));
 			m_pilot.travel(move, true);
-			r = new Rate(40);
+			r = new SimulationRate(40);
 			while (m_pilot.isMoving() && !m_bumped) {
 				if (m_ranger != null) {
 					if (m_ranger.getRange() < m_robot.getRobotLength()) {
@@ -59,7 +75,7 @@ public class RandomWalkController implements ControllerWithTouchSensor {
 
 				m_bumped = false;
 			}
-			m_pilot.rotate(turnMin + (Math.random() * turnDiff));
+			m_pilot.rotate(turnMin + (m_rand.nextDouble() * turnDiff));
 		}
 	}
 
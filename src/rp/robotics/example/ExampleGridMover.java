@@ -49,7 +49,7 @@ public class ExampleGridMover {
 			RangeFinder ranger = sim.getRanger(wrapper);
 
 			RandomGridWalk controller = new RandomGridWalk(wrapper.getRobot(),
-					map, gridStart, ranger);
+					map, gridStart, ranger, sim.createRandom());
 
 			new Thread(controller).start();
 		}
@@ -94,7 +94,7 @@ public class ExampleGridMover {
 			RangeFinder ranger = sim.getRanger(wrapper);
 
 			RandomGridWalk controller = new RandomGridWalk(wrapper.getRobot(),
-					gridMap, gridStart, ranger);
+					gridMap, gridStart, ranger, sim.createRandom());
 
 			new Thread(controller).start();
 		}
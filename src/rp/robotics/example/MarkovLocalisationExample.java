@@ -2,7 +2,6 @@ package rp.robotics.example;
 
 import javax.swing.JFrame;
 
-import lejos.util.Delay;
 import rp.robotics.LocalisedRangeScanner;
 import rp.robotics.MobileRobotWrapper;
 import rp.robotics.localisation.ActionModel;
@@ -16,6 +15,7 @@ import rp.robotics.navigation.GridPose;
 import rp.robotics.navigation.Heading;
 import rp.robotics.simulation.MapBasedSimulation;
 import rp.robotics.simulation.MovableRobot;
+import rp.robotics.simulation.SimulationDelay;
 import rp.robotics.simulation.SimulatedRobots;
 import rp.robotics.testing.TestMaps;
 import rp.robotics.visualisation.GridPositionDistributionVisualisation;
@@ -113,7 +113,7 @@ public class MarkovLocalisationExample implements StoppableRunnable {
 		}
 
 		// A delay so we can see what's going on
-		Delay.msDelay(delay);
+		SimulationDelay.msDelay(delay);
 
 		// Update the estimate of position using the sensor model
 		m_distribution = _sensorModel.updateAfterSensing(m_distribution,
@@ -125,7 +125,7 @@ public class MarkovLocalisationExample implements StoppableRunnable {
 		}
 
 		// A delay so we can see what's going on
-		Delay.msDelay(delay);
+		SimulationDelay.msDelay(delay);
 	}
 
 	/**
@@ -211,7 +211,8 @@ public class MarkovLocalisationExample implements StoppableRunnable {
 		MarkovLocalisationExample ml = new MarkovLocalisationExample(
 				wrapper.getRobot(), map, gridStart, ranger);
 		ml.visualise(sim);
-		ml.run();
+		// run in this thread, following the simulation's clock
+		sim.getSimulationCore().bind(ml).run();
 
 	}
 
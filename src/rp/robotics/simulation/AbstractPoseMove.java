@@ -62,4 +62,31 @@ public abstract class AbstractPoseMove implements Movable {
 	}
 
 	protected abstract void moveStep(Instant _now, Duration _stepInterval);
+
+	/**
+	 * The part of a move's state which is common to all pose moves, for
+	 * subclasses which are {@link Restorable}.
+	 */
+	protected static class PoseMoveState {
+
+		private final Pose m_pose;
+		private final boolean m_remove;
+
+		protected PoseMoveState(AbstractPoseMove _move) {
+			m_pose = _move.getPose();
+			m_remove = _move.m_remove;
+		}
+	}
+
+	/**
+	 * Put back the common part of a previously captured state.
+	 * 
+	 * @param _state
+	 */
+	protected void setPoseMoveState(PoseMoveState _state) {
+		// a copy, as the state may be restored again
+		setPose(_state.m_pose == null ? null : new Pose(_state.m_pose.getX(),
+				_state.m_pose.getY(), _state.m_pose.getHeading()));
+		m_remove = _state.m_remove;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,264 @@
+package rp.robotics.simulation;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs controllers cooperatively inside a simulation's
+ * {@link SimulationPhase#ACT} phase rather than alongside it. Each controller
+ * still has its own thread, but only one of them runs at a time, and only
+ * while the simulation thread waits for it. A controller runs until it blocks
+ * on the simulation, by sleeping on the simulation clock (see
+ * {@link SimulationRate} and {@link SimulationDelay}) or waiting for a move to
+ * finish, at which point it is parked and the next controller runs. Parked
+ * controllers are resumed, in the order they were started, in the first step
+ * in which they can carry on. This makes the interleaving of controllers and
+ * simulation the same on every run, and means a parked controller costs
+ * nothing but its thread's memory, so many more can be run than with free
+ * threads.
+ *
+ * Controllers must only block through the simulation. Anything else, e.g.
+ * {@link Thread#sleep(long)} or a busy loop, holds up the whole simulation.
+ * When the simulation is shut down, all controllers are released to run as
+ * normal threads.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class ControllerScheduler implements EventDrivenSteppable {
+
+	private static final ThreadLocal<Controller> s_current = new ThreadLocal<>();
+
+	private static final AtomicInteger s_controllerCount = new AtomicInteger();
+
+	private final SimulationCore m_sim;
+
+	// controllers started since the last step, in the order they were
+	// started
+	private final ConcurrentLinkedQueue<Controller> m_toStart = new ConcurrentLinkedQueue<>();
+
+	// only used in the simulation thread
+	private final List<Controller> m_controllers = new ArrayList<>();
+
+	// handed back to the simulation thread by a controller when it parks or
+	// finishes
+	private final Semaphore m_baton = new Semaphore(0);
+
+	private volatile boolean m_released = false;
+
+	private class Controller implements Runnable {
+
+		private final Runnable m_task;
+		private final Semaphore m_resume = new Semaphore(0);
+		private final Thread m_thread;
+
+		// what the controller is parked on, at most one of which is set
+		private Instant m_wakeAt = null;
+		private Future<?> m_waitingOn = null;
+
+		private volatile boolean m_finished = false;
+
+		public Controller(Runnable _task) {
+			m_task = _task;
+			m_thread = new Thread(this, "controller-"
+					+ s_controllerCount.incrementAndGet());
+		}
+
+		@Override
+		public void run() {
+			s_current.set(this);
+			m_resume.acquireUninterruptibly();
+			try {
+				m_task.run();
+			} catch (Throwable t) {
+				System.err.println("caught in controller "
+						+ m_thread.getName() + ": " + t.getMessage());
+				t.printStackTrace();
+			} finally {
+				m_finished = true;
+				s_current.remove();
+				m_baton.release();
+			}
+		}
+
+		ControllerScheduler getScheduler() {
+			return ControllerScheduler.this;
+		}
+
+		boolean isReady(Instant _now) {
+			if (m_wakeAt != null) {
+				return !_now.isBefore(m_wakeAt);
+			} else if (m_waitingOn != null) {
+				return m_waitingOn.isDone();
+			} else {
+				// not run yet
+				return true;
+			}
+		}
+
+		void park(Instant _wakeAt, Future<?> _waitingOn) {
+			m_wakeAt = _wakeAt;
+			m_waitingOn = _waitingOn;
+			m_baton.release();
+			m_resume.acquireUninterruptibly();
+			m_wakeAt = null;
+			m_waitingOn = null;
+		}
+	}
+
+	/**
+	 * Create a scheduler and add it to the given simulation. Use
+	 * {@link SimulationCore#startController(Runnable)} rather than creating
+	 * one directly.
+	 *
+	 * @param _sim
+	 */
+	ControllerScheduler(SimulationCore _sim) {
+		m_sim = _sim;
+		m_sim.addSteppable(this, SimulationPhase.ACT).whenComplete(
+				(v, e) -> release());
+	}
+
+	/**
+	 * Start a controller. It first runs in the next step of the simulation.
+	 *
+	 * @param _controller
+	 * @return The thread the controller runs in, which can be used to check
+	 *         whether it has finished.
+	 */
+	public Thread start(Runnable _controller) {
+		Controller controller = new Controller(m_sim.bind(_controller));
+		controller.m_thread.start();
+		m_toStart.add(controller);
+		if (m_released && m_toStart.remove(controller)) {
+			// released while being added, so won't be stepped
+			controller.m_resume.release();
+		}
+		return controller.m_thread;
+	}
+
+	/**
+	 * Returns true if the calling thread is a controller which is being run
+	 * cooperatively.
+	 *
+	 * @return
+	 */
+	public static boolean isCooperative() {
+		Controller controller = s_current.get();
+		return controller != null && !controller.getScheduler().m_released;
+	}
+
+	/**
+	 * Returns true if the calling thread is a controller being run
+	 * cooperatively by the given simulation, so is part of one of its steps.
+	 *
+	 * @param _sim
+	 * @return
+	 */
+	static boolean isCooperativeIn(SimulationCore _sim) {
+		Controller controller = s_current.get();
+		return isCooperative() && controller.getScheduler().m_sim == _sim;
+	}
+
+	/**
+	 * If the calling thread is a cooperative controller then park it until
+	 * the given time in its simulation, otherwise do nothing.
+	 *
+	 * @param _time
+	 * @return true if the controller was parked, false if the caller has to
+	 *         wait itself.
+	 */
+	public static boolean sleepUntil(Instant _time) {
+		if (!isCooperative()) {
+			return false;
+		}
+		s_current.get().park(_time, null);
+		return true;
+	}
+
+	/**
+	 * If the calling thread is a cooperative controller then park it until
+	 * the given future is done, otherwise do nothing. Either way the future
+	 * should then be waited on as normal, which returns straight away if it
+	 * parked.
+	 *
+	 * @param _future
+	 */
+	public static void await(Future<?> _future) {
+		if (isCooperative() && !_future.isDone()) {
+			s_current.get().park(null, _future);
+		}
+	}
+
+	@Override
+	public void step(Instant _now, Duration _stepInterval) {
+
+		Controller started = m_toStart.poll();
+		while (started != null) {
+			m_controllers.add(started);
+			started = m_toStart.poll();
+		}
+
+		Iterator<Controller> iter = m_controllers.iterator();
+		while (iter.hasNext() && !m_released) {
+			Controller controller = iter.next();
+			if (controller.isReady(_now)) {
+				// run the controller until it parks or finishes
+				controller.m_resume.release();
+				m_baton.acquireUninterruptibly();
+			}
+			if (controller.m_finished) {
+				iter.remove();
+			}
+		}
+	}
+
+	@Override
+	public boolean remove(Instant _now, Duration _stepInterval) {
+		// stays until the simulation is shut down
+		return false;
+	}
+
+	@Override
+	public Instant getNextEventTime(Instant _now) {
+		if (!m_toStart.isEmpty()) {
+			return _now;
+		}
+		// controllers waiting on futures are woken by whatever completes
+		// them, which is stepped anyway
+		Instant next = null;
+		for (Controller controller : m_controllers) {
+			if (controller.isReady(_now)) {
+				return _now;
+			} else if (controller.m_wakeAt != null
+					&& (next == null || controller.m_wakeAt.isBefore(next))) {
+				next = controller.m_wakeAt;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Let every controller run freely from now on. This is called when the
+	 * simulation clears up after shutting down, so never during a step.
+	 */
+	private void release() {
+		m_released = true;
+		Controller controller = m_toStart.poll();
+		while (controller != null) {
+			controller.m_resume.release();
+			controller = m_toStart.poll();
+		}
+		for (Controller parked : m_controllers) {
+			parked.m_resume.release();
+		}
+		m_controllers.clear();
+	}
+}
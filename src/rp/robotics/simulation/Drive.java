@@ -12,7 +12,8 @@ import lejos.robotics.navigation.Pose;
  * @author Nick Hawes
  *
  */
-public class Drive extends AbstractPoseMove {
+public class Drive extends AbstractPoseMove implements
+		Restorable<Drive.State> {
 
 	private float m_speed;
 	private float m_distanceRemaining;
@@ -43,8 +44,37 @@ public class Drive extends AbstractPoseMove {
 		this(null, _speed, _distance);
 	}
 
+	@Override
+	public float getLinearSpeed() {
+		return Math.abs(m_speed);
+	}
+
+	/**
+	 * The progress of a drive.
+	 */
+	public static final class State extends PoseMoveState {
+
+		private final float m_distanceRemaining;
+
+		private State(Drive _drive) {
+			super(_drive);
+			m_distanceRemaining = _drive.m_distanceRemaining;
+		}
+	}
+
+	@Override
+	public State getState() {
+		return new State(this);
+	}
+
+	@Override
+	public void setState(State _state) {
+		setPoseMoveState(_state);
+		m_distanceRemaining = _state.m_distanceRemaining;
+	}
+
 	protected void moveStep(Instant _now, Duration _stepInterval) {
-		float durationSecs = _stepInterval.toMillis() / 1000f;
+		float durationSecs = _stepInterval.toNanos() / 1e9f;
 		float moveAmount = m_speed * durationSecs;
 		m_pose.moveUpdate(moveAmount);
 		m_distanceRemaining -= moveAmount;
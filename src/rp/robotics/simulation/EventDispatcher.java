@@ -0,0 +1,190 @@
+package rp.robotics.simulation;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers events from the simulation to listeners away from the simulation
+ * thread, so a slow or badly behaved listener can't hold up the simulation.
+ * Events from each source, e.g. a robot, are delivered one at a time in the
+ * order they were sent, by a small fixed pool of worker threads shared by all
+ * sources. If an event is sent with the same key as one from the same source
+ * which hasn't started being delivered yet, it replaces the one already
+ * waiting, in its place in the order, so a slow listener can't cause events to
+ * pile up but still gets the latest. Only events which say the same thing
+ * each time, e.g. that two robots are in contact, should be given a key.
+ * Events sent without one, e.g. touch sensor presses, are all delivered. The
+ * time each event waits between being sent and being delivered is recorded.
+ *
+ * @author Nick Hawes
+ *
+ */
+final class EventDispatcher {
+
+	// how many events to deliver from one source before giving others a turn
+	private static final int BATCH = 16;
+
+	private final ThreadPoolExecutor m_workers;
+	private final ConcurrentHashMap<Object, SourceQueue> m_queues = new ConcurrentHashMap<>();
+	private final LatencyHistogram m_latency;
+	private final AtomicLong m_coalesced = new AtomicLong();
+
+	private static class Pending {
+		final Object key;
+		// replaced by newer events with the same key while waiting
+		Runnable event;
+		long sent;
+
+		Pending(Object _key, Runnable _event, long _sent) {
+			key = _key;
+			event = _event;
+			sent = _sent;
+		}
+	}
+
+	/**
+	 * The events waiting to be delivered from one source. At most one worker
+	 * delivers them at a time.
+	 */
+	private class SourceQueue implements Runnable {
+
+		private final ArrayDeque<Pending> m_pending = new ArrayDeque<>();
+		private final Map<Object, Pending> m_pendingKeys = new HashMap<>();
+		private boolean m_scheduled = false;
+
+		boolean add(Pending _pending) {
+			synchronized (this) {
+				if (_pending.key != null) {
+					Pending waiting = m_pendingKeys.putIfAbsent(_pending.key,
+							_pending);
+					if (waiting != null) {
+						waiting.event = _pending.event;
+						waiting.sent = _pending.sent;
+						return false;
+					}
+				}
+				m_pending.add(_pending);
+				if (m_scheduled) {
+					return true;
+				}
+				m_scheduled = true;
+			}
+			schedule();
+			return true;
+		}
+
+		private void schedule() {
+			try {
+				m_workers.execute(this);
+			} catch (RejectedExecutionException e) {
+				// shut down, so the events are dropped
+			}
+		}
+
+		@Override
+		public void run() {
+			for (int i = 0; i < BATCH; i++) {
+				long sent;
+				Runnable event;
+				synchronized (this) {
+					Pending pending = m_pending.poll();
+					if (pending == null) {
+						m_scheduled = false;
+						return;
+					}
+					if (pending.key != null) {
+						m_pendingKeys.remove(pending.key);
+					}
+					// can't be replaced once taken out
+					sent = pending.sent;
+					event = pending.event;
+				}
+
+				m_latency.record(System.nanoTime() - sent);
+				try {
+					event.run();
+				} catch (RuntimeException e) {
+					System.err.println("Exception delivering event: "
+							+ e.getMessage());
+					e.printStackTrace();
+				}
+			}
+			// still scheduled, but let other sources have a turn
+			schedule();
+		}
+	}
+
+	/**
+	 *
+	 * @param _name
+	 *            Used to name the worker threads and the latency histogram.
+	 * @param _threads
+	 *            The most worker threads to use.
+	 */
+	EventDispatcher(String _name, int _threads) {
+		AtomicInteger threads = new AtomicInteger();
+		m_workers = new ThreadPoolExecutor(_threads, _threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				r -> new Thread(r, _name + "-" + threads.incrementAndGet()));
+		// don't keep idle threads, or the JVM, alive
+		m_workers.allowCoreThreadTimeOut(true);
+		m_latency = new LatencyHistogram(_name);
+	}
+
+	/**
+	 * Send an event to be delivered after those already sent from the same
+	 * source.
+	 *
+	 * @param _source
+	 *            Where the event is from.
+	 * @param _key
+	 *            What the event is about, e.g. a contact. If an event from the
+	 *            same source with an equal key is still waiting, this one
+	 *            replaces it. Null if the event must always be delivered.
+	 * @param _event
+	 * @return false if the event replaced a waiting one, true if it was
+	 *         added after them.
+	 */
+	boolean dispatch(Object _source, Object _key, Runnable _event) {
+		SourceQueue queue = m_queues.computeIfAbsent(_source,
+				s -> new SourceQueue());
+		boolean added = queue.add(new Pending(_key, _event, System.nanoTime()));
+		if (!added) {
+			m_coalesced.incrementAndGet();
+		}
+		return added;
+	}
+
+	/**
+	 *
+	 * @return The time between events being sent and delivered.
+	 */
+	LatencyHistogram getLatency() {
+		return m_latency;
+	}
+
+	/**
+	 *
+	 * @return How many events have replaced earlier ones which were still
+	 *         waiting.
+	 */
+	long getCoalescedCount() {
+		return m_coalesced.get();
+	}
+
+	/**
+	 * Stop delivering events. Those already being delivered finish, the rest
+	 * are dropped.
+	 */
+	void shutdown() {
+		m_workers.shutdownNow();
+	}
+}
@@ -0,0 +1,103 @@
+package rp.robotics.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class EventDispatcherTest {
+
+	@Test
+	public void testEventsFromEachSourceAreDeliveredInOrder()
+			throws InterruptedException {
+
+		EventDispatcher dispatcher = new EventDispatcher("test", 4);
+		int sources = 8;
+		int events = 200;
+
+		List<List<Integer>> delivered = new ArrayList<>();
+		for (int s = 0; s < sources; s++) {
+			delivered.add(Collections.synchronizedList(new ArrayList<>()));
+		}
+		CountDownLatch done = new CountDownLatch(sources * events);
+
+		for (int e = 0; e < events; e++) {
+			for (int s = 0; s < sources; s++) {
+				int source = s;
+				int event = e;
+				// distinct keys so nothing is coalesced
+				assertTrue(dispatcher.dispatch(source, event, () -> {
+					delivered.get(source).add(event);
+					done.countDown();
+				}));
+			}
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int s = 0; s < sources; s++) {
+			List<Integer> expected = new ArrayList<>();
+			for (int e = 0; e < events; e++) {
+				expected.add(e);
+			}
+			assertEquals(expected, delivered.get(s));
+		}
+		assertEquals(sources * events, dispatcher.getLatency().getCount());
+		dispatcher.shutdown();
+	}
+
+	@Test
+	public void testWaitingEventsWithTheSameKeyAreReplacedByTheNewest()
+			throws InterruptedException {
+
+		EventDispatcher dispatcher = new EventDispatcher("test", 1);
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(4);
+		List<Integer> delivered = Collections
+				.synchronizedList(new ArrayList<>());
+
+		// a slow listener
+		dispatcher.dispatch("robot", "contact", () -> {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			done.countDown();
+		});
+		assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+		// one more can wait behind it, the rest replace that one
+		for (int i = 0; i <= 10; i++) {
+			int event = i;
+			assertEquals(i == 0, dispatcher.dispatch("robot", "contact", () -> {
+				delivered.add(event);
+				done.countDown();
+			}));
+		}
+		// without a key nothing is replaced
+		assertTrue(dispatcher.dispatch("robot", null, () -> {
+			delivered.add(-1);
+			done.countDown();
+		}));
+		assertTrue(dispatcher.dispatch("robot", null, () -> {
+			delivered.add(-2);
+			done.countDown();
+		}));
+		release.countDown();
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		dispatcher.shutdown();
+		assertEquals(4, dispatcher.getLatency().getCount());
+		assertEquals(Arrays.asList(10, -1, -2), delivered);
+		assertEquals(10, dispatcher.getCoalescedCount());
+	}
+}
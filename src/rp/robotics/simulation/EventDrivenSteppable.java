@@ -0,0 +1,32 @@
+package rp.robotics.simulation;
+
+import java.time.Instant;
+
+/**
+ * A steppable which only needs stepping at particular times, or when
+ * something else in the simulation changes. When a simulation is
+ * event-driven (see {@link SimulationCore#setEventDriven(boolean)}) and every
+ * steppable in it is event-driven, nothing can change until the earliest of
+ * their next event times, so the simulation skips straight there. Steppables
+ * which don't implement this are assumed to need stepping every step, so
+ * anything which moves should not implement it.
+ *
+ * @author Nick Hawes
+ *
+ */
+public interface EventDrivenSteppable extends SimulationSteppable {
+
+	/**
+	 * Returns the earliest time at which this needs to be stepped, assuming
+	 * nothing else in the simulation changes before then. This is called
+	 * after each step.
+	 *
+	 * @param _now
+	 *            The time of the step just run.
+	 * @return The time of the next event, which may be _now or earlier to be
+	 *         stepped in the next step, or null if this has nothing to do
+	 *         until something else changes.
+	 */
+	Instant getNextEventTime(Instant _now);
+
+}
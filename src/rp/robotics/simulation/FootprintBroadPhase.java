@@ -0,0 +1,238 @@
+package rp.robotics.simulation;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * A broad phase for ray casts and collision checks against the footprints of
+ * the things which move in a simulation. Each footprint is bounded by an
+ * axis-aligned box, and the boxes are hashed into a {@link UniformGrid}, so a
+ * ray cast or a footprint only has to be tested against the footprints whose
+ * boxes are near it. It is immutable once built,
+ * and is rebuilt along with the {@link WorldFootprints} each time the world
+ * state is published.
+ *
+ * @author Nick Hawes
+ *
+ */
+final class FootprintBroadPhase {
+
+	// the most cells to make per footprint
+	private static final int CELLS_PER_FOOTPRINT = 4;
+
+	/**
+	 * Which footprints a query has found so far, kept for each thread and
+	 * reused by all its queries so they don't allocate. A footprint has been
+	 * found by the current query if its mark is the query's number.
+	 */
+	private static final class Marks {
+		int[] marks = new int[0];
+		int query = 0;
+	}
+
+	private static final ThreadLocal<Marks> s_marks = ThreadLocal
+			.withInitial(Marks::new);
+
+	private final int m_count;
+	private final UniformGrid m_grid;
+
+	// the box of each footprint as min x, min y, max x, max y
+	private final float[] m_boxes;
+
+	// the footprints in each cell, with the footprints of cell c at
+	// m_cellEntries[m_cellStart[c]] up to m_cellEntries[m_cellStart[c + 1]]
+	private final int[] m_cellStart;
+	private final int[] m_cellEntries;
+
+	/**
+	 * Build the broad phase for the given boxes.
+	 *
+	 * @param _boxes
+	 *            The box around each footprint as min x, min y, max x, max y.
+	 *            These must not change while this is in use.
+	 * @param _count
+	 *            The number of boxes.
+	 * @param _bounds
+	 *            The area the footprints are usually in, e.g. the map.
+	 */
+	FootprintBroadPhase(float[] _boxes, int _count, Rectangle2D _bounds) {
+		m_count = _count;
+		m_boxes = _boxes;
+
+		Rectangle2D bounds = (Rectangle2D) _bounds.clone();
+		float largestSize = 0;
+		for (int i = 0; i < m_count; i++) {
+			largestSize = Math.max(largestSize, Math.max(m_boxes[i * 4 + 2]
+					- m_boxes[i * 4], m_boxes[i * 4 + 3] - m_boxes[i * 4 + 1]));
+			bounds.add(m_boxes[i * 4], m_boxes[i * 4 + 1]);
+			bounds.add(m_boxes[i * 4 + 2], m_boxes[i * 4 + 3]);
+		}
+
+		// cells about the size of a footprint, so each is in a few
+		m_grid = new UniformGrid(bounds, largestSize, Math.max(1, m_count
+				* CELLS_PER_FOOTPRINT));
+
+		int[] counts = new int[m_grid.getCellCount() + 1];
+		for (int i = 0; i < m_count; i++) {
+			m_grid.overlapping(m_boxes[i * 4], m_boxes[i * 4 + 1],
+					m_boxes[i * 4 + 2], m_boxes[i * 4 + 3],
+					cell -> counts[cell]++);
+		}
+
+		m_cellStart = new int[counts.length];
+		for (int c = 1; c < counts.length; c++) {
+			m_cellStart[c] = m_cellStart[c - 1] + counts[c - 1];
+		}
+		m_cellEntries = new int[m_cellStart[counts.length - 1]];
+
+		int[] next = m_cellStart.clone();
+		for (int i = 0; i < m_count; i++) {
+			int entry = i;
+			m_grid.overlapping(m_boxes[i * 4], m_boxes[i * 4 + 1],
+					m_boxes[i * 4 + 2], m_boxes[i * 4 + 3],
+					cell -> m_cellEntries[next[cell]++] = entry);
+		}
+	}
+
+	/**
+	 * Start a query on the current thread. Queries can't be nested, i.e. a
+	 * query can't be made from the consumer of another.
+	 */
+	private Marks startQuery() {
+		Marks marks = s_marks.get();
+		if (marks.marks.length < m_count) {
+			marks.marks = new int[m_count * 2];
+			marks.query = 0;
+		}
+		if (++marks.query == 0) {
+			// wrapped round, so old marks could match
+			Arrays.fill(marks.marks, 0);
+			marks.query = 1;
+		}
+		return marks;
+	}
+
+	/**
+	 * Find the footprints whose boxes overlap the given box, e.g. the area a
+	 * range scanner can see or the box around another footprint.
+	 *
+	 * @param _minX
+	 * @param _minY
+	 * @param _maxX
+	 * @param _maxY
+	 * @param _skip
+	 *            A footprint to leave out, e.g. the one a scanner is on, or
+	 *            -1.
+	 * @param _footprints
+	 *            Given the index of each footprint found, once. This must not
+	 *            query the broad phase itself.
+	 */
+	void overlapping(float _minX, float _minY, float _maxX, float _maxY,
+			int _skip, IntConsumer _footprints) {
+
+		// footprints can be in many cells, but only need passing on once
+		Marks marks = startQuery();
+		int[] found = marks.marks;
+		int query = marks.query;
+		if (_skip >= 0 && _skip < m_count) {
+			found[_skip] = query;
+		}
+
+		m_grid.overlapping(_minX, _minY, _maxX, _maxY, cell -> {
+			for (int i = m_cellStart[cell]; i < m_cellStart[cell + 1]; i++) {
+				int entry = m_cellEntries[i];
+				if (found[entry] != query) {
+					found[entry] = query;
+					if (m_boxes[entry * 4] <= _maxX
+							&& m_boxes[entry * 4 + 2] >= _minX
+							&& m_boxes[entry * 4 + 1] <= _maxY
+							&& m_boxes[entry * 4 + 3] >= _minY) {
+						_footprints.accept(entry);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Find the nearest hit along a ray among the footprints whose boxes it
+	 * crosses. The cells the ray passes through are visited in order, so it
+	 * stops as soon as nothing nearer is possible, and a ray cut short by the
+	 * map only looks at the footprints before it.
+	 *
+	 * @param _x
+	 * @param _y
+	 * @param _dx
+	 * @param _dy
+	 *            The ray, from (_x, _y) by (_dx, _dy).
+	 * @param _skip
+	 *            A footprint to leave out, e.g. the one a scanner is on, or
+	 *            -1.
+	 * @param _hit
+	 *            Given each footprint whose box the ray crosses, once, and
+	 *            returns how far along the ray it hits it, as a fraction of
+	 *            the ray, or infinity if it doesn't. This must not query the
+	 *            broad phase itself.
+	 * @return The nearest hit as a fraction of the ray, or infinity if there
+	 *         isn't one.
+	 */
+	double nearest(double _x, double _y, double _dx, double _dy, int _skip,
+			IntToDoubleFunction _hit) {
+
+		Marks marks = startQuery();
+		int[] found = marks.marks;
+		int query = marks.query;
+		if (_skip >= 0 && _skip < m_count) {
+			found[_skip] = query;
+		}
+
+		double[] nearest = { Double.POSITIVE_INFINITY };
+		m_grid.traverse(_x, _y, _x + _dx, _y + _dy, (cell, exit) -> {
+			for (int i = m_cellStart[cell]; i < m_cellStart[cell + 1]; i++) {
+				int entry = m_cellEntries[i];
+				if (found[entry] != query) {
+					found[entry] = query;
+					if (crosses(entry, _x, _y, _dx, _dy)) {
+						nearest[0] = Math.min(nearest[0],
+								_hit.applyAsDouble(entry));
+					}
+				}
+			}
+			// footprints only in later cells are further away
+			return nearest[0] <= exit;
+		});
+		return nearest[0];
+	}
+
+	/**
+	 * Whether the ray from (_x, _y) by (_dx, _dy) crosses the box of the
+	 * given footprint, by clipping it to each pair of sides in turn.
+	 */
+	private boolean crosses(int _entry, double _x, double _y, double _dx,
+			double _dy) {
+		double enter = 0;
+		double leave = 1;
+		for (int axis = 0; axis < 2; axis++) {
+			double origin = axis == 0 ? _x : _y;
+			double direction = axis == 0 ? _dx : _dy;
+			double min = m_boxes[_entry * 4 + axis];
+			double max = m_boxes[_entry * 4 + 2 + axis];
+			if (direction == 0) {
+				if (origin < min || origin > max) {
+					return false;
+				}
+			} else {
+				double t1 = (min - origin) / direction;
+				double t2 = (max - origin) / direction;
+				enter = Math.max(enter, Math.min(t1, t2));
+				leave = Math.min(leave, Math.max(t1, t2));
+				if (enter > leave) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
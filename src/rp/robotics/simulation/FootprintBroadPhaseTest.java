@@ -0,0 +1,99 @@
+package rp.robotics.simulation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FootprintBroadPhaseTest {
+
+	@Test
+	public void testQueriesMatchCheckingEveryBox() {
+
+		Random random = new Random(0);
+		float size = 10;
+		int count = 200;
+		float[] boxes = new float[count * 4];
+		for (int i = 0; i < count; i++) {
+			// some outside the map
+			float x = random.nextFloat() * size * 1.2f - 1;
+			float y = random.nextFloat() * size * 1.2f - 1;
+			float halfSide = 0.05f + random.nextFloat() * 0.3f;
+			boxes[i * 4] = x - halfSide;
+			boxes[i * 4 + 1] = y - halfSide;
+			boxes[i * 4 + 2] = x + halfSide;
+			boxes[i * 4 + 3] = y + halfSide;
+		}
+		FootprintBroadPhase broadPhase = new FootprintBroadPhase(boxes, count,
+				new Rectangle2D.Float(0, 0, size, size));
+
+		for (int q = 0; q < 2000; q++) {
+
+			float x = random.nextFloat() * size;
+			float y = random.nextFloat() * size;
+			float range = random.nextFloat() * 3;
+			int skip = random.nextInt(count + 1) - 1;
+
+			List<Integer> expected = new ArrayList<>();
+			for (int i = 0; i < count; i++) {
+				if (i != skip && boxes[i * 4] <= x + range
+						&& boxes[i * 4 + 2] >= x - range
+						&& boxes[i * 4 + 1] <= y + range
+						&& boxes[i * 4 + 3] >= y - range) {
+					expected.add(i);
+				}
+			}
+
+			List<Integer> found = new ArrayList<>();
+			broadPhase.overlapping(x - range, y - range, x + range, y + range,
+					skip, found::add);
+			Collections.sort(found);
+
+			assertEquals(expected, found);
+
+			// the nearest box along a ray, hitting each where it enters it
+			double angle = random.nextDouble() * 2 * Math.PI;
+			double dx = range * Math.cos(angle);
+			double dy = range * Math.sin(angle);
+			double nearest = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < count; i++) {
+				if (i != skip) {
+					nearest = Math.min(nearest, enter(boxes, i, x, y, dx, dy));
+				}
+			}
+			assertEquals(nearest, broadPhase.nearest(x, y, dx, dy, skip,
+					i -> enter(boxes, i, x, y, dx, dy)), 1e-9);
+		}
+	}
+
+	/**
+	 * How far along the ray it enters the box, or infinity if it doesn't.
+	 */
+	private static double enter(float[] _boxes, int _box, double _x,
+			double _y, double _dx, double _dy) {
+		double enter = 0;
+		double leave = 1;
+		double[] origin = { _x, _y };
+		double[] direction = { _dx, _dy };
+		for (int axis = 0; axis < 2; axis++) {
+			double min = _boxes[_box * 4 + axis];
+			double max = _boxes[_box * 4 + 2 + axis];
+			if (direction[axis] == 0) {
+				if (origin[axis] < min || origin[axis] > max) {
+					return Double.POSITIVE_INFINITY;
+				}
+			} else {
+				double t1 = (min - origin[axis]) / direction[axis];
+				double t2 = (max - origin[axis]) / direction[axis];
+				enter = Math.max(enter, Math.min(t1, t2));
+				leave = Math.min(leave, Math.max(t1, t2));
+			}
+		}
+		return enter <= leave ? enter : Double.POSITIVE_INFINITY;
+	}
+}
@@ -18,7 +18,7 @@ public class GaussianNoise implements RangeReadingsFilter {
 	private final float m_min;
 	private final float m_max;
 	private final float m_outOfRange;
-	private final Random m_rand = new Random();
+	private final Random m_rand;
 
 	/***
 	 * 
@@ -36,6 +36,23 @@ public class GaussianNoise implements RangeReadingsFilter {
 
 	public GaussianNoise(double _stdDev, float _min, float _max,
 			float _outOfRange) {
+		this(_stdDev, _min, _max, _outOfRange, new Random());
+	}
+
+	/**
+	 * 
+	 * @param _stdDev
+	 * @param _min
+	 * @param _max
+	 * @param _outOfRange
+	 * @param _random
+	 *            The source of the noise, e.g. from
+	 *            {@link MapBasedSimulation#createRandom()} for repeatable
+	 *            runs.
+	 */
+	public GaussianNoise(double _stdDev, float _min, float _max,
+			float _outOfRange, Random _random) {
+		m_rand = _random;
 		m_stdDev = _stdDev;
 		m_min = _min;
 		m_max = _max;
@@ -0,0 +1,139 @@
+package rp.robotics.simulation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size histogram of durations in nanoseconds. Buckets are linear
+ * within each power of two and there are 16 of them per power of two, so any
+ * value is reported to within about 6% regardless of its size. Recording is a
+ * few atomic increments and never allocates, so it can be left on in the
+ * simulation loop. Recording from several threads at once is safe.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// enough buckets for any positive long
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final String m_name;
+	private final AtomicLongArray m_counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong m_count = new AtomicLong();
+	private final AtomicLong m_total = new AtomicLong();
+	private final AtomicLong m_max = new AtomicLong();
+
+	public LatencyHistogram(String _name) {
+		m_name = _name;
+	}
+
+	public String getName() {
+		return m_name;
+	}
+
+	/**
+	 * Record a single duration.
+	 *
+	 * @param _nanos
+	 */
+	public void record(long _nanos) {
+		if (_nanos < 0) {
+			_nanos = 0;
+		}
+		m_counts.incrementAndGet(bucket(_nanos));
+		m_count.incrementAndGet();
+		m_total.addAndGet(_nanos);
+
+		long max = m_max.get();
+		while (_nanos > max && !m_max.compareAndSet(max, _nanos)) {
+			max = m_max.get();
+		}
+	}
+
+	private static int bucket(long _value) {
+		if (_value < SUB_BUCKETS) {
+			return (int) _value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(_value);
+		int sub = (int) (_value >>> (exponent - SUB_BUCKET_BITS))
+				& (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long lowestValue(int _bucket) {
+		if (_bucket < SUB_BUCKETS) {
+			return _bucket;
+		}
+		int exponent = (_bucket / SUB_BUCKETS) + SUB_BUCKET_BITS - 1;
+		int sub = _bucket % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub)) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	public long getCount() {
+		return m_count.get();
+	}
+
+	public long getTotalNanos() {
+		return m_total.get();
+	}
+
+	public long getMaxNanos() {
+		return m_max.get();
+	}
+
+	public double getMeanNanos() {
+		long count = m_count.get();
+		return count == 0 ? 0 : m_total.get() / (double) count;
+	}
+
+	/**
+	 * Returns a value which the given percentage of recorded durations are
+	 * less than or equal to. This is the top of the bucket the percentile falls
+	 * in, so may overestimate by the width of one bucket.
+	 *
+	 * @param _percentile
+	 *            Between 0 and 100.
+	 * @return
+	 */
+	public long getValueAtPercentile(double _percentile) {
+		long count = m_count.get();
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1,
+				(long) Math.ceil((_percentile / 100.0) * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += m_counts.get(i);
+			if (seen >= target) {
+				long top = i + 1 < BUCKETS ? lowestValue(i + 1) - 1
+						: Long.MAX_VALUE;
+				return Math.min(top, m_max.get());
+			}
+		}
+		return m_max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			m_counts.set(i, 0);
+		}
+		m_count.set(0);
+		m_total.set(0);
+		m_max.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String
+				.format("%s: %d calls, total %.1fms, mean %.3fms, p50 %.3fms, p99 %.3fms, max %.3fms",
+						m_name, getCount(), getTotalNanos() / 1e6,
+						getMeanNanos() / 1e6,
+						getValueAtPercentile(50) / 1e6,
+						getValueAtPercentile(99) / 1e6, getMaxNanos() / 1e6);
+	}
+}
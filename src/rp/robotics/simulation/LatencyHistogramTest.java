@@ -0,0 +1,48 @@
+package rp.robotics.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testPercentilesAreWithinBucketPrecision() {
+		LatencyHistogram histogram = new LatencyHistogram("test");
+
+		// 1us to 1ms
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMaxNanos());
+		assertEquals(500500, histogram.getMeanNanos(), 1e-6);
+
+		long[][] expected = { { 50, 500000 }, { 90, 900000 }, { 99, 990000 },
+				{ 100, 1000000 } };
+		for (long[] pair : expected) {
+			long value = histogram.getValueAtPercentile(pair[0]);
+			assertTrue(pair[0] + "th percentile was " + value,
+					value >= pair[1] && value <= pair[1] * 1.07);
+		}
+	}
+
+	@Test
+	public void testSmallAndHugeValues() {
+		LatencyHistogram histogram = new LatencyHistogram("test");
+		histogram.record(0);
+		histogram.record(3);
+		histogram.record(Long.MAX_VALUE);
+
+		assertEquals(0, histogram.getValueAtPercentile(10));
+		assertEquals(3, histogram.getValueAtPercentile(60));
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+}
@@ -0,0 +1,512 @@
+package rp.robotics.simulation;
+
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import lejos.geom.Line;
+import lejos.robotics.RangeReadings;
+import lejos.robotics.navigation.Pose;
+import rp.config.RangeFinderDescription;
+import rp.config.RangeScannerDescription;
+import rp.geom.GeometryUtils;
+import rp.robotics.mapping.LineMap;
+
+/**
+ * A uniform grid over the lines of a {@link LineMap} which answers the
+ * collision and range queries of the simulation by looking only at the lines
+ * in the cells a query passes through, rather than every line in the map.
+ * Cells are walked along a line or ray in order (a DDA traversal), so a ray
+ * stops as soon as no nearer hit is possible and its cost depends on how far
+ * it goes rather than the size of the map. An index is immutable once built,
+ * so it can be shared between threads and simulations, see
+ * {@link #forMap(LineMap)}.
+ *
+ * @author Nick Hawes
+ *
+ */
+public final class LineMapIndex {
+
+	// how many cells to make per line in the map
+	private static final int CELLS_PER_LINE = 2;
+
+	// the most a footprint turns between the poses a sweep is checked at, in
+	// degrees, and how many times the interval containing a contact is
+	// halved to find when it happened
+	private static final double SWEEP_ANGLE = 5;
+	private static final int CONTACT_ITERATIONS = 12;
+
+	/**
+	 * The footprints a sweep places along the way, kept for each thread and
+	 * reused by all its sweeps, whichever index they're on.
+	 */
+	private static final class SweepBuffers {
+		float[] local = new float[0];
+		float[] before = new float[0];
+		float[] after = new float[0];
+
+		void ensure(int _length) {
+			if (local.length < _length) {
+				local = new float[_length * 2];
+				before = new float[_length * 2];
+				after = new float[_length * 2];
+			}
+		}
+	}
+
+	private static final ThreadLocal<SweepBuffers> s_sweepBuffers = ThreadLocal
+			.withInitial(SweepBuffers::new);
+
+	/**
+	 * Checks the lines in each cell a segment passes through against it,
+	 * kept for each thread and reused by all its segment queries, whichever
+	 * index they're on, as there are many of them in every step.
+	 */
+	private static final class SegmentQuery implements UniformGrid.CellVisitor {
+		LineMapIndex index;
+		float x1, y1, x2, y2;
+		boolean hit;
+
+		@Override
+		public boolean visit(int _cell, double _exit) {
+			int[] cellStart = index.m_cellStart;
+			for (int i = cellStart[_cell]; i < cellStart[_cell + 1]; i++) {
+				Line line = index.m_lines[index.m_cellLines[i]];
+				if (Line2D.linesIntersect(x1, y1, x2, y2, line.x1, line.y1,
+						line.x2, line.y2)) {
+					hit = true;
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static final ThreadLocal<SegmentQuery> s_segmentQueries = ThreadLocal
+			.withInitial(SegmentQuery::new);
+
+	private static final Map<LineMap, LineMapIndex> s_indices = new WeakHashMap<>();
+
+	private final Line[] m_lines;
+	private final UniformGrid m_grid;
+
+	// the lines in each cell, with the lines of cell c at m_cellLines[m_cellStart[c]]
+	// up to m_cellLines[m_cellStart[c + 1]]
+	private final int[] m_cellStart;
+	private final int[] m_cellLines;
+
+	/**
+	 * Returns the index for the given map, building it the first time it's
+	 * asked for. The map's lines must not change afterwards.
+	 *
+	 * @param _map
+	 * @return
+	 */
+	public static LineMapIndex forMap(LineMap _map) {
+		synchronized (s_indices) {
+			LineMapIndex index = s_indices.get(_map);
+			if (index == null) {
+				index = new LineMapIndex(_map.getLines(),
+						_map.getBoundingRect());
+				s_indices.put(_map, index);
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Build an index of the given lines. The grid covers the given bounds,
+	 * grown to include any lines outside them.
+	 *
+	 * @param _lines
+	 * @param _bounds
+	 */
+	public LineMapIndex(Line[] _lines, Rectangle2D _bounds) {
+		m_lines = _lines.clone();
+
+		Rectangle2D bounds = (Rectangle2D) _bounds.clone();
+		for (Line line : m_lines) {
+			bounds.add(line.x1, line.y1);
+			bounds.add(line.x2, line.y2);
+		}
+		// roughly square cells, a few times as many as there are lines
+		m_grid = new UniformGrid(bounds, 0, m_lines.length * CELLS_PER_LINE);
+
+		// count the lines in each cell, then fill them in
+		int[] counts = new int[m_grid.getCellCount() + 1];
+		for (Line line : m_lines) {
+			m_grid.traverse(line.x1, line.y1, line.x2, line.y2, (cell, exit) -> {
+				counts[cell]++;
+				return false;
+			});
+		}
+
+		m_cellStart = new int[counts.length];
+		for (int c = 1; c < counts.length; c++) {
+			m_cellStart[c] = m_cellStart[c - 1] + counts[c - 1];
+		}
+		m_cellLines = new int[m_cellStart[counts.length - 1]];
+
+		int[] next = m_cellStart.clone();
+		for (int l = 0; l < m_lines.length; l++) {
+			int line = l;
+			m_grid.traverse(m_lines[l].x1, m_lines[l].y1, m_lines[l].x2,
+					m_lines[l].y2, (cell, exit) -> {
+						m_cellLines[next[cell]++] = line;
+						return false;
+					});
+		}
+	}
+
+	/**
+	 * Whether any of the given lines crosses or touches a line of the map.
+	 *
+	 * @param _lines
+	 * @return
+	 */
+	public boolean intersectsWith(Line[] _lines) {
+		for (Line line : _lines) {
+			if (intersectsWith(line.x1, line.y1, line.x2, line.y2)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether any of the given segments crosses or touches a line of the map.
+	 *
+	 * @param _segments
+	 *            Segments as x1, y1, x2, y2 for each in turn, e.g. from
+	 *            {@link WorldFootprints#getSegments()}.
+	 * @param _from
+	 *            The first segment to check.
+	 * @param _to
+	 *            The segment after the last one to check.
+	 * @return
+	 */
+	public boolean intersectsWith(float[] _segments, int _from, int _to) {
+		for (int s = _from * 4; s < _to * 4; s += 4) {
+			if (intersectsWith(_segments[s], _segments[s + 1],
+					_segments[s + 2], _segments[s + 3])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean intersectsWith(float _x1, float _y1, float _x2, float _y2) {
+		SegmentQuery query = s_segmentQueries.get();
+		query.index = this;
+		query.x1 = _x1;
+		query.y1 = _y1;
+		query.x2 = _x2;
+		query.y2 = _y2;
+		query.hit = false;
+		try {
+			m_grid.traverse(_x1, _y1, _x2, _y2, query);
+			return query.hit;
+		} finally {
+			// don't keep the index alive from the thread
+			query.index = null;
+		}
+	}
+
+	/**
+	 * The distance from the given pose along its heading to the nearest line
+	 * of the map.
+	 *
+	 * @param _pose
+	 * @param _maxRange
+	 *            How far to look.
+	 * @return The distance, or {@link Float#POSITIVE_INFINITY} if there is
+	 *         no line within _maxRange.
+	 */
+	public float range(Pose _pose, float _maxRange) {
+		return range(_pose.getX(), _pose.getY(), _pose.getHeading(), _maxRange);
+	}
+
+	private float range(double _x, double _y, double _heading, float _maxRange) {
+
+		double heading = Math.toRadians(_heading);
+		double t = nearestHit(_x, _y, _maxRange * Math.cos(heading), _maxRange
+				* Math.sin(heading));
+		return t > 1 ? Float.POSITIVE_INFINITY : (float) (t * _maxRange);
+	}
+
+	/**
+	 * How far along the ray from (_x, _y) by (_dx, _dy) it first crosses a
+	 * line of the map, as a fraction of the ray.
+	 *
+	 * @return The fraction, or infinity if it doesn't cross one.
+	 */
+	private double nearestHit(double _x, double _y, double _dx, double _dy) {
+
+		// the nearest hit so far as a fraction of the ray
+		double[] nearest = { Double.POSITIVE_INFINITY };
+		m_grid.traverse(_x, _y, _x + _dx, _y + _dy, (cell, exit) -> {
+			for (int i = m_cellStart[cell]; i < m_cellStart[cell + 1]; i++) {
+				double t = intersect(_x, _y, _dx, _dy, m_lines[m_cellLines[i]]);
+				if (t < nearest[0]) {
+					nearest[0] = t;
+				}
+			}
+			// anything in later cells is further away
+			return nearest[0] <= exit;
+		});
+		return nearest[0];
+	}
+
+	/**
+	 * Find when a footprint moving steadily from one pose to another first
+	 * touches the map, so that contacts aren't missed when something moves
+	 * further than its own size in one step, e.g. through a thin wall. The
+	 * motion is split into pieces in which the footprint turns by no more
+	 * than a few degrees, and the path of each of its corners across a piece
+	 * is cast against the map as a straight line, which is exact for
+	 * translation. The first contact in the first piece with one is then
+	 * narrowed down by bisection.
+	 *
+	 * @param _segments
+	 *            The footprint at _end as x1, y1, x2, y2 for each segment,
+	 *            e.g. from {@link WorldFootprints#getSegments()}.
+	 * @param _from
+	 *            The first segment of the footprint.
+	 * @param _to
+	 *            The segment after its last one.
+	 * @param _start
+	 *            Where the footprint moved from.
+	 * @param _end
+	 *            Where it moved to.
+	 * @return How far through the motion, from 0 to 1, the footprint first
+	 *         touches the map, or -1 if it doesn't.
+	 */
+	public double firstContact(float[] _segments, int _from, int _to,
+			Pose _start, Pose _end) {
+
+		int length = (_to - _from) * 4;
+		if (length == 0) {
+			return -1;
+		}
+
+		// the footprint relative to _end, so it can be placed anywhere along
+		// the way, and where it is at the start and end of each piece
+		SweepBuffers buffers = s_sweepBuffers.get();
+		buffers.ensure(length);
+		float[] local = buffers.local;
+		double heading = Math.toRadians(_end.getHeading());
+		double cos = Math.cos(heading);
+		double sin = Math.sin(heading);
+		for (int i = 0; i < length; i += 2) {
+			double x = _segments[_from * 4 + i] - _end.getX();
+			double y = _segments[_from * 4 + i + 1] - _end.getY();
+			local[i] = (float) (x * cos + y * sin);
+			local[i + 1] = (float) (y * cos - x * sin);
+		}
+
+		float[] before = buffers.before;
+		float[] after = buffers.after;
+		place(local, length, _start, _end, 0, before);
+		if (intersectsWith(before, 0, length / 4)) {
+			return 0;
+		}
+		if (_start.getX() == _end.getX() && _start.getY() == _end.getY()
+				&& _start.getHeading() == _end.getHeading()) {
+			return -1;
+		}
+
+		int pieces = Math.max(1, (int) Math.ceil(Math.abs(turn(_start, _end))
+				/ SWEEP_ANGLE));
+		for (int p = 1; p <= pieces; p++) {
+			double t0 = (p - 1) / (double) pieces;
+			double t1 = p / (double) pieces;
+			place(local, length, _start, _end, t1, after);
+
+			double hit = intersectsWith(after, 0, length / 4) ? 1
+					: Double.POSITIVE_INFINITY;
+			for (int i = 0; i < length; i += 2) {
+				hit = Math.min(hit, nearestHit(before[i], before[i + 1],
+						after[i] - before[i], after[i + 1] - before[i + 1]));
+			}
+
+			if (hit <= 1) {
+				double clear = t0;
+				double contact = t0 + hit * (t1 - t0);
+				for (int i = 0; i < CONTACT_ITERATIONS; i++) {
+					double mid = (clear + contact) / 2;
+					place(local, length, _start, _end, mid, after);
+					if (intersectsWith(after, 0, length / 4)) {
+						contact = mid;
+					} else {
+						clear = mid;
+					}
+				}
+				return contact;
+			}
+
+			float[] swap = before;
+			before = after;
+			after = swap;
+		}
+		return -1;
+	}
+
+	/**
+	 * The pose the given fraction of the way from _start to _end, turning the
+	 * shortest way round.
+	 *
+	 * @param _start
+	 * @param _end
+	 * @param _t
+	 * @return
+	 */
+	public static Pose interpolate(Pose _start, Pose _end, double _t) {
+		return new Pose((float) (_start.getX() + _t
+				* (_end.getX() - _start.getX())), (float) (_start.getY() + _t
+				* (_end.getY() - _start.getY())),
+				(float) (_start.getHeading() + _t * turn(_start, _end)));
+	}
+
+	/**
+	 * The smallest turn from the heading of _start to that of _end, in
+	 * degrees.
+	 */
+	private static double turn(Pose _start, Pose _end) {
+		double turn = (_end.getHeading() - _start.getHeading()) % 360;
+		if (turn > 180) {
+			turn -= 360;
+		} else if (turn < -180) {
+			turn += 360;
+		}
+		return turn;
+	}
+
+	/**
+	 * Write the given footprint, relative to its pose, placed at the pose _t
+	 * of the way from _start to _end into _segments.
+	 */
+	private static void place(float[] _local, int _length, Pose _start,
+			Pose _end, double _t, float[] _segments) {
+		double x = _start.getX() + _t * (_end.getX() - _start.getX());
+		double y = _start.getY() + _t * (_end.getY() - _start.getY());
+		double heading = Math.toRadians(_start.getHeading() + _t
+				* turn(_start, _end));
+		double cos = Math.cos(heading);
+		double sin = Math.sin(heading);
+		for (int i = 0; i < _length; i += 2) {
+			_segments[i] = (float) (x + _local[i] * cos - _local[i + 1] * sin);
+			_segments[i + 1] = (float) (y + _local[i] * sin + _local[i + 1]
+					* cos);
+		}
+	}
+
+	/**
+	 * Cast a ray from the given pose at each of the given angles, as
+	 * {@link #range(Pose, float)} does for one.
+	 *
+	 * @param _pose
+	 * @param _angles
+	 *            The angles of the rays relative to the heading of _pose, in
+	 *            degrees.
+	 * @param _maxRange
+	 *            How far to look.
+	 * @param _ranges
+	 *            Written with the distance along each ray to the nearest
+	 *            line, or {@link Float#POSITIVE_INFINITY} if there is no line
+	 *            within _maxRange.
+	 */
+	public void castRays(Pose _pose, float[] _angles, float _maxRange,
+			float[] _ranges) {
+		for (int i = 0; i < _angles.length; i++) {
+			_ranges[i] = range(_pose.getX(), _pose.getY(), _pose.getHeading()
+					+ _angles[i], _maxRange);
+		}
+	}
+
+	/**
+	 * How far along the ray from (_x, _y) by (_dx, _dy) it crosses the given
+	 * line, as a fraction of the ray.
+	 *
+	 * @return The fraction, or infinity if it doesn't.
+	 */
+	static double intersect(double _x, double _y, double _dx, double _dy,
+			Line _line) {
+		return intersect(_x, _y, _dx, _dy, _line.x1, _line.y1, _line.x2,
+				_line.y2);
+	}
+
+	/**
+	 * How far along the ray from (_x, _y) by (_dx, _dy) it crosses the line
+	 * from (_x1, _y1) to (_x2, _y2), as a fraction of the ray.
+	 *
+	 * @return The fraction, or infinity if it doesn't.
+	 */
+	static double intersect(double _x, double _y, double _dx, double _dy,
+			double _x1, double _y1, double _x2, double _y2) {
+		double lx = _x2 - _x1;
+		double ly = _y2 - _y1;
+		double denominator = _dx * ly - _dy * lx;
+		if (denominator == 0) {
+			// parallel
+			return Double.POSITIVE_INFINITY;
+		}
+		double ox = _x1 - _x;
+		double oy = _y1 - _y;
+		double t = (ox * ly - oy * lx) / denominator;
+		double u = (ox * _dy - oy * _dx) / denominator;
+		if (t < 0 || t > 1 || u < 0 || u > 1) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return t;
+	}
+
+	/**
+	 * Take readings of the map from a range scanner at the given pose, in the
+	 * same way as the simulation does for obstacles: each reading is the
+	 * distance to the nearest line along the scanner's angle, or
+	 * {@link RangeFinderDescription#OUT_OF_RANGE_VALUE} beyond its maximum
+	 * range, or 0 inside its minimum range.
+	 *
+	 * @param _robotPose
+	 * @param _scanner
+	 * @return
+	 */
+	public RangeReadings takeReadings(Pose _robotPose,
+			RangeScannerDescription _scanner) {
+
+		float[] angles = _scanner.getReadingAngles();
+		float[] ranges = new float[angles.length];
+		castRays(GeometryUtils.transform(_robotPose, _scanner.getScannerPose()),
+				angles, _scanner.getMaxRange(), ranges);
+		return toReadings(ranges, _scanner);
+	}
+
+	/**
+	 * Turn the distances found by casting rays at a scanner's angles into its
+	 * readings, bounded by its range as described in
+	 * {@link #takeReadings(Pose, RangeScannerDescription)}.
+	 *
+	 * @param _ranges
+	 * @param _scanner
+	 * @return
+	 */
+	static RangeReadings toReadings(float[] _ranges,
+			RangeScannerDescription _scanner) {
+
+		float[] angles = _scanner.getReadingAngles();
+		RangeReadings readings = new RangeReadings(angles.length);
+
+		for (int i = 0; i < angles.length; i++) {
+			float range = _ranges[i];
+			if (range > _scanner.getMaxRange()) {
+				range = RangeFinderDescription.OUT_OF_RANGE_VALUE;
+			} else if (range < _scanner.getMinRange()) {
+				range = 0;
+			}
+			readings.setRange(i, angles[i], range);
+		}
+
+		return readings;
+	}
+}
@@ -0,0 +1,140 @@
+package rp.robotics.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Random;
+
+import lejos.geom.Line;
+import lejos.robotics.navigation.Pose;
+
+import org.junit.Test;
+
+public class LineMapIndexTest {
+
+	private static Line randomLine(Random _random, float _size, float _maxLength) {
+		float x = _random.nextFloat() * _size;
+		float y = _random.nextFloat() * _size;
+		double angle = _random.nextDouble() * 2 * Math.PI;
+		float length = _random.nextFloat() * _maxLength;
+		return new Line(x, y, x + length * (float) Math.cos(angle), y + length
+				* (float) Math.sin(angle));
+	}
+
+	@Test
+	public void testQueriesMatchCheckingEveryLine() {
+
+		Random random = new Random(0);
+		float size = 10;
+		Line[] lines = new Line[300];
+		// walls around the edge, like most maps, and one on a cell boundary
+		lines[0] = new Line(0, 0, size, 0);
+		lines[1] = new Line(size, 0, size, size);
+		lines[2] = new Line(size, size, 0, size);
+		lines[3] = new Line(0, size, 0, 0);
+		lines[4] = new Line(size / 2, 0, size / 2, size);
+		for (int i = 5; i < lines.length; i++) {
+			lines[i] = randomLine(random, size, 1.5f);
+		}
+		LineMapIndex index = new LineMapIndex(lines, new Rectangle2D.Float(0,
+				0, size, size));
+
+		for (int q = 0; q < 2000; q++) {
+
+			Line query = randomLine(random, size, 0.5f);
+			boolean expected = false;
+			for (Line line : lines) {
+				expected |= query.intersectsLine(line);
+			}
+			assertEquals(query.toString(), expected,
+					index.intersectsWith(new Line[] { query }));
+
+			Pose pose = new Pose(random.nextFloat() * size, random.nextFloat()
+					* size, random.nextFloat() * 360 - 180);
+			float maxRange = random.nextFloat() * 5;
+			double heading = Math.toRadians(pose.getHeading());
+			double nearest = Double.POSITIVE_INFINITY;
+			for (Line line : lines) {
+				nearest = Math.min(nearest, LineMapIndex.intersect(
+						pose.getX(), pose.getY(),
+						maxRange * Math.cos(heading),
+						maxRange * Math.sin(heading), line));
+			}
+			float range = index.range(pose, maxRange);
+			if (nearest > 1) {
+				assertEquals(Float.POSITIVE_INFINITY, range, 0);
+			} else {
+				assertEquals(nearest * maxRange, range, 1e-4);
+			}
+
+			// a batch of rays gives the same as each ray alone
+			float[] angles = { 0, random.nextFloat() * 360 - 180 };
+			float[] ranges = new float[angles.length];
+			index.castRays(pose, angles, maxRange, ranges);
+			for (int i = 0; i < angles.length; i++) {
+				assertEquals(index.range(new Pose(pose.getX(), pose.getY(),
+						pose.getHeading() + angles[i]), maxRange), ranges[i],
+						1e-4);
+			}
+		}
+	}
+
+	/**
+	 * A square 0.2 across, centred on the pose, as x1, y1, x2, y2 for each
+	 * side.
+	 */
+	private static float[] square(Pose _pose) {
+		float[] corners = new float[8];
+		double heading = Math.toRadians(_pose.getHeading());
+		for (int i = 0; i < 4; i++) {
+			double angle = heading + Math.PI / 4 + i * Math.PI / 2;
+			corners[i * 2] = _pose.getX() + (float) (0.1 * Math.sqrt(2) * Math
+					.cos(angle));
+			corners[i * 2 + 1] = _pose.getY() + (float) (0.1 * Math.sqrt(2) * Math
+					.sin(angle));
+		}
+		float[] segments = new float[16];
+		for (int i = 0; i < 4; i++) {
+			segments[i * 4] = corners[i * 2];
+			segments[i * 4 + 1] = corners[i * 2 + 1];
+			segments[i * 4 + 2] = corners[(i + 1) % 4 * 2];
+			segments[i * 4 + 3] = corners[(i + 1) % 4 * 2 + 1];
+		}
+		return segments;
+	}
+
+	@Test
+	public void testSweptFootprintsFindTheFirstContact() {
+
+		// a thin wall at x = 1
+		LineMapIndex index = new LineMapIndex(new Line[] { new Line(1, 0, 1,
+				2) }, new Rectangle2D.Float(0, 0, 2, 2));
+
+		// straight through it in one step, touching it at x = 0.9
+		Pose start = new Pose(0.1f, 1, 0);
+		Pose end = new Pose(1.6f, 1, 0);
+		assertFalse(index.intersectsWith(square(end), 0, 4));
+		assertEquals(0.8 / 1.5,
+				index.firstContact(square(end), 0, 4, start, end), 1e-3);
+
+		// turning on the way
+		end = new Pose(1.6f, 1, 90);
+		double contact = index.firstContact(square(end), 0, 4, start, end);
+		assertTrue(contact > 0 && contact < 0.8 / 1.5);
+		assertTrue(index.intersectsWith(
+				square(LineMapIndex.interpolate(start, end, contact)), 0, 4));
+		assertFalse(index.intersectsWith(
+				square(LineMapIndex.interpolate(start, end, contact - 1e-3)),
+				0, 4));
+
+		// stopping short of it
+		end = new Pose(0.8f, 1, 0);
+		assertEquals(-1, index.firstContact(square(end), 0, 4, start, end), 0);
+
+		// already touching it
+		start = new Pose(0.95f, 1, 0);
+		assertEquals(0, index.firstContact(square(end), 0, 4, start, end), 0);
+	}
+}
@@ -12,7 +12,8 @@ import lejos.robotics.navigation.Pose;
  * @author nah
  *
  */
-public class LinearTranslationLoop implements Movable {
+public class LinearTranslationLoop implements Movable,
+		Restorable<LinearTranslationLoop.State> {
 
 	private Pose m_pose;
 	private float m_speed;
@@ -50,6 +51,54 @@ public class LinearTranslationLoop implements Movable {
 
 	}
 
+	/**
+	 * The position and direction within the loop.
+	 */
+	public static final class State {
+
+		private final float m_x;
+		private final float m_y;
+		private final float m_heading;
+		private final boolean m_movePositive;
+		private final float m_posLimit;
+		private final float m_negLimit;
+
+		private State(LinearTranslationLoop _loop) {
+			synchronized (_loop.m_pose) {
+				m_x = _loop.m_pose.getX();
+				m_y = _loop.m_pose.getY();
+				m_heading = _loop.m_pose.getHeading();
+				m_movePositive = _loop.m_movePositive;
+				m_posLimit = _loop.m_posLimit;
+				m_negLimit = _loop.m_negLimit;
+			}
+		}
+	}
+
+	@Override
+	public State getState() {
+		return new State(this);
+	}
+
+	/**
+	 * Unlike {@link #setPose(Pose)} this keeps the limits of the loop from
+	 * when the state was captured.
+	 */
+	@Override
+	public void setState(State _state) {
+		synchronized (m_pose) {
+			m_pose = new Pose(_state.m_x, _state.m_y, _state.m_heading);
+			m_movePositive = _state.m_movePositive;
+			m_posLimit = _state.m_posLimit;
+			m_negLimit = _state.m_negLimit;
+		}
+	}
+
+	@Override
+	public float getLinearSpeed() {
+		return Math.abs(m_speed);
+	}
+
 	@Override
 	public boolean remove(Instant _now, Duration _stepInterval) {
 		return false;
@@ -69,7 +118,7 @@ public class LinearTranslationLoop implements Movable {
 				m_movePositive = true;
 			}
 
-			float durationSecs = _stepInterval.toMillis() / 1000f;
+			float durationSecs = _stepInterval.toNanos() / 1e9f;
 			float moveAmount = m_movePositive ? m_speed * durationSecs
 					: -m_speed * durationSecs;
 			m_pose.setLocation(m_pose.getX() + moveAmount, m_pose.getY());
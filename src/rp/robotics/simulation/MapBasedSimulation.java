@@ -1,20 +1,21 @@
 package rp.robotics.simulation;
 
+import java.awt.geom.Rectangle2D;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.Random;
 
 import lejos.geom.Line;
-import lejos.geom.Point;
 import lejos.robotics.RangeFinder;
 import lejos.robotics.RangeReadings;
+import lejos.robotics.RegulatedMotor;
 import lejos.robotics.localization.PoseProvider;
 import lejos.robotics.navigation.Pose;
 import rp.config.MobileRobotConfiguration;
-import rp.config.RangeFinderDescription;
 import rp.config.RangeScannerDescription;
 import rp.config.WheeledRobotConfiguration;
 import rp.geom.GeometryUtils;
@@ -25,12 +26,14 @@ import rp.robotics.MobileRobotWrapper;
 import rp.robotics.TouchSensorEvent;
 import rp.robotics.TouchSensorListener;
 import rp.robotics.mapping.LineMap;
-import rp.util.SensorUtils;
 
 /**
  * This combines a simulated robot with a map to create a simple simulation of
  * the robot in a 2D world. This class provides collision detection between a
  * single robot and the map and also supports limited sensing of the world.
+ * Collisions and sensing use the poses from the simulation's
+ * {@link WorldState}, so all robots are sensed as they were at the end of the
+ * same step.
  * 
  * 
  * @author Nick Hawes
@@ -41,46 +44,240 @@ public class MapBasedSimulation implements
 		Iterable<MobileRobotWrapper<? extends MobileRobot>> {
 
 	protected final LineMap m_map;
-	protected final ArrayList<MobileRobotWrapper<? extends MobileRobot>> m_robots = new ArrayList<>();
+
+	// answers collision and range queries against m_map
+	private final LineMapIndex m_mapIndex;
+
+	// Everything in the simulation is kept in copy-on-write arrays, which are
+	// replaced whole under m_registryLock when something is added, so the
+	// simulation thread, sensors and visualisations can iterate them without
+	// locking. Nothing is ever removed, so an index into one is valid in all
+	// later ones.
+	private final Object m_registryLock = new Object();
+	private volatile RobotEntry[] m_robots = new RobotEntry[0];
+	private volatile ObstacleEntry[] m_obstacles = new ObstacleEntry[0];
+	private volatile FootprintTouchPair[] m_touchSensors = new FootprintTouchPair[0];
+	private volatile RelativeRangeScanner[] m_rangers = new RelativeRangeScanner[0];
+	private volatile SimulatorListener[] m_simulatorListeners = new SimulatorListener[0];
 
 	private boolean m_running = false;
 
-	private ArrayList<FootprintTouchPair> m_touchSensors;
-	private ArrayList<SimulatorListener> m_simulatorListeners;
-	private ArrayList<DynamicObstacle> m_obstacles;
-	private ArrayList<RelativeRangeScanner> m_rangers;
+	// the footprints of the robots and obstacles in the world frame, as of
+	// the last published step, replaced rather than changed when the world
+	// state is published again
+	private final Object m_footprintLock = new Object();
+	private volatile WorldFootprints m_footprints = new WorldFootprints();
+	private long m_footprintCaptures = 0;
+
 	private final SimulationCore m_sim;
-	private final ExecutorService m_eventDispatchService = Executors
-			.newCachedThreadPool();
+
+	// where each robot was at the end of the last step collisions were
+	// checked in, which its footprint is swept from in the next, and how far
+	// it can move in a step and still be swept
+	private volatile Pose[] m_sweepStarts = new Pose[0];
+	private volatile double m_maxSweepDistance = 1;
+
+	/**
+	 * Contacts between robots and other robots or obstacles, see contactKey,
+	 * in an array which is reused from step to step.
+	 */
+	private static final class Contacts {
+		long[] keys = new long[16];
+		int count = 0;
+
+		void clear() {
+			count = 0;
+		}
+
+		void add(long _key) {
+			if (count == keys.length) {
+				keys = Arrays.copyOf(keys, count * 2);
+			}
+			keys[count++] = _key;
+		}
+
+		/**
+		 * Sort the keys, which must be done before looking for any.
+		 */
+		void sort() {
+			Arrays.sort(keys, 0, count);
+		}
+
+		boolean contains(long _key) {
+			return Arrays.binarySearch(keys, 0, count, _key) >= 0;
+		}
+	}
+
+	// the contacts in the last step, and those being found in this one, only
+	// used by the simulation thread
+	private Contacts m_contacts = new Contacts();
+	private Contacts m_nextContacts = new Contacts();
+
+	// the core only holds its restorables weakly
+	private final MapRestorable m_restorable = new MapRestorable();
+
+	// events are delivered in order for each robot, with a newer event about
+	// a contact replacing one which hasn't been delivered yet, but every
+	// touch sensor press delivered
+	private final EventDispatcher m_events = new EventDispatcher(
+			"simulation-events", Math.max(1,
+					Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+	// the time from each press to its listeners returning
+	private final LatencyHistogram m_touchResponseTimes = new LatencyHistogram(
+			"touch response");
 
 	private final boolean m_startOnFirstRobot;
 
+	/**
+	 * A robot in the simulation, with its pose as published in the world
+	 * state and its left and right wheels, or null if it doesn't have any.
+	 */
+	private static class RobotEntry {
+		final MobileRobotWrapper<? extends MobileRobot> wrapper;
+		final PoseProvider pose;
+		final RegulatedMotor[] wheels;
+
+		RobotEntry(MobileRobotWrapper<? extends MobileRobot> _wrapper,
+				PoseProvider _pose, RegulatedMotor[] _wheels) {
+			wrapper = _wrapper;
+			pose = _pose;
+			wheels = _wheels;
+		}
+	}
+
+	/**
+	 * An obstacle in the simulation, with its pose as published in the world
+	 * state.
+	 */
+	private static class ObstacleEntry {
+		final DynamicObstacle obstacle;
+		final PoseProvider pose;
+
+		ObstacleEntry(DynamicObstacle _obstacle, PoseProvider _pose) {
+			obstacle = _obstacle;
+			pose = _pose;
+		}
+	}
+
 	private class FootprintTouchPair {
-		final PoseProvider poser;
-		final Line[] footprint;
+		final int robotIndex;
+		final int sensorIndex;
 		final TouchSensorListener listener;
-		boolean triggered = false;
+		volatile boolean triggered = false;
+		// whether the sensor is pressed according to a replay, which is
+		// used instead of its contacts when set
+		volatile Boolean replayed = null;
 		final MobileRobot robot;
 
-		public FootprintTouchPair(MobileRobot _robot, Line[] _footprint,
-				PoseProvider _poser, TouchSensorListener _listener) {
+		public FootprintTouchPair(MobileRobot _robot, int _robotIndex,
+				int _sensorIndex, TouchSensorListener _listener) {
 			robot = _robot;
-			footprint = _footprint;
+			robotIndex = _robotIndex;
+			sensorIndex = _sensorIndex;
 			listener = _listener;
-			poser = _poser;
+		}
+	}
+
+	/**
+	 * The parts of the world which aren't restored by the steppables and
+	 * restorables in the simulation core.
+	 */
+	private static class MapState {
+		final Pose[] robotPoses;
+		final boolean[] triggered;
+		final Pose[] obstaclePoses;
+
+		MapState(Pose[] _robotPoses, boolean[] _triggered,
+				Pose[] _obstaclePoses) {
+			robotPoses = _robotPoses;
+			triggered = _triggered;
+			obstaclePoses = _obstaclePoses;
+		}
+	}
+
+	private class MapRestorable implements Restorable<MapState> {
+
+		@Override
+		public MapState getState() {
+
+			RobotEntry[] robots = m_robots;
+			Pose[] robotPoses = new Pose[robots.length];
+			for (int i = 0; i < robotPoses.length; i++) {
+				robotPoses[i] = copy(robots[i].wrapper.getRobot().getPose());
+			}
+
+			FootprintTouchPair[] touchSensors = m_touchSensors;
+			boolean[] triggered = new boolean[touchSensors.length];
+			for (int i = 0; i < triggered.length; i++) {
+				triggered[i] = touchSensors[i].triggered;
+			}
+
+			// restorable obstacles are restored along with the other
+			// steppables, this is for the rest
+			ObstacleEntry[] obstacles = m_obstacles;
+			Pose[] obstaclePoses = new Pose[obstacles.length];
+			for (int i = 0; i < obstaclePoses.length; i++) {
+				DynamicObstacle obstacle = obstacles[i].obstacle;
+				if (!(obstacle instanceof Restorable)) {
+					obstaclePoses[i] = copy(obstacle.getPose());
+				}
+			}
+
+			return new MapState(robotPoses, triggered, obstaclePoses);
+		}
+
+		@Override
+		public void setState(MapState _state) {
+
+			RobotEntry[] robots = m_robots;
+			for (int i = 0; i < _state.robotPoses.length; i++) {
+				robots[i].wrapper.getRobot().setPose(copy(_state.robotPoses[i]));
+			}
+
+			// the robots jumped here, so don't sweep them from where they were
+			m_sweepStarts = new Pose[0];
+
+			FootprintTouchPair[] touchSensors = m_touchSensors;
+			for (int i = 0; i < touchSensors.length; i++) {
+				// sensors added since are treated as not pressed
+				touchSensors[i].triggered = i < _state.triggered.length
+						&& _state.triggered[i];
+			}
+
+			ObstacleEntry[] obstacles = m_obstacles;
+			for (int i = 0; i < _state.obstaclePoses.length; i++) {
+				if (_state.obstaclePoses[i] != null) {
+					obstacles[i].obstacle.setPose(copy(_state.obstaclePoses[i]));
+				}
+			}
+		}
+
+		private Pose copy(Pose _pose) {
+			return _pose == null ? null : new Pose(_pose.getX(),
+					_pose.getY(), _pose.getHeading());
 		}
 	}
 
 	private class RelativeRangeScanner implements LocalisedRangeScanner {
 		final PoseProvider poser;
 		final RangeScannerDescription scannerDesc;
-		final MobileRobotWrapper<?> robotWrapper;
+		final int robotIndex;
+
+		// the readings last taken, and the capture of the footprints they
+		// were taken from
+		volatile RangeReadings lastReadings = null;
+		private long m_lastCapture = -1;
+
+		// readings from a replay, which are given instead of casting rays
+		// when set
+		volatile RangeReadings replayed = null;
 
 		public RelativeRangeScanner(PoseProvider _poser,
-				RangeScannerDescription _desc, MobileRobotWrapper<?> _wrapper) {
+				RangeScannerDescription _desc, int _robotIndex) {
 			poser = _poser;
 			scannerDesc = _desc;
-			robotWrapper = _wrapper;
+			robotIndex = _robotIndex;
 		}
 
 		@Override
@@ -103,16 +300,42 @@ public class MapBasedSimulation implements
 					"setPose is unimplemented for this ranger");
 		}
 
+		/**
+		 * Gets the readings from the poses published in the current step.
+		 * These are only taken once per step, the first time they're asked
+		 * for, and then shared by everything else which asks for them in the
+		 * same step, so they must not be changed.
+		 */
 		@Override
 		public RangeReadings getRangeValues() {
 
-			RangeReadings obstacleReadings = takeReadingsToNonMapThings(
-					poser.getPose(), scannerDesc, robotWrapper);
+			RangeReadings replayedReadings = replayed;
+			if (replayedReadings != null) {
+				lastReadings = replayedReadings;
+				return replayedReadings;
+			}
+
+			WorldFootprints footprints = getWorldFootprints();
 
-			RangeReadings mapReadings = m_map.takeReadings(poser.getPose(),
-					scannerDesc);
+			synchronized (this) {
+				if (lastReadings != null
+						&& m_lastCapture == footprints.getCapture()) {
+					return lastReadings;
+				}
 
-			return SensorUtils.getMinimumValues(obstacleReadings, mapReadings);
+				float[] ranges = new float[scannerDesc.getReadingAngles().length];
+				castRays(footprints, GeometryUtils.transform(
+						footprints.getPose(robotIndex),
+						scannerDesc.getScannerPose()),
+						scannerDesc.getReadingAngles(),
+						scannerDesc.getMaxRange(), robotIndex, ranges);
+
+				RangeReadings readings = LineMapIndex.toReadings(ranges,
+						scannerDesc);
+				lastReadings = readings;
+				m_lastCapture = footprints.getCapture();
+				return readings;
+			}
 		}
 
 		@Override
@@ -139,9 +362,58 @@ public class MapBasedSimulation implements
 	}
 
 	public MapBasedSimulation(LineMap _map, boolean _startSimOnFirstRobot) {
+		this(_map, _startSimOnFirstRobot, false);
+	}
+
+	/**
+	 * Create a simulation which optionally runs in virtual time, i.e. as fast
+	 * as possible rather than in step with the wall clock.
+	 * 
+	 * @param _map
+	 * @param _startSimOnFirstRobot
+	 * @param _virtualTime
+	 */
+	public MapBasedSimulation(LineMap _map, boolean _startSimOnFirstRobot,
+			boolean _virtualTime) {
+		this(_map, _startSimOnFirstRobot, _virtualTime,
+				SimulationCore.DEFAULT_RATE);
+	}
+
+	/**
+	 * Create a simulation which runs at the given rate, optionally in virtual
+	 * time.
+	 * 
+	 * @param _map
+	 * @param _startSimOnFirstRobot
+	 * @param _virtualTime
+	 * @param _rate
+	 *            The number of simulation steps per second.
+	 */
+	public MapBasedSimulation(LineMap _map, boolean _startSimOnFirstRobot,
+			boolean _virtualTime, double _rate) {
+		this(_map, _startSimOnFirstRobot, _virtualTime, _rate,
+				SimulationScheduler.getShared());
+	}
+
+	/**
+	 * Create a simulation which runs at the given rate on the given scheduler
+	 * rather than the shared one, optionally in virtual time.
+	 * 
+	 * @param _map
+	 * @param _startSimOnFirstRobot
+	 * @param _virtualTime
+	 * @param _rate
+	 *            The number of simulation steps per second.
+	 * @param _scheduler
+	 */
+	public MapBasedSimulation(LineMap _map, boolean _startSimOnFirstRobot,
+			boolean _virtualTime, double _rate, SimulationScheduler _scheduler) {
 		m_map = _map;
-		m_sim = SimulationCore.createSimulationCore(false);
+		m_mapIndex = _map == null ? null : LineMapIndex.forMap(_map);
+		m_sim = SimulationCore.createSimulationCore(false, _virtualTime, _rate,
+				_scheduler);
 		m_startOnFirstRobot = _startSimOnFirstRobot;
+		m_sim.addRestorable(m_restorable);
 	}
 
 	public MapBasedSimulation(LineMap _map) {
@@ -149,10 +421,9 @@ public class MapBasedSimulation implements
 	}
 
 	public void addSimulatorListener(SimulatorListener _listener) {
-		if (m_simulatorListeners == null) {
-			m_simulatorListeners = new ArrayList<SimulatorListener>();
+		synchronized (m_registryLock) {
+			m_simulatorListeners = append(m_simulatorListeners, _listener);
 		}
-		m_simulatorListeners.add(_listener);
 	}
 
 	public void start() {
@@ -162,238 +433,416 @@ public class MapBasedSimulation implements
 			m_sim.start();
 
 			m_running = true;
-			m_sim.addSteppable(new SimulationSteppable() {
+			m_sim.addSteppable(new EventDrivenSteppable() {
 
 				@Override
 				public void step(Instant _now, Duration _stepInterval) {
-
-					if (m_touchSensors != null) {
-						synchronized (m_touchSensors) {
-							for (FootprintTouchPair sensor : m_touchSensors) {
-								if (isInCollision(sensor.poser.getPose(),
-										sensor.footprint)) {
-									if (!sensor.triggered) {
-										sensor.triggered = true;
-
-										long start = System.currentTimeMillis();
-
-										// Events need to go in a separate
-										// thread to prevent them blocking the
-										// simulation if someone writes bad code
-										// (or violates my shaky assumptions)
-										m_eventDispatchService.execute(() -> {
-											sensor.listener
-													.sensorPressed(new TouchSensorEvent(
-															100, 3));
-											long responseTime = System
-													.currentTimeMillis()
-													- start;
-											callSimulationListenersSensorPressed(
-													sensor.robot, responseTime);
-										});
-
-									}
-								} else if (sensor.triggered) {
-									sensor.triggered = false;
-								}
-							}
-						}
-					}
-
-					synchronized (m_robots) {
-						for (MobileRobotWrapper robot : m_robots) {
-
-							if (isInCollision(robot.getRobot())) {
-								// System.out.println("In collision");
-								robot.getRobot().startCollision();
-							}
-						}
-					}
+					collide(_now, _stepInterval);
 				}
 
 				@Override
 				public boolean remove(Instant _now, Duration _stepInterval) {
 					return !m_running;
 				}
-			});
+
+				/**
+				 * Collisions and contacts only change when something moves,
+				 * and anything moving keeps the simulation stepping.
+				 */
+				@Override
+				public Instant getNextEventTime(Instant _now) {
+					return null;
+				}
+			}, SimulationPhase.COLLIDE);
 		}
 	}
 
 	/**
-	 * Calculate the range from the robot to the nearest dynamic obstacle.
-	 * Copied from RPLineMap.
+	 * Get the footprints of the robots, obstacles and touch sensors in the
+	 * world frame, at the poses last published in the simulation's
+	 * {@link WorldState}. These are transformed the first time they're asked
+	 * for after each publication, or after something has been added.
 	 * 
-	 * @param pose
-	 *            the pose of the robot
-	 * @param _robotWrapper
-	 * @return the range or -1 if not in range
+	 * @return
 	 */
-	private float rangeToObstacle(Pose pose, MobileRobotWrapper<?> _robotWrapper) {
-
-		float largestDimension = Math.max(m_map.getBoundingRect().width,
-				m_map.getBoundingRect().width);
-
-		Line l = new Line(pose.getX(), pose.getY(), pose.getX()
-				+ largestDimension
-				* (float) Math.cos(Math.toRadians(pose.getHeading())),
-				pose.getY() + largestDimension
-						* (float) Math.sin(Math.toRadians(pose.getHeading())));
-		Line rl = null;
-
-		if (m_obstacles != null) {
-
-			for (DynamicObstacle obstacle : m_obstacles) {
+	public WorldFootprints getWorldFootprints() {
+		WorldState.Frame frame = m_sim.getWorldState().getFrame();
+		RobotEntry[] robots = m_robots;
+		ObstacleEntry[] obstacles = m_obstacles;
+
+		WorldFootprints footprints = m_footprints;
+		if (isCurrent(footprints, frame, robots, obstacles)) {
+			return footprints;
+		}
 
-				Line[] footprint = new Line[obstacle.getFootprint().length];
+		synchronized (m_footprintLock) {
+			// another thread may have captured them while this one waited
+			footprints = m_footprints;
+			if (isCurrent(footprints, frame, robots, obstacles)) {
+				return footprints;
+			}
 
-				// transform footprint to it's pose location
-				GeometryUtils.transform(obstacle.getPose(),
-						obstacle.getFootprint(), footprint);
+			Pose[] poses = new Pose[robots.length + obstacles.length];
+			Line[][] bodies = new Line[poses.length][];
+			List<List<Line[]>> touchSensors = new ArrayList<>(robots.length);
+			for (int r = 0; r < robots.length; r++) {
+				MobileRobot robot = robots[r].wrapper.getRobot();
+				poses[r] = frame.getPose(robots[r].pose);
+				bodies[r] = robot.getFootprint();
+				touchSensors.add(robot.getTouchSensors());
+			}
+			for (int o = 0; o < obstacles.length; o++) {
+				poses[robots.length + o] = frame.getPose(obstacles[o].pose);
+				bodies[robots.length + o] = obstacles[o].obstacle
+						.getFootprint();
+			}
 
-				for (int i = 0; i < footprint.length; i++) {
+			footprints = new WorldFootprints(frame.getTick(),
+					frame.getVersion(), ++m_footprintCaptures, poses, bodies,
+					touchSensors, robots.length, m_map == null ? new Rectangle2D.Float()
+							: m_map.getBoundingRect());
+			m_footprints = footprints;
+			return footprints;
+		}
+	}
 
-					Line target = footprint[i];
+	private static boolean isCurrent(WorldFootprints _footprints,
+			WorldState.Frame _frame, RobotEntry[] _robots,
+			ObstacleEntry[] _obstacles) {
+		return _footprints.getWorldVersion() == _frame.getVersion()
+				&& _footprints.getRobotCount() == _robots.length
+				&& _footprints.getObstacleCount() == _obstacles.length;
+	}
 
-					Point p = LineMap.intersectsAt(target, l);
+	/**
+	 * Cast rays from the given pose at each of the given angles against the
+	 * map, the obstacles and the robots. Each ray is cast against the map
+	 * first, then only tests the footprints whose boxes it crosses before it
+	 * reaches the map, see {@link FootprintBroadPhase}.
+	 * 
+	 * @param _pose
+	 *            Where to cast the rays from, e.g. the pose of a range
+	 *            scanner.
+	 * @param _angles
+	 *            The angles of the rays relative to the heading of _pose, in
+	 *            degrees.
+	 * @param _maxRange
+	 *            How far to look.
+	 * @param _ignore
+	 *            A robot the rays pass through, e.g. the one the scanner is
+	 *            on, or null.
+	 * @param _ranges
+	 *            Written with the distance along each ray to the nearest
+	 *            thing it hits, or {@link Float#POSITIVE_INFINITY} if nothing
+	 *            is within _maxRange.
+	 */
+	public void castRays(Pose _pose, float[] _angles, float _maxRange,
+			MobileRobotWrapper<?> _ignore, float[] _ranges) {
+		castRays(getWorldFootprints(), _pose, _angles, _maxRange,
+				indexOf(_ignore), _ranges);
+	}
 
-					if (p == null) {
-						continue;
-					}
+	private void castRays(WorldFootprints _footprints, Pose _pose,
+			float[] _angles, float _maxRange, int _ignore, float[] _ranges) {
 
-					Line tl = new Line(pose.getX(), pose.getY(), p.x, p.y);
+		if (m_mapIndex != null) {
+			m_mapIndex.castRays(_pose, _angles, _maxRange, _ranges);
+		} else {
+			Arrays.fill(_ranges, 0, _angles.length, Float.POSITIVE_INFINITY);
+		}
 
-					// If the range line intersects more than one map line
-					// then take the shortest distance.
-					if (rl == null || tl.length() < rl.length()) {
-						rl = tl;
-					}
+		double x = _pose.getX();
+		double y = _pose.getY();
+		float[] segments = _footprints.getSegments();
+		FootprintBroadPhase broadPhase = _footprints.getBroadPhase();
+
+		for (int i = 0; i < _angles.length; i++) {
+			// each ray only needs to go as far as the map
+			double length = Math.min(_ranges[i], _maxRange);
+			double heading = Math.toRadians(_pose.getHeading() + _angles[i]);
+			double dx = length * Math.cos(heading);
+			double dy = length * Math.sin(heading);
+
+			double t = broadPhase.nearest(x, y, dx, dy, _ignore, body -> {
+				// If the ray hits more than one line then take the
+				// shortest distance.
+				double nearest = Double.POSITIVE_INFINITY;
+				for (int s = _footprints.getSegmentStart(body) * 4; s < _footprints
+						.getSegmentStart(body + 1) * 4; s += 4) {
+					nearest = Math.min(nearest, LineMapIndex.intersect(x, y,
+							dx, dy, segments[s], segments[s + 1],
+							segments[s + 2], segments[s + 3]));
 				}
-
+				return nearest;
+			});
+			if (t <= 1) {
+				_ranges[i] = (float) (t * length);
 			}
 		}
+	}
 
-		// System.out.println("to obstacle: " + rl);
-
-		for (MobileRobotWrapper<? extends MobileRobot> wrapper : m_robots) {
-
-			if (!wrapper.equals(_robotWrapper)) {
-
-				Line[] footprint = new Line[wrapper.getRobot().getFootprint().length];
-
-				// transform footprint to it's pose location
-				GeometryUtils.transform(wrapper.getRobot().getPose(), wrapper
-						.getRobot().getFootprint(), footprint);
-
-				for (int i = 0; i < footprint.length; i++) {
-
-					Line target = footprint[i];
-
-					Point p = LineMap.intersectsAt(target, l);
-
-					if (p == null) {
-						continue;
-					}
+	/**
+	 * Check the touch sensors and robots against the map. Each footprint is
+	 * swept from where it was at the end of the last step to where it is now,
+	 * so nothing is missed by something which moves a long way in one step,
+	 * and a touch sensor is pressed as of when it first touched something
+	 * rather than the end of the step. A robot which passed through a line of
+	 * the map during the step starts a collision, just as one which ends the
+	 * step touching a line does.
+	 * 
+	 * @param _now
+	 *            The simulated time at the end of the step.
+	 * @param _stepInterval
+	 *            The length of the step the footprints moved in.
+	 */
+	private void collide(Instant _now, Duration _stepInterval) {
+
+		WorldFootprints footprints = getWorldFootprints();
+		float[] segments = footprints.getSegments();
+		int robotCount = footprints.getRobotCount();
+
+		Pose[] starts = Arrays.copyOf(m_sweepStarts, robotCount);
+		Pose[] ends = new Pose[robotCount];
+		double maxSweep = m_maxSweepDistance;
+		for (int r = 0; r < robotCount; r++) {
+			ends[r] = footprints.getPose(r);
+			if (starts[r] == null
+					|| starts[r].distanceTo(ends[r].getLocation()) > maxSweep) {
+				// just added, restored or moved without being driven, so
+				// treated as having been here all along
+				starts[r] = ends[r];
+			}
+		}
 
-					Line tl = new Line(pose.getX(), pose.getY(), p.x, p.y);
+		for (FootprintTouchPair sensor : m_touchSensors) {
+			if (sensor.robotIndex >= robotCount) {
+				// added since the footprints were captured
+				continue;
+			}
+			int start = footprints.getTouchSegmentStart(sensor.robotIndex,
+					sensor.sensorIndex);
+			int end = footprints.getTouchSegmentEnd(sensor.robotIndex,
+					sensor.sensorIndex);
+			Boolean replayed = sensor.replayed;
+			double contact;
+			if (replayed != null) {
+				// pressed as of the end of the step, as that's all a replay
+				// knows
+				contact = replayed ? 1 : -1;
+			} else {
+				contact = m_mapIndex == null ? -1 : m_mapIndex.firstContact(
+						segments, start, end, starts[sensor.robotIndex],
+						ends[sensor.robotIndex]);
+			}
+			if (contact < 0 && replayed == null
+					&& touchesOthers(footprints, sensor.robotIndex, start, end)) {
+				// touching another robot or an obstacle as of the end of the
+				// step
+				contact = 1;
+			}
+			if (contact >= 0) {
+				if (!sensor.triggered) {
+					sensor.triggered = true;
+
+					// the sensor was pressed part way through the step, which
+					// in real time was this long ago
+					long sinceContact = Math.round((1 - contact)
+							* _stepInterval.toNanos());
+					Instant when = _now.minusNanos(sinceContact);
+					long late = m_sim.isVirtualTime() ? 0 : sinceContact;
+					long pressed = System.currentTimeMillis() - late / 1000000;
+					long pressedNanos = System.nanoTime() - late;
+
+					// Events need to go in a separate thread to prevent them
+					// blocking the simulation if someone writes bad code (or
+					// violates my shaky assumptions). Every press is delivered,
+					// as a listener may count them or time its response to
+					// each, and a sensor can only be pressed again after
+					// being released in a later step.
+					m_events.dispatch(sensor.robot, null, () -> {
+						sensor.listener.sensorPressed(new TouchSensorEvent(100,
+								3));
+						m_touchResponseTimes.record(System.nanoTime()
+								- pressedNanos);
+						long responseTime = System.currentTimeMillis()
+								- pressed;
+						callSimulationListenersSensorPressed(sensor.robot,
+								when, responseTime);
+					});
 
-					// If the range line intersects more than one map line
-					// then take the shortest distance.
-					if (rl == null || tl.length() < rl.length()) {
-						rl = tl;
-					}
 				}
-
+			} else if (sensor.triggered) {
+				sensor.triggered = false;
 			}
+		}
 
+		RobotEntry[] robots = m_robots;
+		for (int i = 0; i < robotCount && m_mapIndex != null; i++) {
+			int first = footprints.getSegmentStart(i);
+			int last = footprints.getSegmentStart(i + 1);
+			if (m_mapIndex.intersectsWith(segments, first, last)) {
+				// System.out.println("In collision");
+				robots[i].wrapper.getRobot().startCollision();
+			} else {
+				double contact = m_mapIndex.firstContact(segments, first,
+						last, starts[i], ends[i]);
+				if (contact > 0) {
+					// passed through something during the step
+					robots[i].wrapper.getRobot().startCollision();
+				}
+			}
 		}
 
-		return (rl == null ? RangeFinderDescription.OUT_OF_RANGE_VALUE : rl
-				.length());
+		collideBodies(footprints, robots);
 
+		m_sweepStarts = ends;
 	}
 
 	/**
-	 * Obtain range readings from obstacles at the predefined angles relative to
-	 * the robot
-	 * 
-	 * @param _robotWrapper
+	 * Check the robots against each other and against the obstacles, as of
+	 * the end of the step. The broad phase of the footprints finds the
+	 * bodies near each robot, so this stays close to linear in the number of
+	 * robots. Robots in contact with something start a collision, and the
+	 * listeners are told about each contact when it starts.
 	 */
-	private RangeReadings takeReadingsToNonMapThings(Pose _robotPose,
-			RangeScannerDescription _ranger, MobileRobotWrapper<?> _robotWrapper) {
-
-		float[] readingAngles = _ranger.getReadingAngles();
-
-		RangeReadings readings = new RangeReadings(readingAngles.length);
-
-		// the pose to use for taking range readings
-		Pose readingPose = GeometryUtils.transform(_robotPose,
-				_ranger.getScannerPose());
-
-		float readingPoseHeading = readingPose.getHeading();
-
-		for (int i = 0; i < readingAngles.length; i++) {
-
-			// rotate the reading pose to the angle of the sensor
-			readingPose.setHeading(readingPoseHeading + readingAngles[i]);
-
-			// and take a reading from there
-			float obsRange = rangeToObstacle(readingPose, _robotWrapper);
-
-			// System.out.println("obsRange: " + obsRange);
-			// System.out.println(_ranger.getMaxRange());
-			// System.out.println(_ranger.getMinRange());
-
-			// bound reading to configured parameters
-			if (obsRange > _ranger.getMaxRange()) {
-				obsRange = RangeFinderDescription.OUT_OF_RANGE_VALUE;
-			} else if (obsRange < _ranger.getMinRange()) {
-				obsRange = 0;
+	private void collideBodies(WorldFootprints _footprints,
+			RobotEntry[] _robots) {
+
+		int robotCount = _footprints.getRobotCount();
+		FootprintBroadPhase broadPhase = _footprints.getBroadPhase();
+		float[] box = new float[4];
+
+		Contacts contacts = m_nextContacts;
+		contacts.clear();
+		for (int i = 0; i < robotCount; i++) {
+			int robot = i;
+			int first = _footprints.getSegmentStart(robot);
+			int last = _footprints.getSegmentStart(robot + 1);
+			_footprints.getBounds(first, last, box);
+			broadPhase.overlapping(box[0], box[1], box[2], box[3], robot,
+					body -> {
+						if (body < robot) {
+							// checked from the other robot
+							return;
+						}
+						if (_footprints.overlaps(first, last,
+								_footprints.getSegmentStart(body),
+								_footprints.getSegmentStart(body + 1))) {
+							// obstacles are keyed by -1 minus their index
+							contacts.add(contactKey(robot,
+									body < robotCount ? body : robotCount
+											- body - 1));
+						}
+					});
+		}
+		contacts.sort();
+
+		ObstacleEntry[] obstacles = m_obstacles;
+		for (int c = 0; c < contacts.count; c++) {
+			long key = contacts.keys[c];
+			int robot = (int) (key >> 32);
+			int other = (int) key;
+			MobileRobot mobileRobot = _robots[robot].wrapper.getRobot();
+			mobileRobot.startCollision();
+			if (other >= 0) {
+				_robots[other].wrapper.getRobot().startCollision();
 			}
 
-			readings.setRange(i, readingAngles[i], obsRange);
-
-			// System.out.println(mapRange);
-
+			if (!m_contacts.contains(key)) {
+				if (other >= 0) {
+					MobileRobot otherRobot = _robots[other].wrapper.getRobot();
+					m_events.dispatch(mobileRobot, key, () -> {
+						for (SimulatorListener listener : m_simulatorListeners) {
+							listener.robotsCollided(mobileRobot, otherRobot);
+						}
+					});
+				} else {
+					DynamicObstacle obstacle = obstacles[-other - 1].obstacle;
+					m_events.dispatch(mobileRobot, key, () -> {
+						for (SimulatorListener listener : m_simulatorListeners) {
+							listener.obstacleHit(mobileRobot, obstacle);
+						}
+					});
+				}
+			}
 		}
 
-		return readings;
-
+		m_nextContacts = m_contacts;
+		m_contacts = contacts;
 	}
 
-	private void callSimulationListenersSensorPressed(MobileRobot _robot,
-			long _responseTime) {
-		if (m_simulatorListeners != null) {
-			synchronized (m_simulatorListeners) {
-				for (SimulatorListener listener : m_simulatorListeners) {
-					listener.touchSensorPressed(_robot, _responseTime);
-				}
-			}
-		}
+	/**
+	 * A key for a contact between a robot and another robot, or an obstacle
+	 * given as -1 minus its index.
+	 */
+	private static long contactKey(int _robot, int _other) {
+		return ((long) _robot << 32) | (_other & 0xffffffffL);
 	}
 
-	private boolean isInCollision(Pose _pose, Line[] _footprint) {
-		Line[] m_footprint = new Line[_footprint.length];
-		// transform robot footprint to it's pose location
-		GeometryUtils.transform(_pose, _footprint, m_footprint);
-		// check for footprint intersection with map
-		return m_map.intersectsWith(m_footprint);
+	/**
+	 * Whether the given segments of a robot, e.g. a touch sensor, touch any
+	 * other robot or obstacle as of the end of the step, either by crossing
+	 * its footprint or by being inside it.
+	 */
+	private static boolean touchesOthers(WorldFootprints _footprints,
+			int _robot, int _from, int _to) {
+		float[] box = new float[4];
+		_footprints.getBounds(_from, _to, box);
+		boolean[] touching = { false };
+		_footprints.getBroadPhase().overlapping(box[0], box[1], box[2],
+				box[3], _robot, body -> {
+					if (!touching[0]) {
+						int start = _footprints.getSegmentStart(body);
+						int end = _footprints.getSegmentStart(body + 1);
+						touching[0] = _footprints.intersects(_from, _to, start,
+								end) || _footprints.contains(start, end, _from);
+					}
+				});
+		return touching[0];
+	}
 
+	/**
+	 * Set how far a robot can move in one step and still be swept from where
+	 * it was to where it is when checking for collisions. Anything which moves
+	 * further, e.g. because its pose was set, is treated as having jumped
+	 * there.
+	 * 
+	 * @param _distance
+	 *            In metres.
+	 */
+	public void setMaxSweepDistance(double _distance) {
+		if (_distance < 0) {
+			throw new IllegalArgumentException(
+					"Maximum sweep distance must be >= 0");
+		}
+		m_maxSweepDistance = _distance;
 	}
 
-	private boolean isInCollision(MobileRobot _robot) {
-		Line[] m_footprint = new Line[_robot.getFootprint().length];
-		// transform robot footprint to it's pose location
-		GeometryUtils.transform(_robot.getPose(), _robot.getFootprint(),
-				m_footprint);
-		// check for footprint intersection with map
-		return m_map.intersectsWith(m_footprint);
+	public double getMaxSweepDistance() {
+		return m_maxSweepDistance;
+	}
 
+	private void callSimulationListenersSensorPressed(MobileRobot _robot,
+			Instant _when, long _responseTime) {
+		for (SimulatorListener listener : m_simulatorListeners) {
+			listener.touchSensorPressed(_robot, _when, _responseTime);
+		}
 	}
 
 	public void stop() {
 		m_running = false;
 	}
 
+	/**
+	 * Stop the simulation and release its resources. After this the
+	 * simulation cannot be restarted.
+	 */
+	public void shutdown() {
+		stop();
+		m_sim.shutdown();
+		m_events.shutdown();
+	}
+
 	/**
 	 * Add a robot to the simulation with the given configuration at the given
 	 * pose.
@@ -403,7 +852,8 @@ public class MapBasedSimulation implements
 	public MobileRobotWrapper<DifferentialDriveRobot> addRobot(
 			WheeledRobotConfiguration _config, Pose _start) {
 		DifferentialDriveRobot robot = new DifferentialDriveRobot(_config);
-		return addRobot(robot, _start);
+		return addRobot(robot, _start, new RegulatedMotor[] {
+				_config.getLeftWheel(), _config.getRightWheel() });
 	}
 
 	/**
@@ -416,7 +866,7 @@ public class MapBasedSimulation implements
 			MobileRobotConfiguration _config, Pose _start) {
 		MovableRobot robot = new MovableRobot(_config, new MovablePilot(_start,
 				getSimulationCore()));
-		return addRobot(robot, _start);
+		return addRobot(robot, _start, null);
 	}
 
 	// public MobileRobotWrapper<DifferentialDriveRobot> addRobot(
@@ -425,54 +875,72 @@ public class MapBasedSimulation implements
 	// return addRobot(robot, _start);
 	// }
 
-	private <R extends MobileRobot> MobileRobotWrapper<R> addRobot(R _robot,
-			Pose _start) {
+	<R extends MobileRobot> MobileRobotWrapper<R> addRobot(R _robot,
+			Pose _start, RegulatedMotor[] _wheels) {
 
 		MobileRobotWrapper<R> wrapper = new MobileRobotWrapper<>(_robot);
 		_robot.setPose(_start);
-		synchronized (m_robots) {
-			m_robots.add(wrapper);
+		boolean first;
+		synchronized (m_registryLock) {
+			m_robots = append(m_robots, new RobotEntry(wrapper, m_sim
+					.getWorldState().register(_robot), _wheels));
+			first = m_robots.length == 1;
 		}
 
 		// if the first robot was added, the start sim running
-		if (m_robots.size() == 1 && m_startOnFirstRobot) {
+		if (first && m_startOnFirstRobot) {
 			start();
 		}
 
 		return wrapper;
 	}
 
+	/**
+	 * Copy the given array with the given item added to the end.
+	 */
+	private static <T> T[] append(T[] _array, T _item) {
+		T[] appended = Arrays.copyOf(_array, _array.length + 1);
+		appended[_array.length] = _item;
+		return appended;
+	}
+
+	/**
+	 * The index of the given robot in the order it was added, or -1 if it
+	 * isn't part of the simulation.
+	 */
+	private int indexOf(MobileRobotWrapper<?> _robot) {
+		RobotEntry[] robots = m_robots;
+		for (int r = 0; r < robots.length; r++) {
+			if (robots[r].wrapper.equals(_robot)) {
+				return r;
+			}
+		}
+		return -1;
+	}
+
 	public void addTouchSensorListener(MobileRobotWrapper<?> _robot,
 			TouchSensorListener _listener, int _sensorIndex) {
-		for (MobileRobotWrapper<?> robot : m_robots) {
-			if (robot.equals(_robot)) {
+		int r = indexOf(_robot);
+		if (r < 0) {
+			throw new IllegalArgumentException(
+					"Robot is not part of simulation");
+		}
 
-				if (robot.getRobot().getTouchSensors() == null) {
-					throw new NullPointerException(
-							"Robot has no touch sensors in description");
-				}
+		MobileRobot robot = m_robots[r].wrapper.getRobot();
 
-				if (_sensorIndex >= robot.getRobot().getTouchSensors().size()) {
-					throw new IndexOutOfBoundsException(
-							"Sensor index is out of bounds");
-				} else {
-					if (m_touchSensors == null) {
-						m_touchSensors = new ArrayList<MapBasedSimulation.FootprintTouchPair>(
-								1);
-					}
-					synchronized (m_touchSensors) {
-						m_touchSensors
-								.add(new FootprintTouchPair(robot.getRobot(),
-										robot.getRobot().getTouchSensors()
-												.get(_sensorIndex), robot
-												.getRobot(), _listener));
-					}
-					return;
-				}
+		if (robot.getTouchSensors() == null) {
+			throw new NullPointerException(
+					"Robot has no touch sensors in description");
+		}
 
-			}
+		if (_sensorIndex >= robot.getTouchSensors().size()) {
+			throw new IndexOutOfBoundsException("Sensor index is out of bounds");
+		}
+
+		synchronized (m_registryLock) {
+			m_touchSensors = append(m_touchSensors, new FootprintTouchPair(
+					robot, r, _sensorIndex, _listener));
 		}
-		throw new IllegalArgumentException("Robot is not part of simulation");
 	}
 
 	/*
@@ -484,12 +952,10 @@ public class MapBasedSimulation implements
 	}
 
 	public void addObstacle(DynamicObstacle _obstacle) {
-		if (m_obstacles == null) {
-			m_obstacles = new ArrayList<>();
-
+		synchronized (m_registryLock) {
+			m_obstacles = append(m_obstacles, new ObstacleEntry(_obstacle,
+					m_sim.getWorldState().register(_obstacle)));
 		}
-
-		m_obstacles.add(_obstacle);
 		getSimulationCore().addSteppable(_obstacle);
 	}
 
@@ -499,60 +965,295 @@ public class MapBasedSimulation implements
 
 	public LocalisedRangeScanner getRanger(MobileRobotWrapper<?> _robot,
 			int _sensorIndex) {
-		for (MobileRobotWrapper<?> wrapper : m_robots) {
-
-			if (wrapper.equals(_robot)) {
-
-				MobileRobot robot = wrapper.getRobot();
-
-				if (robot.getRangeScanners() == null) {
-					throw new NullPointerException(
-							"Robot has no range scanners in description");
-				}
-				if (_sensorIndex >= robot.getRangeScanners().size()) {
-					throw new IndexOutOfBoundsException(
-							"Sensor index is out of bounds");
-				} else {
-					if (m_rangers == null) {
-						m_rangers = new ArrayList<RelativeRangeScanner>(1);
-					}
+		int r = indexOf(_robot);
+		if (r < 0) {
+			throw new IllegalArgumentException(
+					"Robot is not part of simulation");
+		}
 
-					RelativeRangeScanner ranger = new RelativeRangeScanner(
-							robot, robot.getRangeScanners().get(_sensorIndex),
-							wrapper);
-					m_rangers.add(ranger);
-					return ranger;
+		MobileRobot robot = m_robots[r].wrapper.getRobot();
 
-				}
+		if (robot.getRangeScanners() == null) {
+			throw new NullPointerException(
+					"Robot has no range scanners in description");
+		}
+		if (_sensorIndex >= robot.getRangeScanners().size()) {
+			throw new IndexOutOfBoundsException("Sensor index is out of bounds");
+		}
 
-			}
+		RelativeRangeScanner ranger = new RelativeRangeScanner(
+				m_robots[r].pose, robot.getRangeScanners().get(_sensorIndex), r);
+		synchronized (m_registryLock) {
+			m_rangers = append(m_rangers, ranger);
 		}
-		throw new IllegalArgumentException("Robot is not part of simulation");
+		return ranger;
 	}
 
 	public LineMap getMap() {
 		return m_map;
 	}
 
+	/**
+	 * Iterates over the robots in the simulation when this is called.
+	 */
 	@Override
 	public Iterator<MobileRobotWrapper<? extends MobileRobot>> iterator() {
-		return m_robots.iterator();
+		return getRobots().iterator();
 	}
 
+	/**
+	 * 
+	 * @return A copy of the robots currently in the simulation, in the order
+	 *         they were added.
+	 */
 	public ArrayList<MobileRobotWrapper<? extends MobileRobot>> getRobots() {
-		return m_robots;
+		RobotEntry[] robots = m_robots;
+		ArrayList<MobileRobotWrapper<? extends MobileRobot>> copy = new ArrayList<>(
+				robots.length);
+		for (RobotEntry robot : robots) {
+			copy.add(robot.wrapper);
+		}
+		return copy;
 	}
 
+	/**
+	 * 
+	 * @return A copy of the obstacles currently in the simulation, in the
+	 *         order they were added, or null if none have been.
+	 */
 	public ArrayList<DynamicObstacle> getObstacles() {
-		return m_obstacles;
+		ObstacleEntry[] obstacles = m_obstacles;
+		if (obstacles.length == 0) {
+			return null;
+		}
+		ArrayList<DynamicObstacle> copy = new ArrayList<>(obstacles.length);
+		for (ObstacleEntry obstacle : obstacles) {
+			copy.add(obstacle.obstacle);
+		}
+		return copy;
 	}
 
+	/**
+	 * 
+	 * @return A copy of the rangers created so far, in the order they were
+	 *         created, or null if none have been.
+	 */
 	public ArrayList<RelativeRangeScanner> getRangers() {
-		return m_rangers;
+		RelativeRangeScanner[] rangers = m_rangers;
+		return rangers.length == 0 ? null : new ArrayList<>(
+				Arrays.asList(rangers));
 	}
 
 	public SimulationCore getSimulationCore() {
 		return m_sim;
 	}
 
+	/**
+	 * The time events, i.e. touch sensor presses and collisions, wait between
+	 * being detected and being delivered to their listeners.
+	 * 
+	 * @return
+	 */
+	public LatencyHistogram getEventLatency() {
+		return m_events.getLatency();
+	}
+
+	/**
+	 * The time between touch sensors being pressed and their listeners
+	 * returning, the response time passed to
+	 * {@link SimulatorListener#touchSensorPressed(MobileRobot, long)}.
+	 * 
+	 * @return
+	 */
+	public LatencyHistogram getTouchResponseTimes() {
+		return m_touchResponseTimes;
+	}
+
+	/**
+	 * 
+	 * @return The number of events about a contact which happened while an
+	 *         earlier one about the same contact was still waiting to be
+	 *         delivered, so were delivered in its place.
+	 */
+	public long getCoalescedEventCount() {
+		return m_events.getCoalescedCount();
+	}
+
+	/**
+	 * Create a random number generator for something in the simulation, e.g.
+	 * a controller or a noise model, seeded from the simulation's seed (see
+	 * {@link SimulationCore#createRandom()}).
+	 * 
+	 * @return
+	 */
+	public Random createRandom() {
+		return m_sim.createRandom();
+	}
+
+	public long getSeed() {
+		return m_sim.getSeed();
+	}
+
+	/**
+	 * Set the seed of the simulation's randomness. Set this before adding
+	 * anything to the simulation.
+	 * 
+	 * @param _seed
+	 */
+	public void setSeed(long _seed) {
+		m_sim.setSeed(_seed);
+	}
+
+	/**
+	 * The left and right wheels of the given robot, or null if it was not
+	 * added with a wheeled configuration.
+	 * 
+	 * @param _robot
+	 *            The index of the robot in the order it was added.
+	 * @return
+	 */
+	RegulatedMotor[] getWheels(int _robot) {
+		return m_robots[_robot].wheels;
+	}
+
+	int getRobotCount() {
+		return m_robots.length;
+	}
+
+	/**
+	 * 
+	 * @param _robot
+	 *            The index of the robot in the order it was added.
+	 * @return
+	 */
+	MobileRobot getRobot(int _robot) {
+		return m_robots[_robot].wrapper.getRobot();
+	}
+
+	int getObstacleCount() {
+		return m_obstacles.length;
+	}
+
+	/**
+	 * 
+	 * @param _obstacle
+	 *            The index of the obstacle in the order it was added.
+	 * @return
+	 */
+	DynamicObstacle getObstacle(int _obstacle) {
+		return m_obstacles[_obstacle].obstacle;
+	}
+
+	int getRangerCount() {
+		return m_rangers.length;
+	}
+
+	/**
+	 * The readings most recently taken by the given ranger, or null if it
+	 * hasn't been read.
+	 * 
+	 * @param _ranger
+	 *            The index of the ranger in the order it was created.
+	 * @return
+	 */
+	RangeReadings getLastReadings(int _ranger) {
+		return m_rangers[_ranger].lastReadings;
+	}
+
+	/**
+	 * The readings most recently taken by the given ranger, without taking
+	 * any more, e.g. for showing them.
+	 * 
+	 * @param _ranger
+	 *            A ranger from {@link #getRanger(MobileRobotWrapper, int)}.
+	 * @return The readings, or null if the ranger hasn't been read.
+	 */
+	public RangeReadings getLastReadings(LocalisedRangeScanner _ranger) {
+		if (!(_ranger instanceof RelativeRangeScanner)) {
+			throw new IllegalArgumentException(
+					"Ranger is not part of simulation");
+		}
+		return ((RelativeRangeScanner) _ranger).lastReadings;
+	}
+
+	/**
+	 * Make the given ranger give the given ranges, e.g. recorded ones,
+	 * rather than casting rays for its readings.
+	 * 
+	 * @param _ranger
+	 *            The index of the ranger in the order it was created.
+	 * @param _ranges
+	 *            A range for each of the ranger's reading angles, or null to
+	 *            go back to casting rays.
+	 */
+	void setReplayedRanges(int _ranger, float[] _ranges) {
+		RelativeRangeScanner ranger = m_rangers[_ranger];
+		if (_ranges != null
+				&& _ranges.length != ranger.scannerDesc.getReadingAngles().length) {
+			throw new IllegalArgumentException("Expected "
+					+ ranger.scannerDesc.getReadingAngles().length
+					+ " ranges but got " + _ranges.length);
+		}
+		ranger.replayed = _ranges == null ? null : LineMapIndex.toReadings(
+				_ranges, ranger.scannerDesc);
+	}
+
+	int getTouchSensorCount() {
+		return m_touchSensors.length;
+	}
+
+	/**
+	 * Whether the given touch sensor is currently pressed.
+	 * 
+	 * @param _sensor
+	 *            The index of the sensor in the order its listener was added.
+	 * @return
+	 */
+	boolean isTouchSensorPressed(int _sensor) {
+		return m_touchSensors[_sensor].triggered;
+	}
+
+	/**
+	 * Make the given touch sensor pressed or not, e.g. as recorded, rather
+	 * than when it touches something. Its listeners are told when it is
+	 * pressed as usual.
+	 * 
+	 * @param _sensor
+	 *            The index of the sensor in the order its listener was added.
+	 * @param _pressed
+	 *            Whether it is pressed, or null to go back to checking what
+	 *            it touches.
+	 */
+	void setReplayedTouch(int _sensor, Boolean _pressed) {
+		m_touchSensors[_sensor].replayed = _pressed;
+	}
+
+	/**
+	 * Capture the state of the whole simulation between two steps: the
+	 * simulation clock, the robots' poses and motors, any moves in progress,
+	 * the obstacles and the touch sensors. This is much cheaper than running
+	 * the simulation again from the start to get back to the same point, e.g.
+	 * to try several different controllers from the same state.
+	 * 
+	 * @return
+	 */
+	public SimulationSnapshot snapshot() {
+		return m_sim.snapshot();
+	}
+
+	/**
+	 * Put the simulation back into the state captured by {@link #snapshot()}.
+	 * Robots, obstacles and sensors added since the snapshot stay in the
+	 * simulation. Controllers are not part of the snapshot, so they should be
+	 * stopped before restoring and started again afterwards. Robots driven
+	 * by a pilot outside the simulation (e.g. a {@link DifferentialDriveRobot}
+	 * ) have their motors and poses restored, but the pilot's own record of a
+	 * move in progress is not, so these are best captured between moves.
+	 * 
+	 * @param _snapshot
+	 */
+	public void restore(SimulationSnapshot _snapshot) {
+		m_sim.restore(_snapshot);
+	}
+
 }
@@ -0,0 +1,247 @@
+package rp.robotics.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lejos.geom.Line;
+import lejos.robotics.navigation.Pose;
+import rp.config.MobileRobotConfiguration;
+import rp.robotics.MobileRobot;
+import rp.robotics.MobileRobotWrapper;
+import rp.robotics.TouchSensorEvent;
+import rp.robotics.TouchSensorListener;
+
+import org.junit.Test;
+
+public class MapBasedSimulationTest {
+
+	/**
+	 * A square robot which counts its collisions.
+	 */
+	private static class SquareRobot extends MovableRobot {
+
+		private final Line[] m_footprint;
+		private final List<Line[]> m_touchSensors;
+		private final AtomicInteger m_collisions = new AtomicInteger();
+
+		public SquareRobot(float _size, List<Line[]> _touchSensors,
+				Pose _start, MapBasedSimulation _sim) {
+			super(new MobileRobotConfiguration(_size, _size), new MovablePilot(
+					_start, _sim.getSimulationCore()));
+			m_footprint = square(_size);
+			m_touchSensors = _touchSensors;
+		}
+
+		@Override
+		public Pose getPose() {
+			return getPilot().getPose();
+		}
+
+		@Override
+		public Line[] getFootprint() {
+			return m_footprint;
+		}
+
+		@Override
+		public List<Line[]> getTouchSensors() {
+			return m_touchSensors;
+		}
+
+		@Override
+		public void startCollision() {
+			m_collisions.incrementAndGet();
+		}
+
+		public int getCollisions() {
+			return m_collisions.get();
+		}
+	}
+
+	private static Line[] square(float _size) {
+		float h = _size / 2;
+		return new Line[] { new Line(-h, -h, h, -h), new Line(h, -h, h, h),
+				new Line(h, h, -h, h), new Line(-h, h, -h, -h) };
+	}
+
+	@Test
+	public void testContactsReachTheListeners() throws InterruptedException {
+
+		MapBasedSimulation sim = new MapBasedSimulation(null, false, true,
+				SimulationCore.DEFAULT_RATE, SimulationScheduler.getShared());
+
+		// a short bumper which ends up inside the robot in front, without
+		// crossing its footprint
+		List<Line[]> bumper = Collections.singletonList(new Line[] { new Line(
+				0.15f, -0.05f, 0.15f, 0.05f) });
+
+		// two robots whose footprints cross
+		SquareRobot bumping = new SquareRobot(0.2f, bumper, new Pose(1, 1, 0),
+				sim);
+		SquareRobot bumped = new SquareRobot(0.2f, null, new Pose(1.15f, 1, 0),
+				sim);
+		// a robot inside a large obstacle
+		SquareRobot trapped = new SquareRobot(0.1f, null, new Pose(2, 2, 0),
+				sim);
+		// a robot inside a larger one
+		SquareRobot inner = new SquareRobot(0.1f, null, new Pose(4, 4, 0), sim);
+		SquareRobot outer = new SquareRobot(1f, null, new Pose(4, 4, 0), sim);
+
+		SquareRobot[] robots = { bumping, bumped, trapped, inner, outer };
+		List<MobileRobotWrapper<SquareRobot>> wrappers = new ArrayList<>();
+		for (SquareRobot robot : robots) {
+			wrappers.add(sim.addRobot(robot, robot.getPose(), null));
+		}
+
+		TranslationObstacle obstacle = new TranslationObstacle(square(1f),
+				new NoOpMovable(new Pose(2, 2, 0)));
+		sim.addObstacle(obstacle);
+
+		CountDownLatch delivered = new CountDownLatch(4);
+		List<String> events = Collections.synchronizedList(new ArrayList<>());
+		sim.addSimulatorListener(new SimulatorListener() {
+
+			@Override
+			public void touchSensorPressed(MobileRobot _robot,
+					long _responseTime) {
+			}
+
+			@Override
+			public void controllerStopped(MobileRobot _robot,
+					long _responseTime) {
+			}
+
+			@Override
+			public void robotsCollided(MobileRobot _robot, MobileRobot _other) {
+				events.add("collided " + indexOf(robots, _robot) + " "
+						+ indexOf(robots, _other));
+				delivered.countDown();
+			}
+
+			@Override
+			public void obstacleHit(MobileRobot _robot,
+					DynamicObstacle _obstacle) {
+				assertTrue(_obstacle == obstacle);
+				events.add("hit " + indexOf(robots, _robot));
+				delivered.countDown();
+			}
+		});
+
+		sim.addTouchSensorListener(wrappers.get(0), new TouchSensorListener() {
+
+			@Override
+			public void sensorPressed(TouchSensorEvent _e) {
+				events.add("pressed");
+				delivered.countDown();
+			}
+
+			@Override
+			public void sensorReleased(TouchSensorEvent _e) {
+			}
+
+			@Override
+			public void sensorBumped(TouchSensorEvent _e) {
+			}
+		});
+
+		sim.start();
+		sim.getSimulationCore().sleep(Duration.ofSeconds(1));
+		assertTrue(delivered.await(10, TimeUnit.SECONDS));
+
+		// the contacts carry on, but are only reported when they start
+		sim.getSimulationCore().sleep(Duration.ofSeconds(1));
+		sim.shutdown();
+
+		List<String> expected = new ArrayList<>();
+		Collections.addAll(expected, "collided 0 1", "collided 3 4", "hit 2",
+				"pressed");
+		List<String> actual = new ArrayList<>(events);
+		Collections.sort(expected);
+		Collections.sort(actual);
+		assertEquals(expected, actual);
+
+		for (SquareRobot robot : robots) {
+			assertTrue(robot.getCollisions() > 0);
+		}
+	}
+
+	/**
+	 * Run a seeded simulation with random movers in virtual time and return
+	 * everything that happened in it.
+	 */
+	private static List<String> runSeeded(long _seed) throws Exception {
+
+		MapBasedSimulation sim = new MapBasedSimulation(null, false, true,
+				SimulationCore.DEFAULT_RATE, SimulationScheduler.getShared());
+		sim.setSeed(_seed);
+		SimulationCore core = sim.getSimulationCore();
+		core.setCooperativeControllers(true);
+
+		Random obstacleRandom = sim.createRandom();
+		Random controllerRandom = sim.createRandom();
+		TranslationObstacle obstacle = new TranslationObstacle(square(0.2f),
+				new LinearTranslationLoop(new Pose(1, 1, 0),
+						0.1f + obstacleRandom.nextFloat(),
+						0.5f + obstacleRandom.nextFloat()));
+		sim.addObstacle(obstacle);
+
+		List<String> trace = Collections.synchronizedList(new ArrayList<>());
+		Thread controller = core.startController(() -> {
+			for (int i = 0; i < 20; i++) {
+				SimulationDelay.msDelay(controllerRandom.nextInt(200));
+				trace.add("controller " + core.getTime());
+			}
+		});
+		CompletableFuture<Void> recorded = core.addSteppable(
+				new SimulationSteppable() {
+					private int m_steps = 0;
+
+					@Override
+					public void step(Instant _now, Duration _stepInterval) {
+						Pose pose = obstacle.getPose();
+						trace.add(_now + " " + pose.getX() + " " + pose.getY());
+						m_steps++;
+					}
+
+					@Override
+					public boolean remove(Instant _now, Duration _stepInterval) {
+						return m_steps == 300;
+					}
+				}, SimulationPhase.CHECK);
+
+		sim.start();
+		recorded.get(10, TimeUnit.SECONDS);
+		controller.join(10000);
+		sim.shutdown();
+		return new ArrayList<>(trace);
+	}
+
+	@Test
+	public void testSameSeedGivesSameTrace() throws Exception {
+		List<String> first = runSeeded(7);
+		assertEquals(first, runSeeded(7));
+		assertTrue(first.get(0).startsWith(SimulationCore.SEEDED_EPOCH
+				.toString().substring(0, 10)));
+		assertFalse(first.equals(runSeeded(8)));
+	}
+
+	private static int indexOf(SquareRobot[] _robots, MobileRobot _robot) {
+		for (int i = 0; i < _robots.length; i++) {
+			if (_robots[i] == _robot) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
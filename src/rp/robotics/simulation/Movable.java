@@ -2,6 +2,19 @@ package rp.robotics.simulation;
 
 import lejos.robotics.localization.PoseProvider;
 
-public interface Movable extends PoseProvider, SimulationSteppable {
+public interface Movable extends PoseProvider, MovingSteppable {
+
+	/**
+	 * Movables which don't report their speed are never sub-stepped.
+	 */
+	@Override
+	default float getLinearSpeed() {
+		return 0;
+	}
+
+	@Override
+	default float getAngularSpeed() {
+		return 0;
+	}
 
 }
@@ -1,6 +1,9 @@
 package rp.robotics.simulation;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import lejos.robotics.localization.PoseProvider;
@@ -12,10 +15,11 @@ import lejos.robotics.navigation.Pose;
  * @author nah
  *
  */
-public class MovablePilot implements PoseProvider {
+public class MovablePilot implements PoseProvider,
+		Restorable<MovablePilot.State> {
 
-	private boolean m_isMoving = false;
-	private Movable m_movable;
+	private volatile boolean m_isMoving = false;
+	private volatile Movable m_movable;
 	private final BlockingQueue<Movable> m_moves = new LinkedBlockingQueue<>();
 	private Thread m_moveThread;
 	private final SimulationCore m_sim;
@@ -23,6 +27,7 @@ public class MovablePilot implements PoseProvider {
 	public MovablePilot(Pose _startingPose, SimulationCore _sim) {
 		m_movable = new NoOpMovable(_startingPose);
 		m_sim = _sim;
+		m_sim.addRestorable(this);
 		// m_moveThread = new Thread(new Runnable() {
 		//
 		// @Override
@@ -44,15 +49,96 @@ public class MovablePilot implements PoseProvider {
 	public MovablePilot(SimulationCore _sim) {
 		m_movable = new NoOpMovable();
 		m_sim = _sim;
+		m_sim.addRestorable(this);
 	}
 
+	/**
+	 * Execute a move, returning when it has finished.
+	 * 
+	 * @param _move
+	 */
 	public void executeMove(Movable _move) {
+		try {
+			CompletableFuture<Void> completion = executeMoveAsync(_move);
+			ControllerScheduler.await(completion);
+			completion.get();
+		} catch (CancellationException e) {
+			// the simulation was shut down
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Start a move from the current pose without waiting for it to finish.
+	 * The returned future completes when the move has finished, and can be
+	 * used to chain further moves without blocking a thread. Stages added to
+	 * the future with non-async methods run in the simulation thread.
+	 * 
+	 * @param _move
+	 * @return
+	 */
+	public synchronized CompletableFuture<Void> executeMoveAsync(Movable _move) {
 		// Update the pose of the movable
 		m_isMoving = true;
 		_move.setPose(m_movable.getPose());
 		m_movable = _move;
-		m_sim.addAndWaitSteppable(m_movable);
-		m_isMoving = false;
+		return watch(_move, m_sim.addSteppable(_move));
+	}
+
+	/**
+	 * Stop moving once the given move finishes, unless another move has
+	 * started since.
+	 */
+	private CompletableFuture<Void> watch(Movable _move,
+			CompletableFuture<Void> _completion) {
+		return _completion.whenComplete((v, t) -> {
+			synchronized (this) {
+				// a later move may have started already
+				if (m_movable == _move) {
+					m_isMoving = false;
+				}
+			}
+		});
+	}
+
+	/**
+	 * The current move and how far through it the pilot is.
+	 */
+	public static final class State {
+
+		private final Movable m_movable;
+		private final Restorable.Captured<?> m_movableState;
+		private final boolean m_isMoving;
+
+		private State(MovablePilot _pilot) {
+			m_movable = _pilot.m_movable;
+			m_movableState = Restorable.captureIfRestorable(m_movable);
+			m_isMoving = _pilot.m_isMoving;
+		}
+	}
+
+	@Override
+	public synchronized State getState() {
+		return new State(this);
+	}
+
+	@Override
+	public synchronized void setState(State _state) {
+		m_movable = _state.m_movable;
+		_state.m_movableState.restore();
+		m_isMoving = _state.m_isMoving;
+		if (m_isMoving) {
+			// the simulation has been restored first, so has put the move
+			// back with a new future if it had finished since
+			CompletableFuture<Void> completion = m_sim
+					.getCompletion(m_movable);
+			if (completion == null) {
+				m_isMoving = false;
+			} else {
+				watch(m_movable, completion);
+			}
+		}
 	}
 
 	// /**
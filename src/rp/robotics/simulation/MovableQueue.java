@@ -2,7 +2,9 @@ package rp.robotics.simulation;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 import lejos.robotics.navigation.Pose;
@@ -13,7 +15,8 @@ import lejos.robotics.navigation.Pose;
  * @author Nick Hawes
  *
  */
-public class MovableQueue extends AbstractPoseMove {
+public class MovableQueue extends AbstractPoseMove implements
+		Restorable<MovableQueue.State> {
 
 	private final Queue<Movable> m_moves = new LinkedList<>();
 	private Movable m_current;
@@ -33,6 +36,66 @@ public class MovableQueue extends AbstractPoseMove {
 		}
 	}
 
+	@Override
+	public float getLinearSpeed() {
+		Movable next = next();
+		return next == null ? 0 : next.getLinearSpeed();
+	}
+
+	@Override
+	public float getAngularSpeed() {
+		Movable next = next();
+		return next == null ? 0 : next.getAngularSpeed();
+	}
+
+	/**
+	 * The move which will be stepped next.
+	 */
+	private Movable next() {
+		Movable current = m_current;
+		return current != null ? current : m_moves.peek();
+	}
+
+	/**
+	 * The progress through the queue, including the progress of each move
+	 * which hasn't finished yet.
+	 */
+	public static final class State extends PoseMoveState {
+
+		private final Movable m_current;
+		private final List<Movable> m_moves;
+		private final List<Restorable.Captured<?>> m_moveStates;
+
+		private State(MovableQueue _queue) {
+			super(_queue);
+			m_current = _queue.m_current;
+			m_moves = new ArrayList<>(_queue.m_moves);
+			m_moveStates = new ArrayList<>(m_moves.size() + 1);
+			if (m_current != null) {
+				m_moveStates.add(Restorable.captureIfRestorable(m_current));
+			}
+			for (Movable move : m_moves) {
+				m_moveStates.add(Restorable.captureIfRestorable(move));
+			}
+		}
+	}
+
+	@Override
+	public State getState() {
+		return new State(this);
+	}
+
+	@Override
+	public void setState(State _state) {
+		setPoseMoveState(_state);
+		m_current = _state.m_current;
+		m_moves.clear();
+		m_moves.addAll(_state.m_moves);
+		for (Restorable.Captured<?> moveState : _state.m_moveStates) {
+			moveState.restore();
+		}
+	}
+
 	@Override
 	protected void moveStep(Instant _now, Duration _stepInterval) {
 		if (m_current == null && m_moves.isEmpty()) {
@@ -0,0 +1,28 @@
+package rp.robotics.simulation;
+
+/**
+ * A steppable which moves something and can report how fast it is currently
+ * moving. The simulation uses this in the {@link SimulationPhase#INTEGRATE}
+ * phase to split a step into several shorter integration steps when something
+ * would otherwise move too far in a single step.
+ * 
+ * @author Nick Hawes
+ *
+ */
+public interface MovingSteppable extends SimulationSteppable {
+
+	/**
+	 * The current linear speed, in metres per second.
+	 * 
+	 * @return
+	 */
+	float getLinearSpeed();
+
+	/**
+	 * The current angular speed, in degrees per second.
+	 * 
+	 * @return
+	 */
+	float getAngularSpeed();
+
+}
@@ -5,7 +5,7 @@ import java.time.Instant;
 
 import lejos.robotics.navigation.Pose;
 
-public class NoOpMovable implements Movable {
+public class NoOpMovable implements Movable, Restorable<Pose> {
 
 	private Pose m_pose;
 
@@ -27,6 +27,16 @@ public class NoOpMovable implements Movable {
 		m_pose = _pose;
 	}
 
+	@Override
+	public Pose getState() {
+		return new Pose(m_pose.getX(), m_pose.getY(), m_pose.getHeading());
+	}
+
+	@Override
+	public void setState(Pose _state) {
+		m_pose = new Pose(_state.getX(), _state.getY(), _state.getHeading());
+	}
+
 	@Override
 	public boolean remove(Instant _now, Duration _stepInterval) {
 		return true;
@@ -0,0 +1,100 @@
+package rp.robotics.simulation;
+
+/**
+ * Something in a simulation whose state can be captured and later put back,
+ * allowing the simulation to be rewound to an earlier point (see
+ * {@link SimulationCore#snapshot()}). States should be immutable values so
+ * that the same state can be restored any number of times. Both methods are
+ * only called between simulation steps.
+ *
+ * @author Nick Hawes
+ *
+ * @param <S>
+ *            The type of the captured state.
+ */
+public interface Restorable<S> {
+
+	/**
+	 * Returns the current state.
+	 *
+	 * @return
+	 */
+	S getState();
+
+	/**
+	 * Put back a state previously returned by {@link #getState()}.
+	 *
+	 * @param _state
+	 */
+	void setState(S _state);
+
+	/**
+	 * The state of a restorable at some point, kept with the restorable so
+	 * it can be put back any number of times.
+	 *
+	 * @param <S>
+	 */
+	final class Captured<S> {
+
+		/**
+		 * Captured from something which isn't restorable, so puts nothing
+		 * back.
+		 */
+		static final Captured<Void> NOTHING = new Captured<>(null, null);
+
+		private final Restorable<S> m_restorable;
+		private final S m_state;
+
+		private Captured(Restorable<S> _restorable, S _state) {
+			m_restorable = _restorable;
+			m_state = _state;
+		}
+
+		/**
+		 * The restorable the state was captured from, or null if it wasn't
+		 * restorable.
+		 *
+		 * @return
+		 */
+		public Restorable<S> getRestorable() {
+			return m_restorable;
+		}
+
+		public S getState() {
+			return m_state;
+		}
+
+		/**
+		 * Put the captured state back.
+		 */
+		public void restore() {
+			if (m_restorable != null) {
+				m_restorable.setState(m_state);
+			}
+		}
+	}
+
+	/**
+	 * Captures the current state of the given restorable.
+	 *
+	 * @param _restorable
+	 * @return
+	 */
+	static <S> Captured<S> capture(Restorable<S> _restorable) {
+		return new Captured<>(_restorable, _restorable.getState());
+	}
+
+	/**
+	 * Captures the current state of the given object if it is restorable.
+	 *
+	 * @param _object
+	 * @return The captured state, or {@link Captured#NOTHING} if the object is
+	 *         not restorable.
+	 */
+	static Captured<?> captureIfRestorable(Object _object) {
+		if (_object instanceof Restorable) {
+			return capture((Restorable<?>) _object);
+		}
+		return Captured.NOTHING;
+	}
+}
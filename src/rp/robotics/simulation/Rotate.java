@@ -12,7 +12,8 @@ import lejos.robotics.navigation.Pose;
  * @author Nick Hawes
  *
  */
-public class Rotate extends AbstractPoseMove {
+public class Rotate extends AbstractPoseMove implements
+		Restorable<Rotate.State> {
 
 	private float m_speed;
 	private float m_degreesRemaining;
@@ -34,9 +35,38 @@ public class Rotate extends AbstractPoseMove {
 		this(null, _speed, _rotateAmount);
 	}
 
+	@Override
+	public float getAngularSpeed() {
+		return Math.abs(m_speed);
+	}
+
+	/**
+	 * The progress of a rotation.
+	 */
+	public static final class State extends PoseMoveState {
+
+		private final float m_degreesRemaining;
+
+		private State(Rotate _rotate) {
+			super(_rotate);
+			m_degreesRemaining = _rotate.m_degreesRemaining;
+		}
+	}
+
+	@Override
+	public State getState() {
+		return new State(this);
+	}
+
+	@Override
+	public void setState(State _state) {
+		setPoseMoveState(_state);
+		m_degreesRemaining = _state.m_degreesRemaining;
+	}
+
 	protected void moveStep(Instant _now, Duration _stepInterval) {
 
-		float durationSecs = _stepInterval.toMillis() / 1000f;
+		float durationSecs = _stepInterval.toNanos() / 1e9f;
 		float moveAmount = m_speed * durationSecs;
 		m_pose.rotateUpdate(moveAmount);
 		m_degreesRemaining -= Math.abs(moveAmount);
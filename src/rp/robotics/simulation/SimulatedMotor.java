@@ -3,11 +3,13 @@ package rp.robotics.simulation;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Predicate;
 
 import lejos.robotics.RegulatedMotor;
 import lejos.robotics.RegulatedMotorListener;
-import rp.util.Rate;
 
 /**
  * This class simulates the desired behaviour of a regulated motor. It does not
@@ -17,7 +19,7 @@ import rp.util.Rate;
  *
  */
 public class SimulatedMotor implements RegulatedMotor,
-		Comparable<SimulatedMotor> {
+		Comparable<SimulatedMotor>, Restorable<SimulatedMotor.State> {
 
 	// target speed of motor in degrees/second
 	protected double m_targetSpeed = 360;
@@ -57,11 +59,23 @@ public class SimulatedMotor implements RegulatedMotor,
 	private final Object m_stepLock = new Object();
 	private final Object m_moveLock = new Object();
 
+	// the steppable for the current or last move, and whether it has been
+	// stepped yet
+	private SimulationSteppable m_moveSteppable;
+	private boolean m_firstMoveStep;
+	private Speedometer m_speedometer;
+
+	// completes when the current move steppable is removed
+	private volatile CompletableFuture<Void> m_moveCompletion;
+
 	private final UUID m_uuid = UUID.randomUUID();
 
 	@SuppressWarnings("unused")
 	private final String m_label;
 
+	// the diameter of the wheel the motor drives, in metres, or 0 if not known
+	private final double m_wheelDiameter;
+
 	@Override
 	public boolean equals(Object _obj) {
 		if (_obj instanceof SimulatedMotor) {
@@ -78,8 +92,110 @@ public class SimulatedMotor implements RegulatedMotor,
 	}
 
 	public SimulatedMotor(SimulationCore _sim, String _label) {
+		this(_sim, _label, 0);
+	}
+
+	/**
+	 * Create a motor which drives a wheel of the given diameter. The diameter
+	 * is only used to tell the simulation how fast the wheel's rim moves, so
+	 * that it can sub-step fast moves, see {@link MovingSteppable}.
+	 * 
+	 * @param _sim
+	 * @param _label
+	 * @param _wheelDiameter
+	 *            In metres, or 0 if not known, in which case the motor's moves
+	 *            are never sub-stepped.
+	 */
+	public SimulatedMotor(SimulationCore _sim, String _label,
+			double _wheelDiameter) {
 		m_sim = _sim;
 		m_label = _label;
+		m_wheelDiameter = _wheelDiameter;
+		m_sim.addRestorable(this);
+	}
+
+	/**
+	 * Everything about the motor which changes as it moves.
+	 */
+	public static final class State {
+
+		private final double m_targetSpeed;
+		private final int m_acceleration;
+		private final double m_commandedSpeed;
+		private final double m_measuredSpeed;
+		private final double m_tachoCount;
+		private final boolean m_isMoving;
+		private final boolean m_stopRequested;
+		private final MotorState m_state;
+		private final double m_direction;
+		private final int m_limitAngle;
+		private final SimulationSteppable m_moveSteppable;
+		private final boolean m_firstMoveStep;
+		private final Speedometer m_speedometer;
+
+		private State(SimulatedMotor _motor) {
+			m_targetSpeed = _motor.m_targetSpeed;
+			m_acceleration = _motor.m_acceleration;
+			m_commandedSpeed = _motor.m_commandedSpeed;
+			m_measuredSpeed = _motor.m_measuredSpeed;
+			m_tachoCount = _motor.m_tachoCount;
+			m_isMoving = _motor.m_isMoving;
+			m_stopRequested = _motor.m_stopRequested;
+			m_state = _motor.m_state;
+			m_direction = _motor.m_direction;
+			m_limitAngle = _motor.m_limitAngle;
+			m_moveSteppable = _motor.m_moveSteppable;
+			m_firstMoveStep = _motor.m_firstMoveStep;
+			m_speedometer = _motor.m_speedometer == null ? null
+					: new Speedometer(_motor.m_speedometer);
+		}
+	}
+
+	@Override
+	public State getState() {
+		synchronized (m_stepLock) {
+			return new State(this);
+		}
+	}
+
+	/**
+	 * Put the motor back into a previously captured state. This must be
+	 * called after the simulation has been restored, as a motor which was
+	 * moving carries on with the same move steppable.
+	 */
+	@Override
+	public void setState(State _state) {
+		synchronized (m_stepLock) {
+			m_targetSpeed = _state.m_targetSpeed;
+			m_acceleration = _state.m_acceleration;
+			m_commandedSpeed = _state.m_commandedSpeed;
+			m_measuredSpeed = _state.m_measuredSpeed;
+			m_tachoCount = _state.m_tachoCount;
+			m_stopRequested = _state.m_stopRequested;
+			m_state = _state.m_state;
+			m_direction = _state.m_direction;
+			m_limitAngle = _state.m_limitAngle;
+			m_moveSteppable = _state.m_moveSteppable;
+			m_firstMoveStep = _state.m_firstMoveStep;
+			// a copy, as the state may be restored again
+			m_speedometer = _state.m_speedometer == null ? null
+					: new Speedometer(_state.m_speedometer);
+
+			// the move's future is set before the motor is seen to be moving,
+			// see waitComplete()
+			m_isMoving = false;
+			if (_state.m_isMoving) {
+				CompletableFuture<Void> completion = m_sim
+						.getCompletion(m_moveSteppable);
+				if (completion == null) {
+					// the move isn't in the simulation, so will never finish
+					m_state = MotorState.STOPPED;
+				} else {
+					m_moveCompletion = completion;
+					m_isMoving = true;
+				}
+			}
+		}
 	}
 
 	private void notifyListener(boolean _started, Instant _now) {
@@ -109,7 +225,7 @@ public class SimulatedMotor implements RegulatedMotor,
 	 * 
 	 * @param _tachoPredicate
 	 */
-	private void move(Predicate<Integer> _tachoPredicate) {
+	private void move(Predicate<Integer> _tachoPredicate, boolean _limited) {
 
 		// the resolution of the movement simulation
 
@@ -117,18 +233,38 @@ public class SimulatedMotor implements RegulatedMotor,
 		// needs to increment in smaller steps, e.g. 2 degree steps
 
 		m_state = MotorState.ACCELERATING;
+		m_firstMoveStep = true;
+		// on the simulation's clock, which the steps update it with
+		m_speedometer = new Speedometer(getTachoCount(), m_sim.getTime()
+				.toEpochMilli(), 20);
+
+		MovingSteppable moveSteppable = new MovingSteppable() {
+
+			/**
+			 * The fastest the rim of the wheel could move during this step.
+			 * No part of the robot is moved faster than this by the wheel, so
+			 * this bounds how far the robot moves whichever way it turns.
+			 */
+			@Override
+			public float getLinearSpeed() {
+				return (float) (Math.max(m_commandedSpeed, m_targetSpeed)
+						/ 360 * Math.PI * m_wheelDiameter);
+			}
 
-		SimulationSteppable moveSteppable = new SimulationSteppable() {
-
-			boolean first = true;
-
-			Speedometer speedo = new Speedometer(getTachoCount(), Instant.now()
-					.toEpochMilli(), 20);
+			/**
+			 * The motor doesn't know how the robot's heading depends on its
+			 * wheels, only how fast the wheel's shaft turns, which is a
+			 * different thing, so turning is covered by the linear speed.
+			 */
+			@Override
+			public float getAngularSpeed() {
+				return 0;
+			}
 
 			@SuppressWarnings("unused")
 			public void regulateStep(Instant _now, Duration _stepInterval) {
 
-				m_measuredSpeed = speedo.update(getTachoCount(),
+				m_measuredSpeed = m_speedometer.update(getTachoCount(),
 						_now.toEpochMilli());
 
 				double difference = m_targetSpeed - m_measuredSpeed;
@@ -149,9 +285,9 @@ public class SimulatedMotor implements RegulatedMotor,
 
 				// println("start step");
 
-				if (first) {
+				if (m_firstMoveStep) {
 					notifyListener(true, _now);
-					first = false;
+					m_firstMoveStep = false;
 				}
 
 				synchronized (m_stepLock) {
@@ -172,7 +308,7 @@ public class SimulatedMotor implements RegulatedMotor,
 				// println("inner step");
 				//
 				// println(_stepInterval.toMillis());
-				double cycleTimeSecs = _stepInterval.toMillis() / 1000.0;
+				double cycleTimeSecs = _stepInterval.toNanos() / 1e9;
 
 				if (m_state == MotorState.ACCELERATING) {
 
@@ -203,9 +339,24 @@ public class SimulatedMotor implements RegulatedMotor,
 					}
 				}
 
-				m_tachoCount += (cycleTimeSecs * m_commandedSpeed * m_direction);
+				double tachoCount = m_tachoCount
+						+ (cycleTimeSecs * m_commandedSpeed * m_direction);
+
+				if (_limited) {
+					// a regulated motor stops at its limit rather than
+					// running on for the rest of the step
+					if (m_direction == FORWARD) {
+						tachoCount = Math.min(tachoCount,
+								Math.max(m_tachoCount, m_limitAngle));
+					} else {
+						tachoCount = Math.max(tachoCount,
+								Math.min(m_tachoCount, m_limitAngle));
+					}
+				}
+
+				m_tachoCount = tachoCount;
 				// println("Count: " + m_tachoCount);
-				m_measuredSpeed = speedo.update(getTachoCount(),
+				m_measuredSpeed = m_speedometer.update(getTachoCount(),
 						_now.toEpochMilli());
 
 			}
@@ -217,11 +368,14 @@ public class SimulatedMotor implements RegulatedMotor,
 				// println("Removing? " + remove);
 				if (remove) {
 					println("Removing");
-					m_isMoving = false;
-					m_commandedSpeed = 0;
-					m_measuredSpeed = 0;
-					m_state = MotorState.STOPPED;
-					m_stopRequested = false;
+					synchronized (m_stepLock) {
+						// waits for startMove to finish setting up the move
+						m_isMoving = false;
+						m_commandedSpeed = 0;
+						m_measuredSpeed = 0;
+						m_state = MotorState.STOPPED;
+						m_stopRequested = false;
+					}
 					// System.out.print("NOtifing..");
 					notifyListener(false, _now);
 					// println("... done");
@@ -230,7 +384,8 @@ public class SimulatedMotor implements RegulatedMotor,
 			}
 		};
 
-		m_sim.addSteppable(moveSteppable);
+		m_moveSteppable = moveSteppable;
+		m_moveCompletion = m_sim.addSteppable(moveSteppable);
 
 		// m_sim.addAndWaitSteppable(moveSteppable);
 		//
@@ -249,10 +404,11 @@ public class SimulatedMotor implements RegulatedMotor,
 	}
 
 	private void startMove(double _direction) {
-		startMove(_direction, i -> false);
+		startMove(_direction, i -> false, false);
 	}
 
-	private void startMove(double _direction, Predicate<Integer> _tachoPredicate) {
+	private void startMove(double _direction,
+			Predicate<Integer> _tachoPredicate, boolean _limited) {
 
 		// if moving in a different direction, make sure we've stopped
 		// before
@@ -271,9 +427,11 @@ public class SimulatedMotor implements RegulatedMotor,
 			println("In startMove stepLock");
 
 			m_direction = _direction;
-			m_isMoving = true;
 
-			move(_tachoPredicate);
+			// the move's future must be set before the motor is seen to be
+			// moving, see waitComplete()
+			move(_tachoPredicate, _limited);
+			m_isMoving = true;
 			println("Out startMove stepLock");
 		}
 	}
@@ -372,18 +530,26 @@ public class SimulatedMotor implements RegulatedMotor,
 	@Override
 	public void waitComplete() {
 
-		while (isMoving()) {
-			println("waitComplete() Before moveLock: " + m_stopRequested);
-			synchronized (m_moveLock) {
-				try {
-					println("waitComplete() waiting");
-					m_moveLock.wait(10);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
+		while (true) {
+			CompletableFuture<Void> completion;
+			synchronized (m_stepLock) {
+				if (!m_isMoving) {
+					return;
 				}
+				// set under the lock before m_isMoving is, so can't be null
+				// here
+				completion = m_moveCompletion;
+			}
+			println("waitComplete() waiting: " + m_stopRequested);
+			try {
+				ControllerScheduler.await(completion);
+				completion.get();
+			} catch (CancellationException e) {
+				// the simulation was shut down so the move will never finish
+				return;
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace();
 			}
-			Thread.yield();
-			// Delay.msDelay(10);
 		}
 
 	}
@@ -418,7 +584,7 @@ public class SimulatedMotor implements RegulatedMotor,
 			}
 		}
 
-		startMove(direction, target);
+		startMove(direction, target, true);
 
 		if (!_immediateReturn) {
 			waitComplete();
@@ -503,7 +669,8 @@ public class SimulatedMotor implements RegulatedMotor,
 		SimulatedMotor motor1 = new SimulatedMotor(sim, "");
 		motor1.forward();
 		int prev = 0;
-		Rate rate = new Rate(10);
+		// main isn't bound to the simulation, so give the rate its clock
+		SimulationRate rate = new SimulationRate(sim, 10);
 
 		for (int i = 0; i < 20; i++) {
 			int curr = motor1.getTachoCount();
@@ -3,7 +3,6 @@ package rp.robotics.simulation;
 import static org.junit.Assert.assertTrue;
 import lejos.robotics.RegulatedMotor;
 import lejos.robotics.RegulatedMotorListener;
-import lejos.util.Delay;
 
 import org.junit.Test;
 
@@ -26,7 +25,7 @@ public class SimulatedMotorTest {
 		motor.forward();
 
 		int delaySecs = 5;
-		Delay.msDelay(delaySecs * 1000);
+		SimulationDelay.msDelay(delaySecs * 1000);
 
 		// the motor should be going as fast as acceleration allows, up to
 		// targetSpeed
@@ -68,7 +67,7 @@ public class SimulatedMotorTest {
 		motor.backward();
 
 		int delaySecs = 5;
-		Delay.msDelay(delaySecs * 1000);
+		SimulationDelay.msDelay(delaySecs * 1000);
 
 		// the motor should be going as fast as acceleration allows, up to
 		// targetSpeed
@@ -99,7 +98,7 @@ public class SimulatedMotorTest {
 		RegulatedMotor motor = new SimulatedMotor(SimulationCore.createSimulationCore(), "Test");
 
 		motor.forward();
-		Delay.msDelay(1000);
+		SimulationDelay.msDelay(1000);
 		motor.stop(false);
 
 		int targetSpeed = 360;
@@ -114,7 +113,7 @@ public class SimulatedMotorTest {
 		motor.backward();
 
 		int delaySecs = 5;
-		Delay.msDelay(delaySecs * 1000);
+		SimulationDelay.msDelay(delaySecs * 1000);
 
 		// the motor should be going as fast as acceleration allows, up to
 		// targetSpeed
@@ -55,8 +55,8 @@ public class SimulatedRobots {
 //				0.056f, 0.12f, 0.23f, motors.getItem1(), motors.getItem2());
 
 		WheeledRobotConfiguration config = new WheeledRobotConfiguration(
-				0.056f, 0.12f, 0.23f, new SimulatedMotor(_sim, "left"),
-				new SimulatedMotor(_sim, "right"));
+				0.056f, 0.12f, 0.23f, new SimulatedMotor(_sim, "left", 0.056f),
+				new SimulatedMotor(_sim, "right", 0.056f));
 
 		
 		if (_touchSensor) {
@@ -2,250 +2,1813 @@ package rp.robotics.simulation;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
-import lejos.util.Delay;
-import rp.util.Pair;
-import rp.util.Rate;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * Class to manage the core components of the simulation to ensure they run in
- * sync. All steppables are run in the same thread, minimising the damage thread
- * contention can do to the simulation.
+ * sync. Each step of the simulation runs the steppables in each
+ * {@link SimulationPhase} in turn (sense, act, integrate, collide, check),
+ * publishing the {@link WorldState} once everything has moved. Each step is
+ * run as a single task on a {@link SimulationScheduler}, which may be shared
+ * between many simulations, and steps are never run concurrently. By default
+ * all steppables in a step are run in the scheduler's thread, minimising the
+ * damage thread contention can do to the simulation.
  * 
  * @author Nick Hawes
  *
  */
-public class SimulationCore extends Thread {
+public class SimulationCore {
 
-	private class SteppableWrapper {
+	/**
+	 * A steppable waiting to be added to the simulation.
+	 */
+	private static class PendingSteppable {
+		final SimulationSteppable steppable;
+		final int stepRate;
+		final SimulationPhase phase;
+		final CompletableFuture<Void> completion;
+
+		public PendingSteppable(SimulationSteppable _steppable, int _stepRate,
+				SimulationPhase _phase, CompletableFuture<Void> _completion) {
+			steppable = _steppable;
+			stepRate = _stepRate;
+			phase = _phase;
+			completion = _completion;
+		}
+	}
+
+	/**
+	 * Runs a range of the steppables due in a phase, splitting the range
+	 * across the fork-join pool.
+	 */
+	private static class ParallelStep extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final SimulationCore m_core;
+		private final SteppableRegistry m_registry;
+		private final int m_from;
+		private final int m_to;
+		private final Instant m_now;
+		private final int m_subStep;
+		private final int m_subSteps;
+
+		public ParallelStep(SimulationCore _core, SteppableRegistry _registry,
+				int _from, int _to, Instant _now, int _subStep, int _subSteps) {
+			m_core = _core;
+			m_registry = _registry;
+			m_from = _from;
+			m_to = _to;
+			m_now = _now;
+			m_subStep = _subStep;
+			m_subSteps = _subSteps;
+		}
+
+		@Override
+		protected void compute() {
+			if (m_to - m_from <= PARALLEL_GRAIN) {
+				SimulationCore previous = s_stepping.get();
+				s_stepping.set(m_core);
+				try {
+					m_registry.step(m_from, m_to, m_now, m_subStep, m_subSteps);
+				} finally {
+					s_stepping.set(previous);
+				}
+			} else {
+				int mid = (m_from + m_to) >>> 1;
+				invokeAll(new ParallelStep(m_core, m_registry, m_from, mid,
+						m_now, m_subStep, m_subSteps), new ParallelStep(m_core,
+						m_registry, mid, m_to, m_now, m_subStep, m_subSteps));
+			}
+		}
+	}
+
+	// the number of steppables below which a phase isn't run in parallel
+	private static final int PARALLEL_THRESHOLD = 8;
+
+	// the number of steppables each fork-join task runs
+	private static final int PARALLEL_GRAIN = 4;
+
+	/**
+	 * The number of steps per second if no rate is given.
+	 */
+	public static final double DEFAULT_RATE = 60;
+
+	/**
+	 * The time the clock of a simulation which is seeded before it starts
+	 * starts from, see {@link #setSeed(long)}.
+	 */
+	public static final Instant SEEDED_EPOCH = Instant.EPOCH;
+
+	private static final SimulationPhase[] PHASES = SimulationPhase.values();
+
+	// the steppables for each phase, indexed by phase ordinal
+	private final SteppableRegistry[] m_registries = new SteppableRegistry[PHASES.length];
+	private final ConcurrentLinkedQueue<PendingSteppable> m_toAdd = new ConcurrentLinkedQueue<>();
+
+	// the completion of each steppable in the simulation, for waitSteppable
+	private final ConcurrentHashMap<SimulationSteppable, CompletableFuture<Void>> m_completions = new ConcurrentHashMap<>();
+
+	// things outside the steppables whose state is part of a snapshot, held
+	// weakly so that they don't outlive everything else which uses them, in
+	// the order they are restored
+	private final CopyOnWriteArrayList<WeakReference<Restorable<?>>> m_restorables = new CopyOnWriteArrayList<>();
+
+	// the pool used to run phases in parallel, null if running in this
+	// thread
+	private volatile ForkJoinPool m_pool = null;
+
+	private final WorldState m_worldState = new WorldState();
+
+	private static final AtomicInteger s_coreCount = new AtomicInteger();
+
+	private final String m_name = "simulation-"
+			+ s_coreCount.incrementAndGet();
+
+	// how long each phase, and each class of steppable, takes to step
+	private volatile boolean m_timingEnabled = true;
+	private final LatencyHistogram[] m_phaseTimings = new LatencyHistogram[PHASES.length];
+	private final ConcurrentHashMap<String, LatencyHistogram> m_steppableTimings = new ConcurrentHashMap<>();
+
+	private ObjectName m_mbeanName = null;
+
+	// the seed of the simulation's randomness, and the stream the random
+	// number generators handed out are split from
+	private long m_seed = ThreadLocalRandom.current().nextLong();
+	private SplittableRandom m_random = new SplittableRandom(m_seed);
+
+	// the simulation that code running in each thread belongs to, inherited
+	// by any threads it starts
+	private static final InheritableThreadLocal<SimulationCore> s_current = new InheritableThreadLocal<>();
+
+	// the simulation whose steppables the current thread is running, if any
+	private static final ThreadLocal<SimulationCore> s_stepping = new ThreadLocal<>();
+
+	/**
+	 * Wakes a thread sleeping in simulated time.
+	 */
+	private static class Wakeup implements EventDrivenSteppable {
+
+		private final Instant m_at;
+
+		public Wakeup(Instant _at) {
+			m_at = _at;
+		}
+
+		@Override
+		public boolean remove(Instant _now, Duration _stepInterval) {
+			return !_now.isBefore(m_at);
+		}
+
+		@Override
+		public void step(Instant _now, Duration _stepInterval) {
+		}
+
+		@Override
+		public Instant getNextEventTime(Instant _now) {
+			return m_at;
+		}
+	}
+
+	public static SimulationCore createSimulationCore() {
+		return createSimulationCore(true);
+	}
+
+	public static SimulationCore createSimulationCore(boolean _start) {
+		return createSimulationCore(_start, false);
+	}
+
+	/**
+	 * Create a simulation core which optionally runs in virtual time.
+	 * 
+	 * @param _start
+	 *            Whether to start the simulation immediately.
+	 * @param _virtualTime
+	 *            If true, steps are run back-to-back as fast as possible
+	 *            rather than being synchronised with the wall clock.
+	 * @return
+	 */
+	public static SimulationCore createSimulationCore(boolean _start,
+			boolean _virtualTime) {
+		return createSimulationCore(_start, _virtualTime, DEFAULT_RATE);
+	}
+
+	/**
+	 * Create a simulation core which runs at the given rate.
+	 * 
+	 * @param _start
+	 *            Whether to start the simulation immediately.
+	 * @param _virtualTime
+	 *            If true, steps are run back-to-back as fast as possible
+	 *            rather than being synchronised with the wall clock.
+	 * @param _rate
+	 *            The number of steps per second of simulated time.
+	 * @return
+	 */
+	public static SimulationCore createSimulationCore(boolean _start,
+			boolean _virtualTime, double _rate) {
+		return createSimulationCore(_start, _virtualTime, _rate,
+				SimulationScheduler.getShared());
+	}
+
+	/**
+	 * Create a simulation core which runs on the given scheduler rather than
+	 * the shared one.
+	 * 
+	 * @param _start
+	 *            Whether to start the simulation immediately.
+	 * @param _virtualTime
+	 *            If true, steps are run back-to-back as fast as possible
+	 *            rather than being synchronised with the wall clock.
+	 * @param _scheduler
+	 * @return
+	 */
+	public static SimulationCore createSimulationCore(boolean _start,
+			boolean _virtualTime, SimulationScheduler _scheduler) {
+		return createSimulationCore(_start, _virtualTime, DEFAULT_RATE,
+				_scheduler);
+	}
+
+	/**
+	 * Create a simulation core which runs at the given rate on the given
+	 * scheduler.
+	 * 
+	 * @param _start
+	 *            Whether to start the simulation immediately.
+	 * @param _virtualTime
+	 *            If true, steps are run back-to-back as fast as possible
+	 *            rather than being synchronised with the wall clock.
+	 * @param _rate
+	 *            The number of steps per second of simulated time.
+	 * @param _scheduler
+	 * @return
+	 */
+	public static SimulationCore createSimulationCore(boolean _start,
+			boolean _virtualTime, double _rate, SimulationScheduler _scheduler) {
+		return new SimulationCore(_start, _virtualTime, _rate, _scheduler);
+	}
+
+	/**
+	 * What to do when a step finishes after the deadline for the following
+	 * step.
+	 */
+	public enum OverrunPolicy {
+		/**
+		 * Run the missed steps back-to-back so that simulated time keeps up
+		 * with the wall clock (up to the maximum number of catch up ticks).
+		 */
+		CATCH_UP,
+		/**
+		 * Drop the missed steps and carry on from the next deadline.
+		 * Simulated time falls behind the wall clock.
+		 */
+		SKIP
+	}
+
+	private final double m_targetRate;
+	private boolean m_inStep = false;
+	private volatile boolean m_paused = false;
+	private boolean m_started = false;
+	private volatile boolean m_shutdown = false;
+
+	private final SimulationScheduler m_scheduler;
+	private final Runnable m_tickTask = this::tick;
+
+	// when the next step should start, only used by tick
+	private long m_deadline;
+	private volatile boolean m_virtualTime;
+
+	// set when the schedule should restart from the current wall clock time
+	private volatile boolean m_resync = false;
+
+	private volatile OverrunPolicy m_overrunPolicy = OverrunPolicy.CATCH_UP;
+	private volatile int m_maxCatchUpTicks = 10;
+
+	// the furthest anything should move in a single integration step, and
+	// the most integration steps a step can be split into
+	private volatile double m_maxSubStepDistance = 0.02;
+	private volatile double m_maxSubStepAngle = 10;
+	private volatile int m_maxSubSteps = 16;
+
+	// set by a steppable which moved something after the world state was
+	// published, so it is published again at the end of the phase
+	private volatile boolean m_republish = false;
+
+	// whether to skip steps in which nothing would happen
+	private volatile boolean m_eventDriven = false;
+
+	// whether controllers run cooperatively in the simulation, and the
+	// scheduler which runs them if so, created when first needed
+	private volatile boolean m_cooperativeControllers = false;
+	private volatile ControllerScheduler m_controllerScheduler = null;
+
+	// set by a step after which every steppable was waiting for an event,
+	// along with the step's tick, when it should have started by the wall
+	// clock and the tick of the next event (Long.MAX_VALUE if none)
+	private boolean m_idle = false;
+	private long m_idleTick;
+	private long m_idleDeadline;
+	private long m_wakeTick;
+
+	// set while idle with no tick task waiting to run, cleared by whatever
+	// runs the next tick
+	private final AtomicBoolean m_sleeping = new AtomicBoolean(false);
+
+	// whether the simulation was woken by a new steppable rather than by
+	// reaching the next event
+	private volatile boolean m_wokenByCommand = false;
+
+	// the length of a step, without rounding, and rounded to the nanosecond
+	private final double m_periodExactNanos;
+	private final long m_periodNanos;
+
+	// the time at which the simulation clock started, the current time in the
+	// simulation is always m_epoch + m_tick periods to avoid rounding drift.
+	// Only changed before the simulation starts, see setSeed.
+	private Instant m_epoch;
+	private long m_tick = 0;
+	private volatile Instant m_now;
+
+	private final Object m_statsLock = new Object();
+	private long m_statsStart = System.nanoTime();
+	private long m_ticks = 0;
+	private long m_missedDeadlines = 0;
+	private long m_catchUpTicks = 0;
+	private long m_skippedTicks = 0;
+	private long m_totalLatenessNanos = 0;
+	private long m_maxLatenessNanos = 0;
+	private long m_totalStepNanos = 0;
+	private long m_maxStepNanos = 0;
+	private long m_subSteppedTicks = 0;
+	private long m_idleTicks = 0;
+
+	private SimulationCore(boolean _start, boolean _virtualTime,
+			double _rate, SimulationScheduler _scheduler) {
+		if (_rate <= 0) {
+			throw new IllegalArgumentException("Rate must be > 0");
+		}
+		m_scheduler = _scheduler;
+		m_targetRate = _rate;
+		m_periodExactNanos = 1e9 / m_targetRate;
+		m_periodNanos = Math.round(m_periodExactNanos);
+		m_virtualTime = _virtualTime;
+		m_epoch = Instant.now();
+		m_now = m_epoch;
+		for (int i = 0; i < m_registries.length; i++) {
+			m_registries[i] = new SteppableRegistry(16);
+			m_phaseTimings[i] = new LatencyHistogram(PHASES[i].name());
+		}
+		if (_start) {
+			start();
+		}
+	}
+
+	public double getSimulationRate() {
+		return m_targetRate;
+	}
+
+	/**
+	 * Returns the current time in the simulation. This is the same value that
+	 * is passed to steppables and, in virtual time, may be well ahead of the
+	 * wall clock. Code which compares against the values passed to
+	 * {@link SimulationSteppable#step(Instant, Duration)} should use this
+	 * rather than {@link Instant#now()}.
+	 * 
+	 * @return
+	 */
+	public Instant getTime() {
+		return m_now;
+	}
+
+	/**
+	 * Returns the simulation the current thread belongs to, or null if it
+	 * doesn't belong to one. This is used by {@link SimulationRate} and
+	 * {@link SimulationDelay} so that controllers follow the simulation's
+	 * clock without being given the simulation.
+	 * 
+	 * @return
+	 */
+	public static SimulationCore getCurrent() {
+		return s_current.get();
+	}
+
+	/**
+	 * Wrap a task, e.g. a controller, so that the thread running it, and any
+	 * threads it starts, belong to this simulation while it runs. This is
+	 * the only way a thread comes to belong to a simulation, so that threads
+	 * which outlive a simulation, e.g. pooled ones, never keep it.
+	 * 
+	 * @param _task
+	 * @return
+	 */
+	public Runnable bind(Runnable _task) {
+		return () -> {
+			SimulationCore previous = s_current.get();
+			s_current.set(this);
+			try {
+				_task.run();
+			} finally {
+				s_current.set(previous);
+			}
+		};
+	}
+
+	/**
+	 * Block the calling thread until the simulation reaches the given time.
+	 * This follows the simulation's clock, so returns sooner in virtual time
+	 * and not at all while the simulation is paused. Once the simulation has
+	 * been shut down this falls back to sleeping on the wall clock. Cooperative
+	 * controllers (see {@link #startController(Runnable)}) are parked until
+	 * the time instead.
+	 * 
+	 * @param _time
+	 * @throws IllegalStateException
+	 *             If called from a steppable, which would stop the simulation
+	 *             ever reaching the time.
+	 */
+	public void sleepUntil(Instant _time) {
+		if (s_stepping.get() == this) {
+			throw new IllegalStateException(
+					"sleepUntil can't be called from a steppable");
+		}
+		Instant now = m_now;
+		if (!_time.isAfter(now)) {
+			return;
+		}
+
+		if (ControllerScheduler.sleepUntil(_time)) {
+			return;
+		}
+
+		if (m_shutdown) {
+			// don't let loops which sleep spin once the simulation has gone
+			try {
+				Thread.sleep(Duration.between(now, _time).toMillis());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return;
+		}
+
+		try {
+			// the controller scheduler does this for its controllers
+			addSteppable(new Wakeup(_time), SimulationPhase.ACT).get();
+		} catch (CancellationException e) {
+			// the simulation was shut down
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Block the calling thread for the given amount of simulated time.
+	 * 
+	 * @param _duration
+	 * @see #sleepUntil(Instant)
+	 */
+	public void sleep(Duration _duration) {
+		sleepUntil(m_now.plus(_duration));
+	}
+
+	/**
+	 * Whether controllers started with {@link #startController(Runnable)}
+	 * run cooperatively in the simulation, or freely in their own threads.
+	 * 
+	 * @return
+	 */
+	public boolean isCooperativeControllers() {
+		return m_cooperativeControllers;
+	}
+
+	/**
+	 * Set whether controllers started from now on with
+	 * {@link #startController(Runnable)} run cooperatively in the
+	 * simulation's {@link SimulationPhase#ACT} phase (see
+	 * {@link ControllerScheduler}), making runs repeatable, or freely in their
+	 * own threads as normal. This is off by default as cooperative controllers
+	 * must only block by waiting on the simulation.
+	 * 
+	 * @param _cooperative
+	 */
+	public void setCooperativeControllers(boolean _cooperative) {
+		m_cooperativeControllers = _cooperative;
+	}
+
+	/**
+	 * Start a controller for something in this simulation, bound to the
+	 * simulation (see {@link #bind(Runnable)}) and run cooperatively if
+	 * {@link #setCooperativeControllers(boolean)} has been set. The
+	 * simulation is woken when the controller finishes, so event-driven
+	 * steppables which wait for it (see {@link #setEventDriven(boolean)}) are
+	 * stepped straight away.
+	 * 
+	 * @param _controller
+	 * @return The thread the controller runs in.
+	 */
+	public Thread startController(Runnable _controller) {
+		Runnable controller = () -> {
+			try {
+				_controller.run();
+			} finally {
+				wake(true);
+			}
+		};
+		if (m_cooperativeControllers) {
+			return getControllerScheduler().start(controller);
+		} else {
+			Thread thread = new Thread(bind(controller));
+			thread.start();
+			return thread;
+		}
+	}
+
+	private synchronized ControllerScheduler getControllerScheduler() {
+		if (m_controllerScheduler == null) {
+			m_controllerScheduler = new ControllerScheduler(this);
+		}
+		return m_controllerScheduler;
+	}
+
+	/**
+	 * The seed of all the randomness handed out by {@link #createRandom()}.
+	 * Unless one is set this is chosen at random when the simulation is
+	 * created, so a run can be repeated by setting the seed it used.
+	 * 
+	 * @return
+	 */
+	public synchronized long getSeed() {
+		return m_seed;
+	}
+
+	/**
+	 * Set the seed of all the randomness handed out by {@link #createRandom()}
+	 * from now on. Set this before creating anything which uses randomness.
+	 * If the simulation hasn't started, its clock is also moved to start at
+	 * {@link #SEEDED_EPOCH} rather than the wall-clock time it was created,
+	 * so that runs with the same seed see the same times as well.
+	 * 
+	 * @param _seed
+	 */
+	public synchronized void setSeed(long _seed) {
+		m_seed = _seed;
+		m_random = new SplittableRandom(_seed);
+		if (!m_started) {
+			m_stepLock.lock();
+			try {
+				m_epoch = SEEDED_EPOCH;
+				m_now = m_epoch;
+			} finally {
+				m_stepLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Create a random number generator for something in the simulation. Each
+	 * one is an independent stream split from the simulation's seed, so as
+	 * long as things are created in the same order, and each only uses its
+	 * own generator, a simulation with the same seed makes the same random
+	 * choices. For the same trace from controllers running in their own
+	 * threads, run them cooperatively (see
+	 * {@link #setCooperativeControllers(boolean)}) in virtual time.
+	 * 
+	 * @return
+	 */
+	public synchronized Random createRandom() {
+		return new Random(m_random.split().nextLong());
+	}
+
+	/**
+	 * Returns the double-buffered state of the world, which is published at
+	 * the end of the {@link SimulationPhase#INTEGRATE} phase of each step.
+	 * 
+	 * @return
+	 */
+	public WorldState getWorldState() {
+		return m_worldState;
+	}
+
+	/**
+	 * Publish the world state again at the end of the current phase, for a
+	 * steppable which has moved something after it was published, e.g. to
+	 * resolve a collision, so that nothing else sees the pose it was moved
+	 * from for the rest of the step.
+	 */
+	void republish() {
+		m_republish = true;
+	}
+
+	public boolean isVirtualTime() {
+		return m_virtualTime;
+	}
+
+	/**
+	 * Switch between virtual time (steps run back-to-back) and real time
+	 * (steps are synchronised with the wall clock). The sequence of times
+	 * passed to steppables is the same in either mode, only the wall-clock
+	 * delay between steps changes.
+	 * 
+	 * @param _virtualTime
+	 */
+	public void setVirtualTime(boolean _virtualTime) {
+		if (m_virtualTime != _virtualTime) {
+			m_virtualTime = _virtualTime;
+			m_resync = true;
+			// an idle simulation needs to work out when to wake again
+			wake(false);
+		}
+	}
+
+	public boolean isEventDriven() {
+		return m_eventDriven;
+	}
+
+	/**
+	 * Set whether the simulation skips steps in which nothing would happen.
+	 * When this is on and every steppable in the simulation is an
+	 * {@link EventDrivenSteppable}, the simulation jumps straight to the
+	 * earliest of their next events. In virtual time the jump is immediate. In
+	 * real time the simulation sleeps until the event is due by the wall
+	 * clock. If there is no next event then it sleeps until a steppable is
+	 * added, e.g. by a controller moving a motor. Either way, adding a
+	 * steppable wakes the simulation up straight away. Things which change
+	 * the world without adding a steppable (e.g. setting a robot's pose) are
+	 * not seen until the simulation next wakes.
+	 * 
+	 * @param _eventDriven
+	 */
+	public void setEventDriven(boolean _eventDriven) {
+		m_eventDriven = _eventDriven;
+		if (!_eventDriven) {
+			wake(false);
+		}
+	}
+
+	/**
+	 * 
+	 * Add a steppable entity to the simulation that runs at a configurable rate
+	 * compared with the base rate.
+	 * 
+	 * @param _steppable
+	 * @param _stepRate
+	 *            The multiple of the target rate to run at. 1 runs every
+	 *            simulation step, 2 runs every other step etc.
+	 * @param _phase
+	 *            The phase of the step to run the steppable in.
+	 * @return A future which completes when the steppable is removed.
+	 */
+	private CompletableFuture<Void> addSteppable(
+			SimulationSteppable _steppable, int _stepRate,
+			SimulationPhase _phase) {
+		CompletableFuture<Void> completion = newCompletion(_steppable);
+		m_toAdd.add(new PendingSteppable(_steppable, _stepRate, _phase,
+				completion));
+		if (m_shutdown) {
+			// will never be stepped
+			completion.cancel(false);
+		} else {
+			wake(true);
+		}
+		return completion;
+	}
+
+	/**
+	 * Create the future which is completed when the given steppable is
+	 * removed.
+	 * 
+	 * @param _steppable
+	 * @return
+	 */
+	private CompletableFuture<Void> newCompletion(
+			SimulationSteppable _steppable) {
+		CompletableFuture<Void> completion = new CompletableFuture<>();
+		m_completions.put(_steppable, completion);
+		// forget the completion once it's done, unless the same steppable
+		// has been added again since
+		completion.whenComplete((v, t) -> m_completions.remove(_steppable,
+				completion));
+		return completion;
+	}
+
+	/**
+	 * Returns the future which completes when the given steppable is removed,
+	 * or null if it is not in the simulation.
+	 * 
+	 * @param _steppable
+	 * @return
+	 */
+	CompletableFuture<Void> getCompletion(SimulationSteppable _steppable) {
+		return m_completions.get(_steppable);
+	}
+
+	private void addSteppablesFromQueue() {
+
+		PendingSteppable pending = m_toAdd.poll();
+
+		while (pending != null) {
+
+			int stepRate = pending.stepRate;
+
+			if (stepRate < 1) {
+				System.out.println("Invalid step rate");
+				stepRate = 1;
+			}
+
+			LatencyHistogram timing = m_steppableTimings.computeIfAbsent(
+					pending.steppable.getClass().getName(),
+					LatencyHistogram::new);
+
+			m_registries[pending.phase.ordinal()].add(pending.steppable,
+					stepRate, pending.completion, timing);
+
+			pending = m_toAdd.poll();
+		}
+	}
+
+	/**
+	 * Add a steppable to the {@link SimulationPhase#INTEGRATE} phase of the
+	 * simulation.
+	 * 
+	 * @param _steppable
+	 * @return A future which completes when the steppable is removed.
+	 */
+	public CompletableFuture<Void> addSteppable(SimulationSteppable _steppable) {
+		return addSteppable(_steppable, SimulationPhase.INTEGRATE);
+	}
+
+	/**
+	 * Add a steppable to the given phase of the simulation. The returned future
+	 * is completed by the simulation thread in the step in which the
+	 * steppable's remove method returns true. Any stages added to it with the
+	 * non-async methods of {@link CompletableFuture} therefore run in the
+	 * simulation thread, so they must be quick and must not block (adding
+	 * further steppables is fine).
+	 * 
+	 * @param _steppable
+	 * @param _phase
+	 * @return A future which completes when the steppable is removed.
+	 */
+	public CompletableFuture<Void> addSteppable(
+			SimulationSteppable _steppable, SimulationPhase _phase) {
+		return addSteppable(_steppable, 1, _phase);
+	}
+
+	/**
+	 * Set the number of threads used to run the steppables within each phase
+	 * of a step. With a parallelism of 1 (the default) all steppables are run
+	 * in the simulation thread. Otherwise the steppables in each phase are
+	 * shared across a fork-join pool, and each phase finishes before the next
+	 * one starts. Steppables are still stepped and removed in the same order,
+	 * so as long as steppables in the same phase don't depend on each other
+	 * the results are the same as running in a single thread.
+	 * 
+	 * @param _parallelism
+	 */
+	public void setParallelism(int _parallelism) {
+		if (_parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be >= 1");
+		}
+
+		ForkJoinPool old = m_pool;
+		if (_parallelism == 1) {
+			m_pool = null;
+		} else {
+			m_pool = new ForkJoinPool(_parallelism);
+		}
+		if (old != null) {
+			old.shutdown();
+		}
+	}
+
+	public int getParallelism() {
+		ForkJoinPool pool = m_pool;
+		return pool == null ? 1 : pool.getParallelism();
+	}
+
+	private final Lock m_stepLock = new ReentrantLock();
+
+	/**
+	 * Stop stepping the simulation until {@link #unpause()} is called. This
+	 * waits for the current step to finish, and no step starts after it
+	 * returns. No lock is held while paused, so any thread may take a
+	 * snapshot, restore one or unpause the simulation.
+	 * 
+	 * @throws IllegalStateException
+	 *             If called from within a step, see {@link #snapshot()}.
+	 */
+	public void pause() {
+		checkNotInStep("pause");
+		m_stepLock.lock();
+		try {
+			m_paused = true;
+		} finally {
+			m_stepLock.unlock();
+		}
+	}
+
+	/**
+	 * Carry on stepping the simulation after {@link #pause()}.
+	 */
+	public void unpause() {
+		m_stepLock.lock();
+		try {
+			if (!m_paused) {
+				return;
+			}
+			m_paused = false;
+			m_resync = true;
+		} finally {
+			m_stepLock.unlock();
+		}
+		// the paused tick went to sleep
+		wake(false);
+	}
+
+	/**
+	 * Start running the simulation on its scheduler.
+	 */
+	public synchronized void start() {
+		if (m_shutdown) {
+			throw new IllegalStateException("Simulation has been shut down");
+		}
+		if (!m_started) {
+			m_started = true;
+			registerMBean();
+			m_deadline = System.nanoTime();
+			submit(m_tickTask, m_deadline);
+		}
+	}
+
+	public synchronized boolean isStarted() {
+		return m_started;
+	}
+
+	/**
+	 * Stop the simulation. The current step is allowed to finish, then all
+	 * steppables are removed without being stepped again and their futures
+	 * are cancelled, as are those of any steppables added afterwards.
+	 */
+	public synchronized void shutdown() {
+		if (!m_shutdown) {
+			m_shutdown = true;
+			if (!m_started) {
+				// no tick will run to clear up
+				clear();
+			} else {
+				// an idle simulation needs a tick to clear up
+				wake(false);
+			}
+			unregisterMBean();
+			if (Boolean.getBoolean("rp.simulation.dumpTimings")) {
+				dumpTimings(System.out);
+			}
+		}
+	}
+
+	private void registerMBean() {
+		try {
+			ObjectName name = new ObjectName(
+					"rp.robotics.simulation:type=SimulationCore,name="
+							+ m_name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new Management(), name);
+			m_mbeanName = name;
+		} catch (JMException e) {
+			System.err.println("Could not register simulation MBean: "
+					+ e.getMessage());
+		}
+	}
+
+	private void unregisterMBean() {
+		if (m_mbeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+						m_mbeanName);
+			} catch (JMException e) {
+				System.err.println("Could not unregister simulation MBean: "
+						+ e.getMessage());
+			}
+			m_mbeanName = null;
+		}
+	}
+
+	public boolean isShutdown() {
+		return m_shutdown;
+	}
+
+	private void submit(Runnable _task, long _deadline) {
+		try {
+			if (m_virtualTime) {
+				m_scheduler.execute(_task);
+			} else {
+				m_scheduler.schedule(_task, _deadline);
+			}
+		} catch (RejectedExecutionException e) {
+			// the scheduler has been shut down
+			if (!m_shutdown) {
+				System.err
+						.println("Simulation scheduler has been shut down, stopping simulation");
+				m_shutdown = true;
+			}
+			clear();
+		}
+	}
+
+	/**
+	 * Remove all steppables, cancelling their futures.
+	 */
+	private void clear() {
+		for (SteppableRegistry registry : m_registries) {
+			registry.cancelAll();
+		}
+		PendingSteppable pending = m_toAdd.poll();
+		while (pending != null) {
+			pending.completion.cancel(false);
+			pending = m_toAdd.poll();
+		}
+		ForkJoinPool pool = m_pool;
+		if (pool != null) {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Run a single step then schedule the next one. If the simulation is
+	 * paused this goes to sleep instead, until woken by unpausing or shutting
+	 * down.
+	 */
+	private void tick() {
+
+		if (!m_stepLock.tryLock()) {
+			// being snapshotted, restored or paused, so check back in a
+			// period without blocking the scheduler's thread
+			m_resync = true;
+			submit(m_tickTask, System.nanoTime() + m_periodNanos);
+			return;
+		}
+
+		if (m_shutdown) {
+			try {
+				clear();
+			} finally {
+				m_stepLock.unlock();
+			}
+			return;
+		}
+
+		if (m_paused) {
+			m_stepLock.unlock();
+			m_sleeping.set(true);
+			// in case it was unpaused or shut down before going to sleep
+			if (!m_paused || m_shutdown) {
+				wake(false);
+			}
+			return;
+		}
+
+		if (m_idle) {
+			skipIdleTicks();
+		}
 
-		private final int m_stepRatio;
-		private final ArrayList<SimulationSteppable> m_steppables;
-		private int countDown;
-		private Instant lastCall = null;
+		if (m_resync) {
+			// don't try to catch up on time spent paused or in virtual time
+			m_resync = false;
+			m_deadline = System.nanoTime();
+		}
+
+		boolean virtualTime = m_virtualTime;
+		long stepDeadline = m_deadline;
+		long stepStart = System.nanoTime();
+
+		try {
+			step();
+		} finally {
+			m_stepLock.unlock();
+			synchronized (m_stepLock) {
+				m_stepLock.notifyAll();
+			}
+		}
+
+		long stepEnd = System.nanoTime();
+
+		if (m_resync) {
+			// paused or switched mode during the step, so its timing is
+			// meaningless
+		} else if (virtualTime) {
+			recordTick(0, stepEnd - stepStart);
+			m_deadline = stepEnd;
+		} else {
+			recordTick(Math.max(0, stepStart - m_deadline), stepEnd
+					- stepStart);
+			m_deadline = nextDeadline(m_deadline + m_periodNanos, stepEnd);
+		}
+
+		if (m_idle) {
+			sleep(stepDeadline);
+			return;
+		}
+
+		// virtual time goes to the back of the scheduler's queue, giving
+		// other simulations a chance to run
+		submit(m_tickTask, m_deadline);
+	}
+
+	/**
+	 * Stop running ticks after a step which left the world idle. The next
+	 * tick is scheduled for the next event, if there is one, or when the
+	 * simulation is woken.
+	 * 
+	 * @param _stepDeadline
+	 *            When the idle step should have started.
+	 */
+	private void sleep(long _stepDeadline) {
+		m_sleeping.set(true);
+		if (m_wakeTick != Long.MAX_VALUE) {
+			long deadline = m_virtualTime ? System.nanoTime() : _stepDeadline
+					+ Math.round((m_wakeTick - m_idleTick)
+							* m_periodExactNanos);
+			submit(() -> {
+				if (m_sleeping.compareAndSet(true, false)) {
+					tick();
+				}
+			}, deadline);
+		}
+		// in case something was added after the step checked
+		if (!m_toAdd.isEmpty() || m_shutdown) {
+			wake(true);
+		}
+	}
+
+	/**
+	 * Run the next tick straight away if the simulation is idle.
+	 * 
+	 * @param _command
+	 *            Whether this is because something which may change the world
+	 *            happened, e.g. a steppable was added or a controller
+	 *            finished.
+	 */
+	private void wake(boolean _command) {
+		if (m_sleeping.compareAndSet(true, false)) {
+			if (_command) {
+				m_wokenByCommand = true;
+			}
+			submit(m_tickTask, System.nanoTime());
+		}
+	}
+
+	/**
+	 * Move the clock past the ticks skipped while idle, so that the next step
+	 * is at the next event, or when the simulation was woken if that was
+	 * sooner. Must be called with the step lock held.
+	 */
+	private void skipIdleTicks() {
+		long next;
+		if (m_virtualTime) {
+			next = m_wokenByCommand || m_wakeTick == Long.MAX_VALUE ? m_idleTick + 1
+					: m_wakeTick;
+		} else {
+			// the last tick which is not in the future by the wall clock
+			long elapsed = System.nanoTime() - m_idleDeadline;
+			next = Math.min(m_wakeTick, m_idleTick
+					+ Math.max(1, (long) (elapsed / m_periodExactNanos)));
+		}
+		// a restore may have moved the clock since
+		next = Math.max(next, m_tick + 1);
 
-		public SteppableWrapper(int _stepRatio, SimulationSteppable _steppable) {
-			super();
-			m_stepRatio = _stepRatio;
-			m_steppables = new ArrayList<SimulationSteppable>();
-			m_steppables.add(_steppable);
-			countDown = m_stepRatio;
+		synchronized (m_statsLock) {
+			m_idleTicks += next - m_tick - 1;
 		}
 
-		public void step(Instant _now) {
+		m_tick = next - 1;
+		m_idle = false;
+		m_wokenByCommand = false;
+		m_resync = true;
+	}
+
+	/**
+	 * Work out when the next step should start, applying the overrun policy
+	 * if the last step finished after its deadline.
+	 * 
+	 * @param _deadline
+	 * @param _stepEnd
+	 * @return
+	 */
+	private long nextDeadline(long _deadline, long _stepEnd) {
+
+		if (_stepEnd > _deadline) {
+			// this step overran into the next one
+			long behind = ((_stepEnd - _deadline) / m_periodNanos) + 1;
+
+			long toSkip = 0;
+			if (m_overrunPolicy == OverrunPolicy.SKIP) {
+				toSkip = behind;
+			} else if (behind > m_maxCatchUpTicks) {
+				toSkip = behind - m_maxCatchUpTicks;
+			}
 
-			if (lastCall == null) {
-				lastCall = _now;
+			synchronized (m_statsLock) {
+				m_missedDeadlines++;
+				m_skippedTicks += toSkip;
+				m_catchUpTicks += behind - toSkip;
 			}
 
-			if (--countDown == 0) {
+			return _deadline + toSkip * m_periodNanos;
+		}
+
+		return _deadline;
+	}
+
+	/**
+	 * Run a single step of the simulation. Must be called with the step lock
+	 * held.
+	 */
+	private void step() {
+
+		try {
+
+			m_inStep = true;
+			s_stepping.set(this);
+
+			addSteppablesFromQueue();
 
-				// System.out.println("GO ------ " + m_stepRatio);
+			Instant now = m_epoch.plusNanos(Math.round(++m_tick
+					* m_periodExactNanos));
+			m_now = now;
 
-				Duration interval = Duration.between(lastCall, _now);
+			ForkJoinPool pool = m_pool;
 
-				for (Iterator<SimulationSteppable> iterator = m_steppables
-						.iterator(); iterator.hasNext();) {
-					SimulationSteppable steppable = iterator.next();
-					if (steppable.remove(_now, interval)) {
+			boolean timed = m_timingEnabled;
 
-						iterator.remove();
-						synchronized (steppable) {
-							steppable.notifyAll();
-						}
+			for (int i = 0; i < PHASES.length; i++) {
+				SteppableRegistry registry = m_registries[i];
 
-					} else {
-						// System.out.println("wrapper step");
-						steppable.step(_now, interval);
-						// if (steppable.remove(_now, interval)) {
-						//
-						// iterator.remove();
-						// synchronized (steppable) {
-						// steppable.notifyAll();
-						// }
-						//
-						// }
+				long phaseStart = timed ? System.nanoTime() : 0;
 
-					}
+				registry.setTimed(timed);
+				registry.countDown(now);
 
+				if (PHASES[i] == SimulationPhase.INTEGRATE) {
+					// this runs the collide phase too
+					integrateAndCollide(i, i + 1, now, pool, timed, phaseStart);
+					i++;
+					continue;
 				}
 
-				lastCall = _now;
-				countDown = m_stepRatio;
+				stepPhase(registry, now, 1, 1, pool);
+
+				// removal happens in this thread, in slot order, whether the
+				// phase ran in parallel or not
+				registry.removeFinished();
+
+				if (m_republish) {
+					// something was moved back, so publish the new world
+					m_republish = false;
+					m_worldState.publish(m_tick);
+				}
+
+				if (timed) {
+					m_phaseTimings[i].record(System.nanoTime() - phaseStart);
+				}
+			}
+
+			if (m_eventDriven && m_toAdd.isEmpty()) {
+				checkIdle(now);
 			}
+
+		} catch (Exception e) {
+			System.err.println("caught in SimulationCore.step(): "
+					+ e.getMessage());
+			e.printStackTrace();
+		} finally {
+			s_stepping.remove();
+			m_inStep = false;
 		}
 	}
 
-	private final LinkedList<SteppableWrapper> m_wrappers = new LinkedList<SteppableWrapper>();
-	private final ConcurrentLinkedQueue<Pair<SimulationSteppable, Integer>> m_toAdd = new ConcurrentLinkedQueue<>();
+	/**
+	 * Throw an exception if the calling thread is part of a step of this
+	 * simulation, i.e. a steppable or a cooperative controller, which would
+	 * wait forever for the step it is part of to finish.
+	 * 
+	 * @param _what
+	 *            What was called, for the message.
+	 */
+	private void checkNotInStep(String _what) {
+		if (s_stepping.get() == this
+				|| ControllerScheduler.isCooperativeIn(this)) {
+			throw new IllegalStateException(_what
+					+ " can't be called from within a step of the simulation");
+		}
+	}
 
-	public static SimulationCore createSimulationCore() {
-		return new SimulationCore(true);
+	/**
+	 * Run the {@link SimulationPhase#INTEGRATE} and
+	 * {@link SimulationPhase#COLLIDE} phases. If anything would move too far
+	 * in one step they are run in turn over several shorter steps, so
+	 * collisions are checked at each of the places things move through, not
+	 * just where they end up. The world is published after each integration
+	 * step.
+	 * 
+	 * @param _integrate
+	 *            The index of the integrate phase, already counted down.
+	 * @param _collide
+	 *            The index of the collide phase.
+	 * @param _now
+	 * @param _pool
+	 * @param _timed
+	 * @param _phaseStart
+	 */
+	private void integrateAndCollide(int _integrate, int _collide,
+			Instant _now, ForkJoinPool _pool, boolean _timed, long _phaseStart) {
+
+		SteppableRegistry integrators = m_registries[_integrate];
+		SteppableRegistry colliders = m_registries[_collide];
+		colliders.setTimed(_timed);
+		colliders.countDown(_now);
+
+		int subSteps = integrators.subStepsNeeded(m_maxSubStepDistance,
+				m_maxSubStepAngle, m_maxSubSteps);
+		if (subSteps > 1) {
+			synchronized (m_statsLock) {
+				m_subSteppedTicks++;
+			}
+		}
+
+		long collideNanos = 0;
+		for (int k = 1; k <= subSteps; k++) {
+			stepPhase(integrators, _now, k, subSteps, _pool);
+
+			// everything has moved, so publish the new world
+			m_republish = false;
+			m_worldState.publish(m_tick);
+
+			long collideStart = _timed ? System.nanoTime() : 0;
+			stepPhase(colliders, _now, k, subSteps, _pool);
+			if (m_republish) {
+				// something was moved back
+				m_republish = false;
+				m_worldState.publish(m_tick);
+			}
+			if (_timed) {
+				collideNanos += System.nanoTime() - collideStart;
+			}
+		}
+
+		integrators.removeFinished();
+		colliders.removeFinished();
+
+		if (_timed) {
+			m_phaseTimings[_integrate].record(System.nanoTime() - _phaseStart
+					- collideNanos);
+			m_phaseTimings[_collide].record(collideNanos);
+		}
 	}
 
-	public static SimulationCore createSimulationCore(boolean _start) {
-		return new SimulationCore(_start);
+	/**
+	 * Step the due steppables in a phase over the given part of the step, in
+	 * parallel if there are enough of them.
+	 */
+	private void stepPhase(SteppableRegistry _registry, Instant _now,
+			int _subStep, int _subSteps, ForkJoinPool _pool) {
+		int count = _registry.size();
+		if (_pool == null || count < PARALLEL_THRESHOLD) {
+			_registry.step(0, count, _now, _subStep, _subSteps);
+		} else {
+			_pool.invoke(new ParallelStep(this, _registry, 0, count, _now,
+					_subStep, _subSteps));
+		}
 	}
 
-	private final double m_targetRate;
-	private boolean m_inStep = false;
-	private boolean m_paused = false;
+	/**
+	 * Check whether anything needs stepping in the next step and, if not,
+	 * note when the next thing does.
+	 * 
+	 * @param _now
+	 */
+	private void checkIdle(Instant _now) {
+		Instant next = null;
+		for (SteppableRegistry registry : m_registries) {
+			Instant event = registry.nextEventTime(_now);
+			if (event != null && (next == null || event.isBefore(next))) {
+				next = event;
+			}
+		}
 
-	private SimulationCore(boolean _start) {
-		setDaemon(true);
-		setPriority(MAX_PRIORITY);
-		m_targetRate = 60;
-		if (_start) {
-			start();
+		long wakeTick = Long.MAX_VALUE;
+		if (next != null) {
+			// the first tick at or after the event
+			long nanos = Duration.between(m_epoch, next).toNanos();
+			wakeTick = (long) Math.ceil(nanos / m_periodExactNanos);
+		}
+
+		if (wakeTick > m_tick + 1) {
+			m_idle = true;
+			m_idleTick = m_tick;
+			m_idleDeadline = m_deadline;
+			m_wakeTick = wakeTick;
 		}
 	}
 
-	public double getSimulationRate() {
-		return m_targetRate;
+	private void recordTick(long _latenessNanos, long _stepNanos) {
+		synchronized (m_statsLock) {
+			m_ticks++;
+			m_totalLatenessNanos += _latenessNanos;
+			m_maxLatenessNanos = Math.max(m_maxLatenessNanos, _latenessNanos);
+			m_totalStepNanos += _stepNanos;
+			m_maxStepNanos = Math.max(m_maxStepNanos, _stepNanos);
+		}
 	}
 
 	/**
+	 * Returns a summary of how well the simulation has kept to its target
+	 * rate since it started or since the statistics were last reset.
 	 * 
-	 * Add a steppable entity to the simulation that runs at a configurable rate
-	 * compared with the base rate.
+	 * @return
+	 */
+	public TickStatistics getTickStatistics() {
+		synchronized (m_statsLock) {
+			return new TickStatistics(m_targetRate, m_ticks, System.nanoTime()
+					- m_statsStart, m_missedDeadlines, m_catchUpTicks,
+					m_skippedTicks, m_totalLatenessNanos, m_maxLatenessNanos,
+					m_totalStepNanos, m_maxStepNanos, m_subSteppedTicks,
+					m_idleTicks);
+		}
+	}
+
+	public void resetTickStatistics() {
+		synchronized (m_statsLock) {
+			m_statsStart = System.nanoTime();
+			m_ticks = 0;
+			m_missedDeadlines = 0;
+			m_catchUpTicks = 0;
+			m_skippedTicks = 0;
+			m_totalLatenessNanos = 0;
+			m_maxLatenessNanos = 0;
+			m_totalStepNanos = 0;
+			m_maxStepNanos = 0;
+			m_subSteppedTicks = 0;
+			m_idleTicks = 0;
+		}
+	}
+
+	/**
+	 * Set whether the time taken by each phase and each steppable is
+	 * recorded. This is on by default and costs two reads of the clock per
+	 * steppable per step.
 	 * 
-	 * @param _steppable
-	 * @param _stepRate
-	 *            The multiple of the target rate to run at. 1 runs every
-	 *            simulation step, 2 runs every other step etc.
+	 * @param _enabled
 	 */
-	private void addSteppable(SimulationSteppable _steppable, int _stepRate) {
-		m_toAdd.add(Pair.makePair(_steppable, _stepRate));
+	public void setTimingEnabled(boolean _enabled) {
+		m_timingEnabled = _enabled;
 	}
 
-	private void addSteppablesFromQueue() {
+	public boolean isTimingEnabled() {
+		return m_timingEnabled;
+	}
+
+	public LatencyHistogram getPhaseTiming(SimulationPhase _phase) {
+		return m_phaseTimings[_phase.ordinal()];
+	}
+
+	/**
+	 * Returns the time taken by each class of steppable which has been added
+	 * to the simulation, slowest in total first.
+	 * 
+	 * @return
+	 */
+	public List<LatencyHistogram> getSteppableTimings() {
+		List<LatencyHistogram> timings = new ArrayList<>(
+				m_steppableTimings.values());
+		timings.sort(Comparator.comparingLong(
+				LatencyHistogram::getTotalNanos).reversed());
+		return timings;
+	}
+
+	public void resetTimings() {
+		for (LatencyHistogram timing : m_phaseTimings) {
+			timing.reset();
+		}
+		for (LatencyHistogram timing : m_steppableTimings.values()) {
+			timing.reset();
+		}
+	}
+
+	/**
+	 * Write a summary of the simulation's timing to the given stream.
+	 * 
+	 * @param _out
+	 */
+	public void dumpTimings(PrintStream _out) {
+		_out.println(m_name + ": " + getTickStatistics());
+		for (LatencyHistogram timing : m_phaseTimings) {
+			_out.println("  phase " + timing);
+		}
+		for (LatencyHistogram timing : getSteppableTimings()) {
+			_out.println("  " + timing);
+		}
+	}
+
+	/**
+	 * Exposes the simulation's statistics via JMX.
+	 */
+	private class Management implements SimulationCoreMXBean {
+
+		@Override
+		public double getTargetRate() {
+			return m_targetRate;
+		}
 
-		Pair<SimulationSteppable, Integer> pair = m_toAdd.poll();
+		@Override
+		public double getAchievedRate() {
+			return getTickStatistics().getAchievedRate();
+		}
 
-		// int in = 0;
+		@Override
+		public long getTicks() {
+			return getTickStatistics().getTicks();
+		}
 
-		while (pair != null) {
+		@Override
+		public long getMissedDeadlines() {
+			return getTickStatistics().getMissedDeadlines();
+		}
 
-			// System.out.println("Adding: " + ++in);
+		@Override
+		public long getSkippedTicks() {
+			return getTickStatistics().getSkippedTicks();
+		}
 
-			SimulationSteppable _steppable = pair.getItem1();
-			Integer _stepRate = pair.getItem2();
+		@Override
+		public long getSubSteppedTicks() {
+			return getTickStatistics().getSubSteppedTicks();
+		}
 
-			if (_stepRate < 1) {
-				System.out.println("Invalid step rate");
-				_stepRate = 1;
-			}
-
-			int count = 0;
-			boolean stored = false;
-			for (SteppableWrapper wrapper : m_wrappers) {
-
-				// System.out.println("c: " + count);
-				// System.out.println("step: " + _stepRate);
-				// System.out.println("wrap: " + wrapper.m_stepRatio);
-
-				if (_stepRate < wrapper.m_stepRatio) {
-					m_wrappers.add(count, new SteppableWrapper(_stepRate,
-							_steppable));
-					stored = true;
-					// System.out.println("Added new");
-					break;
-				} else if (_stepRate == wrapper.m_stepRatio) {
-					wrapper.m_steppables.add(_steppable);
-					stored = true;
-					// System.out.println("Udpated");
-					break;
-				} else {
-					count++;
-				}
+		@Override
+		public long getIdleTicks() {
+			return getTickStatistics().getIdleTicks();
+		}
+
+		@Override
+		public boolean isEventDriven() {
+			return m_eventDriven;
+		}
+
+		@Override
+		public double getMeanJitterMs() {
+			return getTickStatistics().getMeanJitterMs();
+		}
+
+		@Override
+		public double getMaxJitterMs() {
+			return getTickStatistics().getMaxJitterMs();
+		}
+
+		@Override
+		public double getMeanStepMs() {
+			return getTickStatistics().getMeanStepMs();
+		}
+
+		@Override
+		public double getMaxStepMs() {
+			return getTickStatistics().getMaxStepMs();
+		}
+
+		@Override
+		public boolean isVirtualTime() {
+			return m_virtualTime;
+		}
+
+		@Override
+		public boolean isTimingEnabled() {
+			return m_timingEnabled;
+		}
+
+		@Override
+		public void setTimingEnabled(boolean _enabled) {
+			SimulationCore.this.setTimingEnabled(_enabled);
+		}
 
+		@Override
+		public String[] getPhaseTimings() {
+			String[] timings = new String[m_phaseTimings.length];
+			for (int i = 0; i < timings.length; i++) {
+				timings[i] = m_phaseTimings[i].toString();
 			}
-			if (!stored) {
-				// System.out.println("At end");
-				// if we got to the end of the list, add it there
-				m_wrappers.add(count, new SteppableWrapper(_stepRate,
-						_steppable));
+			return timings;
+		}
+
+		@Override
+		public String[] getSteppableTimings() {
+			List<LatencyHistogram> timings = SimulationCore.this
+					.getSteppableTimings();
+			String[] summaries = new String[timings.size()];
+			for (int i = 0; i < summaries.length; i++) {
+				summaries[i] = timings.get(i).toString();
 			}
-			pair = m_toAdd.poll();
+			return summaries;
+		}
+
+		@Override
+		public void resetStatistics() {
+			resetTickStatistics();
+			resetTimings();
 		}
 	}
 
-	public void addSteppable(SimulationSteppable _steppable) {
-		addSteppable(_steppable, 1);
+	public OverrunPolicy getOverrunPolicy() {
+		return m_overrunPolicy;
 	}
 
-	private final Lock m_stepLock = new ReentrantLock();
+	/**
+	 * Set what happens when a step takes longer than the period of the
+	 * simulation.
+	 * 
+	 * @param _policy
+	 */
+	public void setOverrunPolicy(OverrunPolicy _policy) {
+		m_overrunPolicy = _policy;
+	}
 
-	public void pause() {
-		synchronized (m_stepLock) {
-			if (!m_paused) {
-				m_stepLock.lock();
-				m_paused = true;
-			}
+	/**
+	 * Set the maximum number of steps that will be run back-to-back to catch
+	 * up after an overrun when using {@link OverrunPolicy#CATCH_UP}. Any
+	 * further missed steps are skipped.
+	 * 
+	 * @param _maxCatchUpTicks
+	 */
+	public void setMaxCatchUpTicks(int _maxCatchUpTicks) {
+		if (_maxCatchUpTicks < 0) {
+			throw new IllegalArgumentException(
+					"Maximum catch up ticks must be >= 0");
 		}
+		m_maxCatchUpTicks = _maxCatchUpTicks;
 	}
 
-	public void unpause() {
-		synchronized (m_stepLock) {
-			if (m_paused) {
-				m_stepLock.unlock();
-				m_paused = false;
-			}
+	/**
+	 * Set how far anything may move in a single integration step. When a
+	 * {@link MovingSteppable} in the {@link SimulationPhase#INTEGRATE} phase
+	 * would move further than either limit in one step, the whole phase is
+	 * run as several shorter steps, up to the maximum number of sub-steps,
+	 * with the {@link SimulationPhase#COLLIDE} phase run after each. The
+	 * moves themselves are exact however long the step, so this is only for
+	 * catching collisions part way through a step.
+	 * 
+	 * @param _maxDistance
+	 *            In metres.
+	 * @param _maxAngle
+	 *            In degrees.
+	 */
+	public void setSubStepLimits(double _maxDistance, double _maxAngle) {
+		if (_maxDistance <= 0 || _maxAngle <= 0) {
+			throw new IllegalArgumentException(
+					"Sub-step limits must be > 0");
 		}
+		m_maxSubStepDistance = _maxDistance;
+		m_maxSubStepAngle = _maxAngle;
 	}
 
-	@Override
-	public void run() {
-		Rate r = new Rate(m_targetRate);
-
-		Duration step = Duration.ofMillis((long) (1000.0 / m_targetRate));
+	public double getMaxSubStepDistance() {
+		return m_maxSubStepDistance;
+	}
 
-		Instant now = Instant.now();
+	public double getMaxSubStepAngle() {
+		return m_maxSubStepAngle;
+	}
 
-		while (true) {
+	/**
+	 * Set the most integration steps a single step can be split into. 1
+	 * turns sub-stepping off.
+	 * 
+	 * @param _maxSubSteps
+	 */
+	public void setMaxSubSteps(int _maxSubSteps) {
+		if (_maxSubSteps < 1) {
+			throw new IllegalArgumentException("Maximum sub-steps must be >= 1");
+		}
+		m_maxSubSteps = _maxSubSteps;
+	}
 
-			m_stepLock.lock();
+	public int getMaxSubSteps() {
+		return m_maxSubSteps;
+	}
 
-			try {
+	/**
+	 * Add something whose state should be captured by {@link #snapshot()}
+	 * and put back by {@link #restore(SimulationSnapshot)}. Steppables which
+	 * are {@link Restorable} are included automatically so don't need adding
+	 * here. Restorables are restored in the order they were added, after the
+	 * steppables. The simulation only holds them weakly, so they needn't be
+	 * removed when nothing else uses them any more, e.g. the motors of a
+	 * robot which has gone, but something else must keep them while they
+	 * are part of the simulation.
+	 * 
+	 * @param _restorable
+	 */
+	public void addRestorable(Restorable<?> _restorable) {
+		m_restorables.add(new WeakReference<>(_restorable));
+	}
 
-				m_inStep = true;
+	public void removeRestorable(Restorable<?> _restorable) {
+		m_restorables.removeIf(r -> r.get() == _restorable);
+	}
 
-				addSteppablesFromQueue();
+	/**
+	 * Capture the state of the simulation between two steps. This waits for
+	 * the current step to finish and stops the next one starting until the
+	 * snapshot has been taken.
+	 * 
+	 * @return
+	 * @throws IllegalStateException
+	 *             If called from within a step, i.e. from a steppable or a
+	 *             cooperative controller (see
+	 *             {@link #setCooperativeControllers(boolean)}), as the step
+	 *             can't finish until the call returns. Controllers which
+	 *             need to do this must not be run cooperatively.
+	 */
+	public SimulationSnapshot snapshot() {
+		checkNotInStep("snapshot");
+		m_stepLock.lock();
+		try {
+			SteppableRegistry.Contents[] contents = new SteppableRegistry.Contents[m_registries.length];
+			for (int i = 0; i < m_registries.length; i++) {
+				contents[i] = m_registries[i].getContents();
+			}
 
-				now = now.plus(step);
+			List<SimulationSnapshot.Pending> pending = new ArrayList<>();
+			for (PendingSteppable p : m_toAdd) {
+				pending.add(new SimulationSnapshot.Pending(p.steppable,
+						p.stepRate, p.phase));
+			}
 
-				for (SteppableWrapper wrapper : m_wrappers) {
-					wrapper.step(now);
+			List<Restorable.Captured<?>> restorables = new ArrayList<>(
+					m_restorables.size());
+			boolean collected = false;
+			for (WeakReference<Restorable<?>> reference : m_restorables) {
+				Restorable<?> restorable = reference.get();
+				if (restorable != null) {
+					restorables.add(Restorable.capture(restorable));
+				} else {
+					collected = true;
 				}
+			}
+			if (collected) {
+				m_restorables.removeIf(r -> r.get() == null);
+			}
 
-			} catch (Exception e) {
-				System.err.println("caught in SimulationCore.run(): "
-						+ e.getMessage());
-				e.printStackTrace();
-			} finally {
+			return new SimulationSnapshot(this, m_tick, m_now, contents,
+					pending.toArray(new SimulationSnapshot.Pending[pending
+							.size()]),
+					restorables.toArray(new Restorable.Captured<?>[restorables
+							.size()]));
+		} finally {
+			m_stepLock.unlock();
+		}
+	}
+
+	/**
+	 * Put the simulation back into the state it was in when the given
+	 * snapshot was taken. This happens between two steps and the simulation
+	 * carries on from the snapshot's time with the next step.
+	 * 
+	 * Steppables which were in the simulation in both keep their futures.
+	 * Steppables which were removed since the snapshot are added again with
+	 * new futures (see {@link #getCompletion(SimulationSteppable)}).
+	 * Steppables which were added since the snapshot are removed and their
+	 * futures are cancelled, so anything waiting for them stops waiting. The
+	 * simulation can't capture the threads driving it, so any controllers
+	 * should be stopped before restoring and started again afterwards.
+	 * Cooperative controllers started afterwards are run as cooperatively as
+	 * those started before.
+	 * 
+	 * @param _snapshot
+	 *            A snapshot previously taken from this simulation.
+	 * @throws IllegalStateException
+	 *             If called from within a step, see {@link #snapshot()}.
+	 */
+	public void restore(SimulationSnapshot _snapshot) {
+		checkNotInStep("restore");
+		if (_snapshot.core != this) {
+			throw new IllegalArgumentException(
+					"Snapshot was taken from a different simulation");
+		}
 
-				m_inStep = false;
+		m_stepLock.lock();
+		try {
+			if (m_shutdown) {
+				throw new IllegalStateException(
+						"Simulation has been shut down");
+			}
 
-				m_stepLock.unlock();
+			// everything currently in the simulation, either stepping or
+			// waiting to be added
+			Map<SimulationSteppable, CompletableFuture<Void>> current = new IdentityHashMap<>();
+			for (SteppableRegistry registry : m_registries) {
+				registry.getCompletions(current);
+			}
+			PendingSteppable p = m_toAdd.poll();
+			while (p != null) {
+				current.put(p.steppable, p.completion);
+				p = m_toAdd.poll();
+			}
+
+			Function<SimulationSteppable, CompletableFuture<Void>> completionFor = steppable -> {
+				CompletableFuture<Void> completion = current.remove(steppable);
+				return completion != null ? completion
+						: newCompletion(steppable);
+			};
+
+			for (int i = 0; i < m_registries.length; i++) {
+				m_registries[i].setContents(_snapshot.registries[i],
+						completionFor);
+			}
+			for (SimulationSnapshot.Pending pending : _snapshot.pending) {
+				m_toAdd.add(new PendingSteppable(pending.steppable,
+						pending.stepRate, pending.phase, completionFor
+								.apply(pending.steppable)));
+			}
+
+			m_tick = _snapshot.tick;
+			m_now = _snapshot.time;
+			m_idle = false;
+
+			// the controller scheduler runs the controllers of every branch,
+			// so stays whether or not it was in the snapshot, rather than
+			// releasing its controllers when its future is cancelled
+			ControllerScheduler scheduler = m_controllerScheduler;
+			if (scheduler != null) {
+				CompletableFuture<Void> kept = current.remove(scheduler);
+				if (kept != null) {
+					m_toAdd.add(new PendingSteppable(scheduler, 1,
+							SimulationPhase.ACT, kept));
+				}
+			}
+
+			// anything left was added after the snapshot
+			for (CompletableFuture<Void> completion : current.values()) {
+				completion.cancel(false);
+			}
 
-				synchronized (m_stepLock) {
-					m_stepLock.notifyAll();
+			for (SteppableRegistry.Contents contents : _snapshot.registries) {
+				for (Restorable.Captured<?> state : contents.states) {
+					state.restore();
 				}
 			}
+			for (SimulationSnapshot.Pending pending : _snapshot.pending) {
+				pending.state.restore();
+			}
+			for (Restorable.Captured<?> state : _snapshot.restorables) {
+				state.restore();
+			}
 
-			r.sleep();
-			Delay.msDelay((long) (1000.0 / m_targetRate));
+			m_worldState.publish(m_tick);
 
+			// don't try to catch up on the time since the snapshot
+			m_resync = true;
+		} finally {
+			m_stepLock.unlock();
 		}
+
+		// the restored world may not be idle
+		wake(false);
 	}
 
+	/**
+	 * Wait until the simulation is not in the middle of a step.
+	 * 
+	 * @throws IllegalStateException
+	 *             If called from within a step, see {@link #snapshot()}.
+	 */
 	public void waitForEndOfStep() {
+		checkNotInStep("waitForEndOfStep");
 		synchronized (m_stepLock) {
 			while (m_inStep) {
 				try {
@@ -258,7 +1821,7 @@ public class SimulationCore extends Thread {
 	}
 
 	/**
-	 * Wait until the current cycle of steps is completed.
+	 * Adds a steppable to the simulation then waits until it is removed again.
 	 * 
 	 * @param _steppable
 	 */
@@ -274,37 +1837,54 @@ public class SimulationCore extends Thread {
 	 */
 	public void addAndWaitSteppable(SimulationSteppable _steppable,
 			int _stepRate) {
+		waitFor(addSteppable(_steppable, _stepRate, SimulationPhase.INTEGRATE),
+				_steppable);
+	}
 
-		addSteppable(_steppable, _stepRate);
-
-		waitSteppable(_steppable);
+	/**
+	 * Adds a steppable to the given phase of the simulation then waits until
+	 * it is removed again.
+	 * 
+	 * @param _steppable
+	 * @param _phase
+	 */
+	public void addAndWaitSteppable(SimulationSteppable _steppable,
+			SimulationPhase _phase) {
+		waitFor(addSteppable(_steppable, 1, _phase), _steppable);
 	}
 
+	/**
+	 * Waits until the given steppable is removed from the simulation. This
+	 * returns immediately if the steppable has already been removed or was
+	 * never added. Prefer the future returned by
+	 * {@link #addSteppable(SimulationSteppable, SimulationPhase)}.
+	 * 
+	 * @param _steppable
+	 */
 	public void waitSteppable(SimulationSteppable _steppable) {
-		boolean except = false;
-		// while (!_steppable.remove()) {
-		// if (except) {
-		// System.out.println("restart loop");
-		// }
-
-		synchronized (_steppable) {
-			try {
-				// wait on a loop as it helps deal with sync errors
-				_steppable.wait();
-			} catch (InterruptedException e) {
-				except = true;
-				System.out
-						.println("caught in waitSteppable: " + e.getMessage());
-				System.out.println("caught in waitSteppable: "
-						+ _steppable.getClass());
+		CompletableFuture<Void> completion = m_completions.get(_steppable);
+		if (completion != null) {
+			waitFor(completion, _steppable);
+		}
+	}
 
-				e.printStackTrace();
-				return;
-			}
+	private void waitFor(CompletableFuture<Void> _completion,
+			SimulationSteppable _steppable) {
+		if (s_stepping.get() == this && !_completion.isDone()) {
+			// the steppable can't be removed until this step finishes
+			throw new IllegalStateException(
+					"Steppables can't wait for other steppables");
 		}
-		// }
-		if (except) {
-			System.out.println("done wait");
+		try {
+			ControllerScheduler.await(_completion);
+			_completion.get();
+		} catch (CancellationException e) {
+			// the simulation was shut down
+		} catch (InterruptedException | ExecutionException e) {
+			System.out.println("caught in waitSteppable: " + e.getMessage());
+			System.out.println("caught in waitSteppable: "
+					+ _steppable.getClass());
+			e.printStackTrace();
 		}
 	}
 }
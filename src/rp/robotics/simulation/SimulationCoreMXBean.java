@@ -0,0 +1,59 @@
+package rp.robotics.simulation;
+
+/**
+ * Management interface for a {@link SimulationCore}, registered with the
+ * platform MBean server while the simulation is running so that its timing
+ * can be inspected with any JMX client (e.g. jconsole).
+ * 
+ * @author Nick Hawes
+ *
+ */
+public interface SimulationCoreMXBean {
+
+	double getTargetRate();
+
+	double getAchievedRate();
+
+	long getTicks();
+
+	long getMissedDeadlines();
+
+	long getSkippedTicks();
+
+	long getSubSteppedTicks();
+
+	long getIdleTicks();
+
+	double getMeanJitterMs();
+
+	double getMaxJitterMs();
+
+	double getMeanStepMs();
+
+	double getMaxStepMs();
+
+	boolean isVirtualTime();
+
+	boolean isEventDriven();
+
+	boolean isTimingEnabled();
+
+	void setTimingEnabled(boolean _enabled);
+
+	/**
+	 * A summary of the time taken by each phase, in phase order.
+	 * 
+	 * @return
+	 */
+	String[] getPhaseTimings();
+
+	/**
+	 * A summary of the time taken by each class of steppable, slowest in
+	 * total first.
+	 * 
+	 * @return
+	 */
+	String[] getSteppableTimings();
+
+	void resetStatistics();
+}
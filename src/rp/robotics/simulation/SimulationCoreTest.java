@@ -0,0 +1,782 @@
+package rp.robotics.simulation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lejos.geom.Line;
+import lejos.robotics.localization.PoseProvider;
+import lejos.robotics.navigation.Pose;
+
+import org.junit.Test;
+
+public class SimulationCoreTest {
+
+	/**
+	 * Steppable which runs for a fixed amount of simulated time and records
+	 * what it saw.
+	 */
+	private static class TimedSteppable implements SimulationSteppable {
+
+		private final Instant m_endAt;
+		private int m_steps = 0;
+		private Instant m_first = null;
+		private Instant m_last = null;
+		private Duration m_intervals = Duration.ZERO;
+		private boolean m_monotonic = true;
+
+		public TimedSteppable(Instant _start, Duration _runFor) {
+			m_endAt = _start.plus(_runFor);
+		}
+
+		@Override
+		public boolean remove(Instant _now, Duration _stepInterval) {
+			return _now.isAfter(m_endAt);
+		}
+
+		@Override
+		public void step(Instant _now, Duration _stepInterval) {
+			if (m_first == null) {
+				m_first = _now;
+			} else {
+				m_intervals = m_intervals.plus(_stepInterval);
+			}
+			if (m_last != null && !_now.isAfter(m_last)) {
+				m_monotonic = false;
+			}
+			m_last = _now;
+			m_steps++;
+		}
+	}
+
+	@Test
+	public void testVirtualTimeIsFasterThanRealTime() {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(true, true);
+		Duration simulated = Duration.ofSeconds(30);
+
+		try {
+			TimedSteppable steppable = new TimedSteppable(sim.getTime(),
+					simulated);
+
+			long start = System.currentTimeMillis();
+			sim.addAndWaitSteppable(steppable);
+			long wallMs = System.currentTimeMillis() - start;
+
+			assertTrue("Virtual time took " + wallMs + "ms of wall time",
+					wallMs < simulated.toMillis() / 2);
+			assertTrue("Simulated time went backwards",
+					steppable.m_monotonic);
+
+			// the intervals passed to the steppable must account for all
+			// the simulated time that passed
+			assertEquals(
+					Duration.between(steppable.m_first, steppable.m_last),
+					steppable.m_intervals);
+
+			// 30 seconds at the base rate, allowing for the partial first
+			// step
+			double expectedSteps = simulated.getSeconds()
+					* sim.getSimulationRate();
+			assertEquals(expectedSteps, steppable.m_steps, 2);
+		} finally {
+			sim.shutdown();
+		}
+	}
+
+	@Test
+	public void testRealTimeKeepsToTargetRate() {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(true, false);
+		Duration simulated = Duration.ofSeconds(2);
+
+		try {
+			TimedSteppable steppable = new TimedSteppable(sim.getTime(),
+					simulated);
+
+			long start = System.currentTimeMillis();
+			sim.addAndWaitSteppable(steppable);
+			long wallMs = System.currentTimeMillis() - start;
+
+			// steps are never run before their deadlines, however loaded the
+			// machine is, so simulated time can't get ahead of the wall clock
+			// by more than the first step
+			long periodMs = (long) Math.ceil(1000 / sim.getSimulationRate());
+			assertTrue("Real time took " + wallMs + "ms of wall time",
+					wallMs >= simulated.toMillis() - periodMs);
+
+			// however late they run, no steps are dropped by default
+			double expectedSteps = simulated.getSeconds()
+					* sim.getSimulationRate();
+			assertEquals(expectedSteps, steppable.m_steps, 2);
+			assertEquals(
+					Duration.between(steppable.m_first, steppable.m_last),
+					steppable.m_intervals);
+		} finally {
+			sim.shutdown();
+		}
+	}
+
+	/**
+	 * Counts its own steps, for a fixed number of steps.
+	 */
+	private static class CountingSteppable implements SimulationSteppable {
+
+		private final int m_limit;
+		private volatile int m_count = 0;
+
+		public CountingSteppable(int _limit) {
+			m_limit = _limit;
+		}
+
+		@Override
+		public boolean remove(Instant _now, Duration _stepInterval) {
+			return m_count >= m_limit;
+		}
+
+		@Override
+		public void step(Instant _now, Duration _stepInterval) {
+			m_count++;
+		}
+
+		public int getCount() {
+			return m_count;
+		}
+	}
+
+	@Test
+	public void testParallelPhasesRunInOrder() {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(false, true);
+		sim.setParallelism(4);
+
+		int steps = 100;
+		CountingSteppable[] movers = new CountingSteppable[64];
+		for (int i = 0; i < movers.length; i++) {
+			movers[i] = new CountingSteppable(steps);
+			sim.addSteppable(movers[i], SimulationPhase.INTEGRATE);
+		}
+
+		// every time this is stepped, all the movers must have been stepped
+		// exactly as many times as it has
+		PhaseChecker checker = new PhaseChecker(steps, movers);
+
+		// added before starting so it joins in the same step as the movers
+		CompletableFuture<Void> checked = sim.addSteppable(checker,
+				SimulationPhase.CHECK);
+		sim.start();
+		try {
+			checked.join();
+
+			assertTrue("CHECK phase ran before INTEGRATE phase finished",
+					!checker.m_outOfOrder);
+			for (CountingSteppable mover : movers) {
+				assertEquals(steps, mover.m_count);
+			}
+		} finally {
+			sim.shutdown();
+		}
+	}
+
+	@Test
+	public void testShortLivedSteppablesAreEachSteppedToCompletion() {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(true, true);
+
+		// lots of steppables finishing at different times, so removals are
+		// interleaved with the remaining steppables
+		CountingSteppable[] steppables = new CountingSteppable[5000];
+		for (int i = 0; i < steppables.length; i++) {
+			steppables[i] = new CountingSteppable((i % 50) + 1);
+			sim.addSteppable(steppables[i]);
+		}
+
+		try {
+			// outlives all of the above
+			sim.addAndWaitSteppable(new CountingSteppable(60),
+					SimulationPhase.CHECK);
+
+			for (int i = 0; i < steppables.length; i++) {
+				assertEquals((i % 50) + 1, steppables[i].getCount());
+			}
+		} finally {
+			sim.shutdown();
+		}
+	}
+
+	@Test
+	public void testManySimulationsShareABoundedScheduler() throws Exception {
+
+		SimulationScheduler scheduler = new SimulationScheduler(2);
+
+		SimulationCore[] sims = new SimulationCore[50];
+		CompletableFuture<?>[] finished = new CompletableFuture<?>[sims.length];
+		for (int i = 0; i < sims.length; i++) {
+			sims[i] = SimulationCore.createSimulationCore(true, true,
+					scheduler);
+			finished[i] = sims[i].addSteppable(new CountingSteppable(600));
+		}
+
+		// 10 seconds of simulated time each
+		CompletableFuture.allOf(finished).get(30, TimeUnit.SECONDS);
+
+		// a steppable which never finishes is cancelled on shutdown
+		CompletableFuture<Void> endless = sims[0]
+				.addSteppable(new CountingSteppable(Integer.MAX_VALUE));
+		for (SimulationCore sim : sims) {
+			sim.shutdown();
+		}
+		try {
+			endless.get(5, TimeUnit.SECONDS);
+			fail("Steppable finished after shutdown");
+		} catch (CancellationException e) {
+			// expected
+		}
+
+		assertTrue(sims[1].addSteppable(new CountingSteppable(1))
+				.isCancelled());
+
+		scheduler.shutdown();
+	}
+
+	@Test
+	public void testSharedSchedulerCanNotBeShutDown() {
+		try {
+			SimulationScheduler.getShared().shutdown();
+			fail("Shut down the shared scheduler");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		assertFalse(SimulationScheduler.getShared().isShutdown());
+	}
+
+	@Test
+	public void testFastMovesAreSubStepped() {
+
+		// at 10Hz a 3m/s drive moves 30cm per step
+		SimulationCore sim = SimulationCore.createSimulationCore(true, true,
+				10);
+		sim.setSubStepLimits(0.02, 10);
+
+		float distance = 0.1f;
+		Drive drive = new Drive(new Pose(0, 0, 0), 3f, distance);
+		sim.resetTickStatistics();
+		sim.addAndWaitSteppable(drive);
+
+		// without sub-stepping this would finish 20cm past the target
+		assertEquals(distance, drive.getPose().getX(), 0.02);
+		assertTrue(sim.getTickStatistics().getSubSteppedTicks() > 0);
+
+		sim.shutdown();
+	}
+
+	@Test
+	public void testCollisionsAreCheckedAfterEachSubStep() {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(true, true,
+				10);
+		sim.setSubStepLimits(0.02, 10);
+
+		Drive drive = new Drive(new Pose(0, 0, 0), 3f, 1f);
+		PoseProvider published = sim.getWorldState().register(drive);
+
+		// where the drive was each time the collide phase ran
+		List<Float> seen = Collections.synchronizedList(new ArrayList<>());
+		sim.addSteppable(new SimulationSteppable() {
+
+			@Override
+			public void step(Instant _now, Duration _stepInterval) {
+				seen.add(published.getPose().getX());
+			}
+
+			@Override
+			public boolean remove(Instant _now, Duration _stepInterval) {
+				return false;
+			}
+		}, SimulationPhase.COLLIDE);
+
+		sim.addAndWaitSteppable(drive);
+		sim.shutdown();
+
+		synchronized (seen) {
+			assertTrue(seen.size() > 1);
+			for (int i = 1; i < seen.size(); i++) {
+				assertTrue(seen.get(i) - seen.get(i - 1) <= 0.02 + 1e-4);
+			}
+			assertEquals(1, seen.get(seen.size() - 1), 0.02);
+		}
+	}
+
+	@Test
+	public void testRestoreRewindsTimeAndMoves() throws Exception {
+
+		// real time so that the snapshot is taken part way through the drive
+		SimulationCore sim = SimulationCore.createSimulationCore(true, false);
+
+		Drive drive = new Drive(new Pose(0, 0, 0), 2f, 1f);
+		CompletableFuture<Void> driven = sim.addSteppable(drive);
+
+		sim.addAndWaitSteppable(new CountingSteppable(10),
+				SimulationPhase.CHECK);
+		SimulationSnapshot snapshot = sim.snapshot();
+		float snapshotX = drive.getPose().getX();
+		assertTrue(snapshotX > 0 && snapshotX < 1);
+
+		// run the drive to the end twice from the same point
+		for (int i = 0; i < 2; i++) {
+			driven.get(5, TimeUnit.SECONDS);
+			assertEquals(1f, drive.getPose().getX(), 0.05);
+
+			sim.pause();
+			sim.restore(snapshot);
+			assertEquals(snapshot.getTime(), sim.getTime());
+			assertEquals(snapshotX, drive.getPose().getX(), 0);
+			driven = sim.getCompletion(drive);
+			sim.unpause();
+		}
+
+		driven.get(5, TimeUnit.SECONDS);
+		assertEquals(1f, drive.getPose().getX(), 0.05);
+
+		sim.shutdown();
+	}
+
+	@Test
+	public void testSnapshotsCanBeRestoredIntoSeveralBranches() {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(true, true);
+		TranslationObstacle obstacle = new TranslationObstacle(new Line[0],
+				new LinearTranslationLoop(new Pose(0, 0, 0), 1f, 1f));
+		sim.addSteppable(obstacle);
+		sim.sleep(Duration.ofMillis(500));
+
+		sim.pause();
+		SimulationSnapshot snapshot = sim.snapshot();
+		float startX = obstacle.getPose().getX();
+		sim.unpause();
+
+		for (int i = 0; i < 2; i++) {
+			sim.sleep(Duration.ofMillis(300 * (i + 1)));
+			sim.pause();
+			assertTrue(obstacle.getPose().getX() != startX);
+			sim.restore(snapshot);
+			assertEquals(startX, obstacle.getPose().getX(), 0);
+			sim.unpause();
+		}
+
+		sim.shutdown();
+	}
+
+	@Test
+	public void testControllersStayCooperativeAfterRestore() throws Exception {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(false, true);
+		sim.setCooperativeControllers(true);
+		sim.start();
+		try {
+			// before any controller has started, as when branching
+			SimulationSnapshot start = sim.snapshot();
+
+			List<Boolean> cooperative = Collections
+					.synchronizedList(new ArrayList<>());
+			Runnable controller = () -> {
+				sim.sleep(Duration.ofMillis(100));
+				cooperative.add(ControllerScheduler.isCooperative());
+			};
+
+			sim.startController(controller).join(5000);
+			sim.restore(start);
+			sim.startController(controller).join(5000);
+
+			assertEquals(Arrays.asList(true, true), cooperative);
+		} finally {
+			sim.shutdown();
+		}
+	}
+
+	@Test
+	public void testPausedSimulationsCanBeSnapshotFromOtherThreads()
+			throws Exception {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(true, true);
+		sim.addSteppable(new CountingSteppable(Integer.MAX_VALUE));
+		sim.sleep(Duration.ofMillis(100));
+
+		sim.pause();
+		SimulationSnapshot snapshot = CompletableFuture.supplyAsync(
+				sim::snapshot).get(5, TimeUnit.SECONDS);
+		Thread.sleep(100);
+		assertEquals(snapshot.getTick(), sim.snapshot().getTick());
+
+		CompletableFuture.runAsync(() -> sim.restore(snapshot)).get(5,
+				TimeUnit.SECONDS);
+		CompletableFuture.runAsync(sim::unpause).get(5, TimeUnit.SECONDS);
+		sim.sleep(Duration.ofMillis(100));
+		assertTrue(sim.snapshot().getTick() > snapshot.getTick());
+
+		sim.shutdown();
+	}
+
+	@Test
+	public void testRestorablesAreHeldWeakly() {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(false, true);
+		NoOpMovable kept = new NoOpMovable();
+		sim.addRestorable(kept);
+		sim.addRestorable(new NoOpMovable());
+
+		// the snapshot holds what it captured, so is only taken once the
+		// unused restorable has gone
+		for (int i = 0; i < 10; i++) {
+			System.gc();
+		}
+		SimulationSnapshot snapshot = sim.snapshot();
+		assertEquals(1, snapshot.restorables.length);
+		assertTrue(snapshot.restorables[0].getRestorable() == kept);
+
+		sim.removeRestorable(kept);
+		assertEquals(0, sim.snapshot().restorables.length);
+		sim.shutdown();
+	}
+
+	/**
+	 * Does nothing until a given time, or ever if it isn't given one.
+	 */
+	private static class Alarm implements EventDrivenSteppable {
+
+		private final Instant m_at;
+		private int m_steps = 0;
+		private Instant m_rang = null;
+
+		public Alarm(Instant _at) {
+			m_at = _at;
+		}
+
+		@Override
+		public boolean remove(Instant _now, Duration _stepInterval) {
+			return m_rang != null;
+		}
+
+		@Override
+		public void step(Instant _now, Duration _stepInterval) {
+			m_steps++;
+			if (m_at != null && !_now.isBefore(m_at)) {
+				m_rang = _now;
+			}
+		}
+
+		@Override
+		public Instant getNextEventTime(Instant _now) {
+			return m_at;
+		}
+	}
+
+	@Test
+	public void testIdleVirtualTimeSkipsToNextEvent() {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(false, true);
+		sim.setEventDriven(true);
+
+		Instant at = sim.getTime().plusSeconds(10);
+		Alarm alarm = new Alarm(at);
+		sim.addSteppable(alarm);
+		sim.start();
+		sim.waitSteppable(alarm);
+
+		// rang in the first step at or after the given time
+		assertTrue(!alarm.m_rang.isBefore(at));
+		assertTrue(Duration.between(at, alarm.m_rang).toNanos() < 1e9 / sim
+				.getSimulationRate());
+		assertTrue("Stepped " + alarm.m_steps + " times", alarm.m_steps < 5);
+		assertTrue(sim.getTickStatistics().getIdleTicks() > 500);
+
+		sim.shutdown();
+	}
+
+	@Test
+	public void testCallsWhichWaitForTheStepFailWithinIt() throws Exception {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(false, true);
+		sim.setCooperativeControllers(true);
+
+		List<String> failed = Collections.synchronizedList(new ArrayList<>());
+		Runnable[] calls = { sim::snapshot, sim::pause,
+				sim::waitForEndOfStep };
+		sim.start();
+
+		sim.addAndWaitSteppable(new CountingSteppable(1) {
+			@Override
+			public void step(Instant _now, Duration _stepInterval) {
+				super.step(_now, _stepInterval);
+				for (Runnable call : calls) {
+					try {
+						call.run();
+					} catch (IllegalStateException e) {
+						failed.add("steppable");
+					}
+				}
+			}
+		});
+
+		sim.startController(() -> {
+			for (Runnable call : calls) {
+				try {
+					call.run();
+				} catch (IllegalStateException e) {
+					failed.add("controller");
+				}
+			}
+		}).join(5000);
+
+		assertEquals(Arrays.asList("steppable", "steppable", "steppable",
+				"controller", "controller", "controller"), failed);
+
+		// other threads can still call them
+		sim.pause();
+		sim.restore(sim.snapshot());
+		sim.unpause();
+		sim.waitForEndOfStep();
+
+		sim.shutdown();
+	}
+
+	@Test
+	public void testIdleSimulationWakesWhenControllerFinishes()
+			throws Exception {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(false, false);
+		sim.setEventDriven(true);
+
+		AtomicBoolean finished = new AtomicBoolean(false);
+		Alarm monitor = new Alarm(sim.getTime().plusSeconds(3600)) {
+			@Override
+			public boolean remove(Instant _now, Duration _stepInterval) {
+				return finished.get();
+			}
+		};
+		CompletableFuture<Void> removed = sim.addSteppable(monitor);
+		sim.start();
+
+		sim.startController(() -> {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			finished.set(true);
+		});
+		// long before the monitor's own event
+		removed.get(2, TimeUnit.SECONDS);
+
+		sim.shutdown();
+	}
+
+	@Test
+	public void testIdleSimulationWakesOnNewSteppable() throws Exception {
+
+		// virtual time, in which a simulation which didn't go idle would run
+		// ahead as fast as it can
+		SimulationCore sim = SimulationCore.createSimulationCore(false, true);
+		sim.setEventDriven(true);
+
+		CountDownLatch stepped = new CountDownLatch(1);
+		Alarm never = new Alarm(null) {
+			@Override
+			public void step(Instant _now, Duration _stepInterval) {
+				super.step(_now, _stepInterval);
+				stepped.countDown();
+			}
+		};
+		CompletableFuture<Void> cancelled = sim.addSteppable(never);
+		sim.start();
+
+		try {
+			assertTrue(stepped.await(5, TimeUnit.SECONDS));
+			Instant idleAt = sim.getTime();
+
+			// a busy steppable wakes the simulation, which carries on from
+			// where it went idle however long that was ago
+			sim.addAndWaitSteppable(new CountingSteppable(3));
+			assertTrue(never.m_steps > 1);
+			double steps = Duration.between(idleAt, sim.getTime()).toNanos()
+					* sim.getSimulationRate() / 1e9;
+			assertTrue("Ran " + steps + " steps", steps <= 5);
+		} finally {
+			sim.shutdown();
+		}
+
+		try {
+			cancelled.get(5, TimeUnit.SECONDS);
+			fail("Idle steppable finished after shutdown");
+		} catch (CancellationException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testControllersSleepInSimulatedTime() throws Exception {
+
+		// event-driven so that virtual time only moves on when the controller
+		// is asleep, otherwise it runs ahead of the controller
+		SimulationCore sim = SimulationCore.createSimulationCore(false, true);
+		sim.setEventDriven(true);
+		sim.start();
+		Instant start = sim.getTime();
+
+		Instant[] finished = new Instant[1];
+		Thread controller = new Thread(sim.bind(() -> {
+			SimulationRate r = new SimulationRate(10);
+			for (int i = 0; i < 50; i++) {
+				r.sleep();
+			}
+			SimulationDelay.msDelay(5000);
+			finished[0] = sim.getTime();
+		}));
+
+		long wallStart = System.currentTimeMillis();
+		controller.start();
+		controller.join(5000);
+		assertTrue(System.currentTimeMillis() - wallStart < 5000);
+
+		// 50 periods at 10Hz then 5s of delay, each to within a step
+		double simulated = Duration.between(start, finished[0]).toMillis()
+				/ 1000.0;
+		assertEquals(10.0, simulated, 0.1);
+
+		sim.shutdown();
+	}
+
+	@Test
+	public void testOnlyBoundThreadsBelongToTheSimulation() {
+
+		MapBasedSimulation map = new MapBasedSimulation(null, false, true);
+		SimulationCore sim = map.getSimulationCore();
+
+		// creating a simulation leaves the creating thread alone
+		assertTrue(SimulationCore.getCurrent() == null);
+
+		SimulationCore[] current = new SimulationCore[1];
+		sim.bind(() -> current[0] = SimulationCore.getCurrent()).run();
+		assertTrue(current[0] == sim);
+		assertTrue(SimulationCore.getCurrent() == null);
+
+		map.shutdown();
+	}
+
+	private static List<Integer> runCooperativeControllers(int _controllers)
+			throws InterruptedException {
+
+		SimulationCore sim = SimulationCore.createSimulationCore(false, true);
+		sim.setCooperativeControllers(true);
+
+		// not thread safe, so only works if controllers run one at a time
+		List<Integer> trace = new ArrayList<>();
+		AtomicInteger running = new AtomicInteger();
+		boolean[] overlapped = new boolean[1];
+
+		List<Thread> threads = new ArrayList<>(_controllers);
+		for (int i = 0; i < _controllers; i++) {
+			int id = i;
+			threads.add(sim.startController(() -> {
+				for (int j = 0; j < 10; j++) {
+					if (running.incrementAndGet() > 1) {
+						overlapped[0] = true;
+					}
+					trace.add(id);
+					running.decrementAndGet();
+					SimulationDelay.msDelay(10 + (id % 7) * 15);
+				}
+			}));
+		}
+
+		sim.start();
+		for (Thread thread : threads) {
+			thread.join(10000);
+			assertTrue(!thread.isAlive());
+		}
+		sim.shutdown();
+
+		assertTrue("Controllers ran at the same time", !overlapped[0]);
+		assertEquals(_controllers * 10, trace.size());
+		return trace;
+	}
+
+	@Test
+	public void testCooperativeControllersInterleaveDeterministically()
+			throws Exception {
+		List<Integer> first = runCooperativeControllers(500);
+		List<Integer> second = runCooperativeControllers(500);
+		assertEquals(first, second);
+	}
+
+	private static long[] draw(Random _random) {
+		long[] values = new long[10];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = _random.nextLong();
+		}
+		return values;
+	}
+
+	@Test
+	public void testSameSeedGivesSameRandomness() {
+
+		SimulationCore first = SimulationCore.createSimulationCore(false);
+		SimulationCore second = SimulationCore.createSimulationCore(false);
+		first.setSeed(42);
+		second.setSeed(42);
+
+		long[] firstA = draw(first.createRandom());
+		long[] firstB = draw(first.createRandom());
+		long[] secondA = draw(second.createRandom());
+		long[] secondB = draw(second.createRandom());
+
+		assertArrayEquals(firstA, secondA);
+		assertArrayEquals(firstB, secondB);
+		// each generator is a separate stream
+		assertFalse(Arrays.equals(firstA, firstB));
+
+		second.setSeed(43);
+		assertFalse(Arrays.equals(firstA, draw(second.createRandom())));
+
+		first.shutdown();
+		second.shutdown();
+	}
+
+	private static class PhaseChecker extends CountingSteppable {
+
+		private final CountingSteppable[] m_movers;
+		private boolean m_outOfOrder = false;
+
+		public PhaseChecker(int _limit, CountingSteppable[] _movers) {
+			super(_limit);
+			m_movers = _movers;
+		}
+
+		@Override
+		public void step(Instant _now, Duration _stepInterval) {
+			super.step(_now, _stepInterval);
+			for (CountingSteppable mover : m_movers) {
+				if (mover.m_count != getCount()) {
+					m_outOfOrder = true;
+				}
+			}
+		}
+	}
+
+}
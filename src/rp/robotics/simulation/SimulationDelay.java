@@ -0,0 +1,38 @@
+package rp.robotics.simulation;
+
+import java.time.Duration;
+
+import lejos.util.Delay;
+
+/**
+ * A replacement for {@link Delay} which waits in simulated time rather than
+ * wall-clock time when the calling thread belongs to a simulation (see
+ * {@link SimulationCore#getCurrent()}), and behaves exactly like
+ * {@link Delay} otherwise. {@link Delay} and {@link rp.util.Rate} are not
+ * part of this project so can't follow a simulation's clock themselves, which
+ * means controllers have to use this and {@link SimulationRate} in their
+ * place to run in virtual time or cooperatively.
+ * 
+ * @author Nick Hawes
+ *
+ */
+public class SimulationDelay {
+
+	private SimulationDelay() {
+	}
+
+	/**
+	 * Wait for the given number of milliseconds.
+	 * 
+	 * @param _ms
+	 */
+	public static void msDelay(long _ms) {
+		SimulationCore sim = SimulationCore.getCurrent();
+		if (sim == null) {
+			Delay.msDelay(_ms);
+		} else {
+			sim.sleep(Duration.ofMillis(_ms));
+		}
+	}
+
+}
@@ -0,0 +1,304 @@
+package rp.robotics.simulation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+import lejos.robotics.navigation.Pose;
+
+/**
+ * Reads the frames of a log written by a {@link SimulationRecorder}, in order.
+ * The file is memory-mapped a region at a time, so logs of any length can be
+ * read without loading them into memory. Logs from runs which didn't close
+ * their recorder can still be read up to the last complete frame.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class SimulationLog implements Closeable {
+
+	// frame length, tick, time and the four counts
+	static final int FRAME_HEADER = 4 + 8 + 8 + 4 + 4 + 4 + 4 + 4;
+
+	// pose, whether it has wheels and the tacho counts
+	static final int ROBOT_SIZE = 12 + 1 + 8;
+
+	static final int POSE_SIZE = 12;
+
+	// the smallest region mapped at a time
+	private static final int REGION = 1 << 22;
+
+	/**
+	 * The state of the simulation at the end of a single step.
+	 */
+	public static class Frame {
+
+		private final long m_tick;
+		private final Instant m_time;
+		private final Pose[] m_robotPoses;
+		private final int[][] m_tachoCounts;
+		private final Pose[] m_obstaclePoses;
+		private final float[][] m_ranges;
+		private final boolean[] m_pressed;
+
+		Frame(long _tick, Instant _time, Pose[] _robotPoses,
+				int[][] _tachoCounts, Pose[] _obstaclePoses,
+				float[][] _ranges, boolean[] _pressed) {
+			m_tick = _tick;
+			m_time = _time;
+			m_robotPoses = _robotPoses;
+			m_tachoCounts = _tachoCounts;
+			m_obstaclePoses = _obstaclePoses;
+			m_ranges = _ranges;
+			m_pressed = _pressed;
+		}
+
+		public long getTick() {
+			return m_tick;
+		}
+
+		public Instant getTime() {
+			return m_time;
+		}
+
+		public int getRobotCount() {
+			return m_robotPoses.length;
+		}
+
+		/**
+		 * The pose of the given robot, in the order the robots were added to
+		 * the simulation.
+		 *
+		 * @param _robot
+		 * @return
+		 */
+		public Pose getRobotPose(int _robot) {
+			return m_robotPoses[_robot];
+		}
+
+		/**
+		 * The tacho counts of the left and right wheels of the given robot,
+		 * or null if it has no wheels.
+		 *
+		 * @param _robot
+		 * @return
+		 */
+		public int[] getTachoCounts(int _robot) {
+			return m_tachoCounts[_robot];
+		}
+
+		public int getObstacleCount() {
+			return m_obstaclePoses.length;
+		}
+
+		public Pose getObstaclePose(int _obstacle) {
+			return m_obstaclePoses[_obstacle];
+		}
+
+		public int getRangerCount() {
+			return m_ranges.length;
+		}
+
+		/**
+		 * The ranges last read by the given ranger, in the order the rangers
+		 * were created, which are empty if it hadn't been read yet.
+		 *
+		 * @param _ranger
+		 * @return
+		 */
+		public float[] getRanges(int _ranger) {
+			return m_ranges[_ranger];
+		}
+
+		public int getTouchSensorCount() {
+			return m_pressed.length;
+		}
+
+		/**
+		 * Whether the given touch sensor was pressed, in the order the
+		 * sensors' listeners were added.
+		 *
+		 * @param _sensor
+		 * @return
+		 */
+		public boolean isTouchSensorPressed(int _sensor) {
+			return m_pressed[_sensor];
+		}
+	}
+
+	private final FileChannel m_channel;
+	private final long m_size;
+
+	// where in the file the current region starts
+	private long m_regionStart;
+	private MappedByteBuffer m_region;
+
+	/**
+	 * Open a log for reading from its first frame.
+	 *
+	 * @param _log
+	 * @throws IOException
+	 *             If the file can't be read or isn't a simulation log.
+	 */
+	public SimulationLog(Path _log) throws IOException {
+		m_channel = FileChannel.open(_log, StandardOpenOption.READ);
+		m_size = m_channel.size();
+		if (!ensure(0, 8) || m_region.getInt() != SimulationRecorder.MAGIC) {
+			close();
+			throw new IOException(_log + " is not a simulation log");
+		}
+		int version = m_region.getInt();
+		if (version != SimulationRecorder.VERSION) {
+			close();
+			throw new IOException("Unsupported simulation log version "
+					+ version);
+		}
+	}
+
+	/**
+	 * Make sure the given part of the file is in the mapped region, mapping a
+	 * new region starting at _position if not.
+	 *
+	 * @return false if the file is too short.
+	 */
+	private boolean ensure(long _position, int _length) throws IOException {
+		if (_position + _length > m_size) {
+			return false;
+		}
+		if (m_region == null || _position < m_regionStart
+				|| _position + _length > m_regionStart + m_region.limit()) {
+			MappedByteBuffer old = m_region;
+			m_region = m_channel.map(MapMode.READ_ONLY, _position,
+					Math.min(Math.max(REGION, _length), m_size - _position));
+			m_region.order(ByteOrder.LITTLE_ENDIAN);
+			m_regionStart = _position;
+			unmap(old);
+		} else {
+			m_region.position((int) (_position - m_regionStart));
+		}
+		return true;
+	}
+
+	/**
+	 * Read the next frame.
+	 *
+	 * @return The frame, or null if there are no more.
+	 * @throws IOException
+	 */
+	public synchronized Frame next() throws IOException {
+
+		if (!m_channel.isOpen()) {
+			throw new ClosedChannelException();
+		}
+
+		long position = m_regionStart + m_region.position();
+		if (!ensure(position, 4)) {
+			return null;
+		}
+
+		int size = m_region.getInt();
+		// a log which wasn't closed is followed by zeroes
+		if (size < FRAME_HEADER || !ensure(position, size)) {
+			return null;
+		}
+		m_region.getInt();
+
+		MappedByteBuffer in = m_region;
+		long tick = in.getLong();
+		Instant time = Instant.ofEpochSecond(in.getLong(), in.getInt());
+
+		Pose[] robotPoses = new Pose[in.getInt()];
+		int[][] tachoCounts = new int[robotPoses.length][];
+		for (int i = 0; i < robotPoses.length; i++) {
+			robotPoses[i] = getPose(in);
+			boolean wheels = in.get() != 0;
+			int left = in.getInt();
+			int right = in.getInt();
+			if (wheels) {
+				tachoCounts[i] = new int[] { left, right };
+			}
+		}
+
+		Pose[] obstaclePoses = new Pose[in.getInt()];
+		for (int i = 0; i < obstaclePoses.length; i++) {
+			obstaclePoses[i] = getPose(in);
+		}
+
+		float[][] ranges = new float[in.getInt()][];
+		for (int i = 0; i < ranges.length; i++) {
+			ranges[i] = new float[in.getInt()];
+			for (int j = 0; j < ranges[i].length; j++) {
+				ranges[i][j] = in.getFloat();
+			}
+		}
+
+		boolean[] pressed = new boolean[in.getInt()];
+		for (int i = 0; i < pressed.length; i++) {
+			pressed[i] = in.get() != 0;
+		}
+
+		return new Frame(tick, time, robotPoses, tachoCounts, obstaclePoses,
+				ranges, pressed);
+	}
+
+	private static Pose getPose(MappedByteBuffer _in) {
+		return new Pose(_in.getFloat(), _in.getFloat(), _in.getFloat());
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			m_channel.close();
+		} finally {
+			unmap(m_region);
+			m_region = null;
+		}
+	}
+
+	/**
+	 * Unmap a region of a file now rather than whenever it is garbage
+	 * collected. Until then the file can't be truncated or deleted on some
+	 * platforms, and regions which are no longer used take up address space.
+	 * The region must not be used again afterwards. Where the JVM doesn't
+	 * allow this the region is left for the garbage collector.
+	 *
+	 * @param _region
+	 *            The region, or null for none.
+	 */
+	static void unmap(MappedByteBuffer _region) {
+		if (_region == null) {
+			return;
+		}
+		try {
+			try {
+				// Java 9 onwards
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+						ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), _region);
+			} catch (NoSuchMethodException e) {
+				// Java 8
+				Method cleanerMethod = _region.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(_region);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// left for the garbage collector
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package rp.robotics.simulation;
+
+/**
+ * The phases of a single simulation step, in the order they are run. All
+ * steppables in one phase are run before any steppable in the next phase, so
+ * steppables in later phases see the results of earlier phases for the same
+ * step. Steppables within a phase may be run in parallel (see
+ * {@link SimulationCore#setParallelism(int)}), so they should not depend on
+ * each other. Rather than reading poses directly from other things, they
+ * should read the {@link WorldState}, which is published at the end of the
+ * {@link #INTEGRATE} phase.
+ *
+ * @author Nick Hawes
+ *
+ */
+public enum SimulationPhase {
+
+	/**
+	 * Sampling sensors given the world as published at the end of the
+	 * previous step.
+	 */
+	SENSE,
+
+	/**
+	 * Acting on sensing, e.g. controllers issuing commands.
+	 */
+	ACT,
+
+	/**
+	 * Moving things around the world, e.g. motors, movables and obstacles.
+	 */
+	INTEGRATE,
+
+	/**
+	 * Checking for collisions and contacts given the new positions. When a
+	 * step is split into shorter integration steps (see
+	 * {@link SimulationCore#setSubStepLimits(double, double)}) this phase is
+	 * run after each of them, with the world published in between.
+	 */
+	COLLIDE,
+
+	/**
+	 * Observing the results of the step, e.g. test monitors.
+	 */
+	CHECK
+}
@@ -0,0 +1,70 @@
+package rp.robotics.simulation;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import rp.util.Rate;
+
+/**
+ * A replacement for {@link Rate} which keeps to a rate in simulated time
+ * rather than wall-clock time, so that a controller's loop speeds up, slows
+ * down and pauses along with the simulation. By default this uses the
+ * simulation the creating thread belongs to (see
+ * {@link SimulationCore#getCurrent()}), and behaves exactly like {@link Rate}
+ * if there isn't one, so the same controller code runs on a real robot.
+ * 
+ * @author Nick Hawes
+ *
+ */
+public class SimulationRate {
+
+	private final SimulationCore m_sim;
+	private final Rate m_wallRate;
+	private final Duration m_period;
+	private Instant m_next;
+
+	/**
+	 * 
+	 * @param _hz
+	 *            How many times per second {@link #sleep()} should return.
+	 */
+	public SimulationRate(double _hz) {
+		this(SimulationCore.getCurrent(), _hz);
+	}
+
+	/**
+	 * 
+	 * @param _sim
+	 *            The simulation whose clock to follow, or null to use the wall
+	 *            clock.
+	 * @param _hz
+	 *            How many times per second {@link #sleep()} should return.
+	 */
+	public SimulationRate(SimulationCore _sim, double _hz) {
+		if (_hz <= 0) {
+			throw new IllegalArgumentException("Rate must be > 0");
+		}
+		m_sim = _sim;
+		m_period = Duration.ofNanos(Math.round(1e9 / _hz));
+		if (m_sim == null) {
+			m_wallRate = new Rate(_hz);
+		} else {
+			m_wallRate = null;
+			m_next = m_sim.getTime().plus(m_period);
+		}
+	}
+
+	/**
+	 * Sleep until the end of the current period. If the period has already
+	 * ended then this returns straight away and the next period starts now.
+	 */
+	public void sleep() {
+		if (m_wallRate != null) {
+			m_wallRate.sleep();
+		} else {
+			m_sim.sleepUntil(m_next);
+			Instant now = m_sim.getTime();
+			m_next = (m_next.isBefore(now) ? now : m_next).plus(m_period);
+		}
+	}
+}
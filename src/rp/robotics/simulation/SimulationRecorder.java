@@ -0,0 +1,199 @@
+package rp.robotics.simulation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+
+import lejos.robotics.RangeReadings;
+import lejos.robotics.RegulatedMotor;
+import lejos.robotics.navigation.Pose;
+
+/**
+ * Records the state of a {@link MapBasedSimulation} after every step to a
+ * compact binary log, which can be read with {@link SimulationLog} and played
+ * back with {@link SimulationReplay}. Each frame holds the poses of the robots
+ * and obstacles, the tacho counts of the robots' wheels, the last readings
+ * taken by each ranger and the state of each touch sensor.
+ *
+ * Frames are written straight into a memory-mapped region of the file from
+ * the {@link SimulationPhase#CHECK} phase, so recording costs no system calls
+ * or copies per step, and everything recorded so far is in the file even if
+ * the JVM dies without closing the recorder.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class SimulationRecorder implements SimulationSteppable, Closeable {
+
+	static final int MAGIC = 0x52505349;
+	static final int VERSION = 2;
+
+	// the size of each mapped region of the file
+	private static final int REGION = 1 << 22;
+
+	private final MapBasedSimulation m_sim;
+	private final FileChannel m_channel;
+
+	// where in the file the current region starts
+	private long m_regionStart = 0;
+	private MappedByteBuffer m_region;
+
+	// the readings of each ranger in the frame being recorded, reused from
+	// frame to frame
+	private RangeReadings[] m_readings = new RangeReadings[0];
+
+	private volatile boolean m_closed = false;
+
+	/**
+	 * Start recording the given simulation to the given file, replacing
+	 * anything already in it. The first frame is recorded in the next step.
+	 *
+	 * @param _sim
+	 * @param _log
+	 * @throws IOException
+	 */
+	public SimulationRecorder(MapBasedSimulation _sim, Path _log)
+			throws IOException {
+		m_sim = _sim;
+		m_channel = FileChannel.open(_log, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		map(0, REGION);
+		m_region.putInt(MAGIC);
+		m_region.putInt(VERSION);
+		m_sim.getSimulationCore().addSteppable(this, SimulationPhase.CHECK);
+	}
+
+	private void map(long _start, int _size) throws IOException {
+		MappedByteBuffer old = m_region;
+		m_region = m_channel.map(MapMode.READ_WRITE, _start, _size);
+		m_region.order(ByteOrder.LITTLE_ENDIAN);
+		m_regionStart = _start;
+		SimulationLog.unmap(old);
+	}
+
+	@Override
+	public synchronized void step(Instant _now, Duration _stepInterval) {
+
+		if (m_closed) {
+			return;
+		}
+
+		int robotCount = m_sim.getRobotCount();
+		int obstacleCount = m_sim.getObstacleCount();
+		int rangerCount = m_sim.getRangerCount();
+		int touchCount = m_sim.getTouchSensorCount();
+
+		if (m_readings.length < rangerCount) {
+			m_readings = new RangeReadings[rangerCount];
+		}
+		RangeReadings[] readings = m_readings;
+		long size = SimulationLog.FRAME_HEADER + (long) robotCount
+				* SimulationLog.ROBOT_SIZE + (long) obstacleCount
+				* SimulationLog.POSE_SIZE + rangerCount * 4L + touchCount;
+		for (int i = 0; i < rangerCount; i++) {
+			readings[i] = m_sim.getLastReadings(i);
+			if (readings[i] != null) {
+				size += readings[i].size() * 4;
+			}
+		}
+
+		try {
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Frame of " + size
+						+ " bytes is too big to record");
+			}
+			if (m_region.remaining() < size) {
+				map(m_regionStart + m_region.position(),
+						Math.max(REGION, (int) size));
+			}
+		} catch (IOException e) {
+			System.err.println("Stopping recording: " + e.getMessage());
+			e.printStackTrace();
+			m_closed = true;
+			return;
+		}
+
+		MappedByteBuffer out = m_region;
+		out.putInt((int) size);
+		out.putLong(m_sim.getSimulationCore().getWorldState().getTick());
+		out.putLong(_now.getEpochSecond());
+		out.putInt(_now.getNano());
+
+		out.putInt(robotCount);
+		for (int i = 0; i < robotCount; i++) {
+			putPose(out, m_sim.getRobot(i).getPose());
+			RegulatedMotor[] wheels = m_sim.getWheels(i);
+			if (wheels != null) {
+				out.put((byte) 1);
+				out.putInt(wheels[0].getTachoCount());
+				out.putInt(wheels[1].getTachoCount());
+			} else {
+				out.put((byte) 0);
+				out.putLong(0);
+			}
+		}
+
+		out.putInt(obstacleCount);
+		for (int i = 0; i < obstacleCount; i++) {
+			putPose(out, m_sim.getObstacle(i).getPose());
+		}
+
+		out.putInt(rangerCount);
+		for (int i = 0; i < rangerCount; i++) {
+			RangeReadings reading = readings[i];
+			if (reading == null) {
+				out.putInt(0);
+			} else {
+				out.putInt(reading.size());
+				for (int j = 0; j < reading.size(); j++) {
+					out.putFloat(reading.get(j).getRange());
+				}
+			}
+		}
+
+		out.putInt(touchCount);
+		for (int i = 0; i < touchCount; i++) {
+			out.put((byte) (m_sim.isTouchSensorPressed(i) ? 1 : 0));
+		}
+	}
+
+	private static void putPose(MappedByteBuffer _out, Pose _pose) {
+		_out.putFloat(_pose.getX());
+		_out.putFloat(_pose.getY());
+		_out.putFloat(_pose.getHeading());
+	}
+
+	@Override
+	public boolean remove(Instant _now, Duration _stepInterval) {
+		return m_closed;
+	}
+
+	/**
+	 * Stop recording and cut the file down to the frames recorded. This waits
+	 * for the frame being recorded, if any, to be finished.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (m_channel.isOpen()) {
+			m_closed = true;
+			long end = m_regionStart + m_region.position();
+			// some platforms can't truncate a file while it is mapped
+			m_region.force();
+			SimulationLog.unmap(m_region);
+			m_region = null;
+			try {
+				m_channel.truncate(end);
+			} finally {
+				m_channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package rp.robotics.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import lejos.geom.Line;
+import lejos.robotics.navigation.Pose;
+
+import org.junit.Test;
+
+public class SimulationRecorderTest {
+
+	private static MapBasedSimulation createSimulation(Movable _mover) {
+		MapBasedSimulation sim = new MapBasedSimulation(null, false, true,
+				SimulationCore.DEFAULT_RATE, SimulationScheduler.getShared());
+		sim.addObstacle(new TranslationObstacle(new Line[0], _mover));
+		return sim;
+	}
+
+	@Test
+	public void testReplayFollowsRecording() throws Exception {
+
+		Path log = Files.createTempFile("recorder", ".simlog");
+		try {
+			MapBasedSimulation recorded = createSimulation(new LinearTranslationLoop(
+					new Pose(0, 0, 0), 1f, 1f));
+			SimulationRecorder recorder = new SimulationRecorder(recorded, log);
+			recorded.start();
+			recorded.getSimulationCore().sleep(Duration.ofSeconds(2));
+			recorded.shutdown();
+			recorder.close();
+
+			int frames = 0;
+			long lastTick = -1;
+			Pose first = null;
+			Pose last = null;
+			try (SimulationLog reader = new SimulationLog(log)) {
+				SimulationLog.Frame frame = reader.next();
+				while (frame != null) {
+					assertTrue(frame.getTick() > lastTick);
+					assertEquals(0, frame.getRobotCount());
+					assertEquals(1, frame.getObstacleCount());
+					lastTick = frame.getTick();
+					if (first == null) {
+						first = frame.getObstaclePose(0);
+					}
+					last = frame.getObstaclePose(0);
+					frames++;
+					frame = reader.next();
+				}
+			}
+
+			// a frame per step for at least 2 seconds, virtual time may carry
+			// on a little before the shutdown
+			assertTrue("Recorded " + frames + " frames",
+					frames >= 2 * SimulationCore.DEFAULT_RATE - 1);
+			assertTrue(first.getX() != last.getX());
+
+			// the replayed obstacle doesn't move itself
+			MapBasedSimulation replayed = createSimulation(new NoOpMovable());
+			replayed.start();
+			SimulationReplay.replay(replayed, log).get(10, TimeUnit.SECONDS);
+			Pose replayedPose = replayed.getObstacles().get(0).getPose();
+			replayed.shutdown();
+
+			assertEquals(last.getX(), replayedPose.getX(), 0);
+			assertEquals(last.getY(), replayedPose.getY(), 0);
+		} finally {
+			Files.delete(log);
+		}
+	}
+
+	@Test
+	public void testLargeFramesAreRecorded() throws Exception {
+
+		Path log = Files.createTempFile("recorder", ".simlog");
+		try {
+			// more obstacles than a short can count, and enough frames of
+			// them to need several regions of the file
+			int obstacles = Short.MAX_VALUE + 1;
+			MapBasedSimulation recorded = createSimulation(new NoOpMovable());
+			for (int i = 1; i < obstacles; i++) {
+				recorded.addObstacle(new TranslationObstacle(new Line[0],
+						new NoOpMovable()));
+			}
+			SimulationRecorder recorder = new SimulationRecorder(recorded, log);
+			recorded.start();
+			recorded.getSimulationCore().sleep(Duration.ofMillis(500));
+			recorded.shutdown();
+			recorder.close();
+
+			int frames = 0;
+			try (SimulationLog reader = new SimulationLog(log)) {
+				SimulationLog.Frame frame = reader.next();
+				while (frame != null) {
+					assertEquals(obstacles, frame.getObstacleCount());
+					frames++;
+					frame = reader.next();
+				}
+			}
+			assertTrue("Recorded " + frames + " frames",
+					frames >= 0.5 * SimulationCore.DEFAULT_RATE - 1);
+		} finally {
+			// fails on some platforms if the file is still mapped
+			Files.delete(log);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package rp.robotics.simulation;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Plays a log written by a {@link SimulationRecorder} back into a
+ * {@link MapBasedSimulation}, one frame per step, by setting the poses of its
+ * robots and obstacles. The rangers give the recorded readings and the touch
+ * sensors are pressed as recorded, as of the end of each step, rather than
+ * looking at the world, so a replay matches the recorded run even if the map
+ * has since changed. Nothing else about the recorded run needs to be
+ * repeated, so no controllers need to run. The simulation should be set up as
+ * the recorded one was, with the same robots, obstacles, rangers and touch
+ * sensors added in the same order. Everything which only looks at the world,
+ * e.g. a {@link rp.robotics.visualisation.MapVisualisationComponent} or the
+ * test monitors, then sees the recorded run. Once the last frame has been
+ * played the rangers and touch sensors go back to looking at the world.
+ * Running the simulation in virtual time replays the run as fast as possible.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class SimulationReplay implements SimulationSteppable {
+
+	private final MapBasedSimulation m_sim;
+	private final SimulationLog m_log;
+	private boolean m_finished = false;
+
+	private SimulationReplay(MapBasedSimulation _sim, SimulationLog _log) {
+		m_sim = _sim;
+		m_log = _log;
+	}
+
+	/**
+	 * Start replaying the given log into the given simulation from its next
+	 * step.
+	 *
+	 * @param _sim
+	 * @param _log
+	 * @return A future which completes once the last frame has been played.
+	 * @throws IOException
+	 *             If the log can't be opened.
+	 */
+	public static CompletableFuture<Void> replay(MapBasedSimulation _sim,
+			Path _log) throws IOException {
+		SimulationLog log = new SimulationLog(_log);
+		// after anything else which moves, so the recorded poses win
+		CompletableFuture<Void> finished = _sim.getSimulationCore()
+				.addSteppable(new SimulationReplay(_sim, log),
+						SimulationPhase.INTEGRATE);
+		finished.whenComplete((v, e) -> {
+			try {
+				log.close();
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		});
+		return finished;
+	}
+
+	@Override
+	public void step(Instant _now, Duration _stepInterval) {
+
+		SimulationLog.Frame frame;
+		try {
+			frame = m_log.next();
+		} catch (IOException e) {
+			System.err.println("Stopping replay: " + e.getMessage());
+			e.printStackTrace();
+			frame = null;
+		}
+
+		if (frame == null) {
+			m_finished = true;
+			for (int i = 0; i < m_sim.getRangerCount(); i++) {
+				m_sim.setReplayedRanges(i, null);
+			}
+			for (int i = 0; i < m_sim.getTouchSensorCount(); i++) {
+				m_sim.setReplayedTouch(i, null);
+			}
+			return;
+		}
+
+		for (int i = 0; i < Math.min(m_sim.getRobotCount(),
+				frame.getRobotCount()); i++) {
+			m_sim.getRobot(i).setPose(frame.getRobotPose(i));
+		}
+
+		for (int i = 0; i < Math.min(m_sim.getObstacleCount(),
+				frame.getObstacleCount()); i++) {
+			m_sim.getObstacle(i).setPose(frame.getObstaclePose(i));
+		}
+
+		for (int i = 0; i < Math.min(m_sim.getRangerCount(),
+				frame.getRangerCount()); i++) {
+			float[] ranges = frame.getRanges(i);
+			// not read yet when recorded, so nothing to give
+			m_sim.setReplayedRanges(i, ranges.length == 0 ? null : ranges);
+		}
+
+		for (int i = 0; i < Math.min(m_sim.getTouchSensorCount(),
+				frame.getTouchSensorCount()); i++) {
+			m_sim.setReplayedTouch(i, frame.isTouchSensorPressed(i));
+		}
+	}
+
+	@Override
+	public boolean remove(Instant _now, Duration _stepInterval) {
+		return m_finished;
+	}
+}
@@ -0,0 +1,118 @@
+package rp.robotics.simulation;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of threads which run the steps of any number of
+ * {@link SimulationCore}s. Each core runs as a chain of tick tasks, one per
+ * step, so the number of threads does not grow with the number of
+ * simulations. By default all cores share a single scheduler with one thread
+ * per processor.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class SimulationScheduler {
+
+	private static SimulationScheduler s_shared = null;
+
+	private final ScheduledThreadPoolExecutor m_executor;
+
+	/**
+	 * Create a scheduler with the given number of threads.
+	 *
+	 * @param _threads
+	 */
+	public SimulationScheduler(int _threads) {
+		if (_threads < 1) {
+			throw new IllegalArgumentException("Threads must be >= 1");
+		}
+		m_executor = new ScheduledThreadPoolExecutor(_threads,
+				new ThreadFactory() {
+
+					private final AtomicInteger m_count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable _r) {
+						Thread thread = new Thread(_r, "simulation-"
+								+ m_count.incrementAndGet());
+						// these threads only run simulations so should not
+						// keep the JVM alive, but do need to keep time
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MAX_PRIORITY);
+						return thread;
+					}
+				});
+		m_executor.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Returns the scheduler shared by all simulations which are not given
+	 * one explicitly.
+	 *
+	 * @return
+	 */
+	public static synchronized SimulationScheduler getShared() {
+		if (s_shared == null) {
+			s_shared = new SimulationScheduler(Runtime.getRuntime()
+					.availableProcessors());
+		}
+		return s_shared;
+	}
+
+	public int getThreadCount() {
+		return m_executor.getCorePoolSize();
+	}
+
+	/**
+	 * Run the given task as soon as a thread is free.
+	 *
+	 * @param _task
+	 */
+	void execute(Runnable _task) {
+		m_executor.execute(_task);
+	}
+
+	/**
+	 * Run the given task once the wall clock reaches the given deadline, as
+	 * given by {@link System#nanoTime()}.
+	 *
+	 * @param _task
+	 * @param _deadlineNanos
+	 */
+	void schedule(Runnable _task, long _deadlineNanos) {
+		long delay = _deadlineNanos - System.nanoTime();
+		if (delay <= 0) {
+			m_executor.execute(_task);
+		} else {
+			m_executor.schedule(_task, delay, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Stop the scheduler's threads once their current tasks have finished.
+	 * Any simulations still using the scheduler stop with them.
+	 *
+	 * @throws IllegalStateException
+	 *             If this is the shared scheduler, which every simulation
+	 *             created afterwards would otherwise be given and fail to
+	 *             run on. Its threads don't keep the JVM alive, so it never
+	 *             needs shutting down.
+	 */
+	public void shutdown() {
+		synchronized (SimulationScheduler.class) {
+			if (this == s_shared) {
+				throw new IllegalStateException(
+						"The shared simulation scheduler can't be shut down");
+			}
+		}
+		m_executor.shutdown();
+	}
+
+	public boolean isShutdown() {
+		return m_executor.isShutdown();
+	}
+}
@@ -0,0 +1,72 @@
+package rp.robotics.simulation;
+
+import java.time.Instant;
+
+/**
+ * The state of a {@link SimulationCore} between two steps, as returned by
+ * {@link SimulationCore#snapshot()}. This holds the simulation clock, the
+ * steppables in each phase and the captured state of everything
+ * {@link Restorable} in the simulation, as immutable values rather than
+ * tasks, so a snapshot can be restored any number of times, e.g. to try
+ * several branches of a run from the same point, but only into the core it
+ * was taken from.
+ *
+ * @author Nick Hawes
+ *
+ */
+public final class SimulationSnapshot {
+
+	/**
+	 * A steppable which had been added but not yet stepped.
+	 */
+	static class Pending {
+		final SimulationSteppable steppable;
+		final int stepRate;
+		final SimulationPhase phase;
+		final Restorable.Captured<?> state;
+
+		Pending(SimulationSteppable _steppable, int _stepRate,
+				SimulationPhase _phase) {
+			steppable = _steppable;
+			stepRate = _stepRate;
+			phase = _phase;
+			state = Restorable.captureIfRestorable(_steppable);
+		}
+	}
+
+	final SimulationCore core;
+	final long tick;
+	final Instant time;
+	final SteppableRegistry.Contents[] registries;
+	final Pending[] pending;
+	final Restorable.Captured<?>[] restorables;
+
+	SimulationSnapshot(SimulationCore _core, long _tick, Instant _time,
+			SteppableRegistry.Contents[] _registries, Pending[] _pending,
+			Restorable.Captured<?>[] _restorables) {
+		core = _core;
+		tick = _tick;
+		time = _time;
+		registries = _registries;
+		pending = _pending;
+		restorables = _restorables;
+	}
+
+	/**
+	 * The number of steps the simulation had run when the snapshot was taken.
+	 *
+	 * @return
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	/**
+	 * The simulation time when the snapshot was taken.
+	 *
+	 * @return
+	 */
+	public Instant getTime() {
+		return time;
+	}
+}
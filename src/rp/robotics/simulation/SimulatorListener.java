@@ -1,5 +1,7 @@
 package rp.robotics.simulation;
 
+import java.time.Instant;
+
 import rp.robotics.MobileRobot;
 
 /**
@@ -19,7 +21,40 @@ public interface SimulatorListener {
 	public void touchSensorPressed(MobileRobot _robot,
 			long _responseTime);
 
+	/**
+	 * Called when the touch sensor in the simulator is pressed, with the
+	 * simulated time at which it first touched something, which may be part
+	 * way through a step. Calls
+	 * {@link #touchSensorPressed(MobileRobot, long)} by default.
+	 * 
+	 * @param _robot
+	 * @param _when
+	 * @param _responseTime
+	 */
+	default void touchSensorPressed(MobileRobot _robot, Instant _when,
+			long _responseTime) {
+		touchSensorPressed(_robot, _responseTime);
+	}
+
 	public void controllerStopped(MobileRobot _robot,
 			long _responseTime);
 
+	/**
+	 * Called when a robot runs into another robot. Does nothing by default.
+	 * 
+	 * @param _robot
+	 * @param _other
+	 */
+	default void robotsCollided(MobileRobot _robot, MobileRobot _other) {
+	}
+
+	/**
+	 * Called when a robot runs into an obstacle. Does nothing by default.
+	 * 
+	 * @param _robot
+	 * @param _obstacle
+	 */
+	default void obstacleHit(MobileRobot _robot, DynamicObstacle _obstacle) {
+	}
+
 }
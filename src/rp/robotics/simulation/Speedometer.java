@@ -14,6 +14,16 @@ public class Speedometer {
 		m_window = window;
 	}
 
+	/**
+	 * Create a speedometer with the same readings as the given one.
+	 * 
+	 * @param _that
+	 */
+	public Speedometer(Speedometer _that) {
+		readings.addAll(_that.readings);
+		m_window = _that.m_window;
+	}
+
 	public double update(int _tachoCount, long _timeMs) {
 		readings.addLast(Pair.makePair(_tachoCount, _timeMs));
 		if (readings.size() > m_window) {
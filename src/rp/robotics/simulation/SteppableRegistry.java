@@ -0,0 +1,413 @@
+package rp.robotics.simulation;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Array-backed store for the steppables in one phase of a
+ * {@link SimulationCore}. Steppables are added at the end and removed by
+ * swapping the last steppable into their slot, so both are O(1) and nothing is
+ * allocated in the tick loop once the arrays have grown to fit. This is only
+ * ever accessed with the core's step lock held (other threads add steppables
+ * via the core's queue), except that {@link #step(int, int, Instant)} may be
+ * run on disjoint ranges by several threads at once.
+ *
+ * @author Nick Hawes
+ *
+ */
+class SteppableRegistry {
+
+	/**
+	 * The steppables in a registry at some point, and the states of those
+	 * which are {@link Restorable}, for putting back later.
+	 */
+	static class Contents {
+		final SimulationSteppable[] steppables;
+		final int[] stepRatios;
+		final int[] countDowns;
+		final Instant[] lastCalls;
+		final LatencyHistogram[] timings;
+		final Restorable.Captured<?>[] states;
+
+		Contents(int _size) {
+			steppables = new SimulationSteppable[_size];
+			stepRatios = new int[_size];
+			countDowns = new int[_size];
+			lastCalls = new Instant[_size];
+			timings = new LatencyHistogram[_size];
+			states = new Restorable.Captured<?>[_size];
+		}
+	}
+
+	private SimulationSteppable[] m_steppables;
+	private int[] m_stepRatios;
+	private int[] m_countDowns;
+	private Instant[] m_lastCalls;
+	private CompletableFuture<Void>[] m_completions;
+	private LatencyHistogram[] m_timings;
+
+	// whether to record how long each steppable takes
+	private boolean m_timed = false;
+
+	// the interval to step each steppable with this step, null if not due
+	private Duration[] m_intervals;
+
+	// whether each steppable asked to be removed this step
+	private boolean[] m_remove;
+
+	private int m_size = 0;
+
+	// most steppables were last called at the same time, so share the
+	// interval between them rather than creating one each
+	private Instant m_intervalFrom;
+	private Instant m_intervalTo;
+	private Duration m_interval;
+
+	public SteppableRegistry(int _capacity) {
+		m_steppables = new SimulationSteppable[_capacity];
+		m_stepRatios = new int[_capacity];
+		m_countDowns = new int[_capacity];
+		m_lastCalls = new Instant[_capacity];
+		m_completions = newCompletions(_capacity);
+		m_timings = new LatencyHistogram[_capacity];
+		m_intervals = new Duration[_capacity];
+		m_remove = new boolean[_capacity];
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static CompletableFuture<Void>[] newCompletions(int _capacity) {
+		return new CompletableFuture[_capacity];
+	}
+
+	public int size() {
+		return m_size;
+	}
+
+	/**
+	 * Add a steppable which is stepped once every _stepRatio steps.
+	 *
+	 * @param _steppable
+	 * @param _stepRatio
+	 * @param _completion
+	 *            Completed when the steppable is removed.
+	 * @param _timing
+	 *            Where to record how long the steppable takes.
+	 */
+	public void add(SimulationSteppable _steppable, int _stepRatio,
+			CompletableFuture<Void> _completion, LatencyHistogram _timing) {
+		if (m_size == m_steppables.length) {
+			grow();
+		}
+		m_steppables[m_size] = _steppable;
+		m_stepRatios[m_size] = _stepRatio;
+		m_countDowns[m_size] = _stepRatio;
+		m_lastCalls[m_size] = null;
+		m_completions[m_size] = _completion;
+		m_timings[m_size] = _timing;
+		m_intervals[m_size] = null;
+		m_remove[m_size] = false;
+		m_size++;
+	}
+
+	private void grow() {
+		int capacity = Math.max(1, m_steppables.length * 2);
+		SimulationSteppable[] steppables = new SimulationSteppable[capacity];
+		int[] stepRatios = new int[capacity];
+		int[] countDowns = new int[capacity];
+		Instant[] lastCalls = new Instant[capacity];
+		CompletableFuture<Void>[] completions = newCompletions(capacity);
+		LatencyHistogram[] timings = new LatencyHistogram[capacity];
+		System.arraycopy(m_steppables, 0, steppables, 0, m_size);
+		System.arraycopy(m_stepRatios, 0, stepRatios, 0, m_size);
+		System.arraycopy(m_countDowns, 0, countDowns, 0, m_size);
+		System.arraycopy(m_lastCalls, 0, lastCalls, 0, m_size);
+		System.arraycopy(m_completions, 0, completions, 0, m_size);
+		System.arraycopy(m_timings, 0, timings, 0, m_size);
+		m_steppables = steppables;
+		m_stepRatios = stepRatios;
+		m_countDowns = countDowns;
+		m_lastCalls = lastCalls;
+		m_completions = completions;
+		m_timings = timings;
+		m_intervals = new Duration[capacity];
+		m_remove = new boolean[capacity];
+	}
+
+	/**
+	 * Set whether to record how long each steppable takes to step. Must not
+	 * be called while stepping.
+	 *
+	 * @param _timed
+	 */
+	public void setTimed(boolean _timed) {
+		m_timed = _timed;
+	}
+
+	/**
+	 * Counts down all steppables and works out which are due this step.
+	 *
+	 * @param _now
+	 */
+	public void countDown(Instant _now) {
+		for (int i = 0; i < m_size; i++) {
+			if (m_lastCalls[i] == null) {
+				m_lastCalls[i] = _now;
+			}
+			m_remove[i] = false;
+			if (--m_countDowns[i] == 0) {
+				m_intervals[i] = interval(m_lastCalls[i], _now);
+				m_lastCalls[i] = _now;
+				m_countDowns[i] = m_stepRatios[i];
+			} else {
+				m_intervals[i] = null;
+			}
+		}
+	}
+
+	private Duration interval(Instant _from, Instant _to) {
+		if (_from != m_intervalFrom || _to != m_intervalTo) {
+			m_intervalFrom = _from;
+			m_intervalTo = _to;
+			m_interval = Duration.between(_from, _to);
+		}
+		return m_interval;
+	}
+
+	/**
+	 * Works out how many integration steps the due steppables need this step
+	 * so that no {@link MovingSteppable} moves further than the given limits in
+	 * one of them.
+	 *
+	 * @param _maxDistance
+	 *            In metres.
+	 * @param _maxAngle
+	 *            In degrees.
+	 * @param _maxSubSteps
+	 * @return A number between 1 and _maxSubSteps.
+	 */
+	public int subStepsNeeded(double _maxDistance, double _maxAngle,
+			int _maxSubSteps) {
+		double needed = 1;
+		for (int i = 0; i < m_size; i++) {
+			Duration interval = m_intervals[i];
+			if (interval == null
+					|| !(m_steppables[i] instanceof MovingSteppable)) {
+				continue;
+			}
+			MovingSteppable moving = (MovingSteppable) m_steppables[i];
+			double secs = interval.toNanos() / 1e9;
+			needed = Math.max(needed, Math.abs(moving.getLinearSpeed())
+					* secs / _maxDistance);
+			needed = Math.max(needed, Math.abs(moving.getAngularSpeed())
+					* secs / _maxAngle);
+		}
+		return (int) Math.min(Math.ceil(needed), _maxSubSteps);
+	}
+
+	/**
+	 * Works out when the steppables next need stepping. Steppables which are
+	 * not {@link EventDrivenSteppable}s always need stepping in the next step.
+	 * 
+	 * @param _now
+	 *            The time of the step just run.
+	 * @return The earliest next event time, which is _now if anything needs
+	 *         stepping in the next step, or null if nothing has an event.
+	 */
+	public Instant nextEventTime(Instant _now) {
+		Instant next = null;
+		for (int i = 0; i < m_size; i++) {
+			if (!(m_steppables[i] instanceof EventDrivenSteppable)) {
+				return _now;
+			}
+			Instant event = ((EventDrivenSteppable) m_steppables[i])
+					.getNextEventTime(_now);
+			if (event != null && (next == null || event.isBefore(next))) {
+				if (!event.isAfter(_now)) {
+					return _now;
+				}
+				next = event;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * Step or flag for removal the due steppables in the given range of slots.
+	 *
+	 * @param _from
+	 * @param _to
+	 * @param _now
+	 */
+	public void step(int _from, int _to, Instant _now) {
+		step(_from, _to, _now, 1, 1);
+	}
+
+	/**
+	 * Step or flag for removal the due steppables in the given range of slots
+	 * over the given part of their intervals, when the step is split into
+	 * _subSteps equal shorter steps. The last part takes any rounding so that
+	 * the parts always sum to the full interval. A steppable which asks to be
+	 * removed in one part is not stepped in the later ones.
+	 *
+	 * @param _from
+	 * @param _to
+	 * @param _now
+	 *            The end of the whole step.
+	 * @param _subStep
+	 *            Which part to step, from 1 to _subSteps.
+	 * @param _subSteps
+	 */
+	public void step(int _from, int _to, Instant _now, int _subStep,
+			int _subSteps) {
+		for (int i = _from; i < _to; i++) {
+			Duration interval = m_intervals[i];
+			if (interval == null || (_subStep > 1 && m_remove[i])) {
+				continue;
+			}
+			SimulationSteppable steppable = m_steppables[i];
+			long start = m_timed ? System.nanoTime() : 0;
+			try {
+				Instant subNow = _now;
+				if (_subSteps > 1) {
+					Duration subInterval = interval.dividedBy(_subSteps);
+					if (_subStep < _subSteps) {
+						subNow = _now.minus(interval).plus(
+								subInterval.multipliedBy(_subStep));
+						interval = subInterval;
+					} else {
+						interval = interval.minus(subInterval
+								.multipliedBy(_subSteps - 1));
+					}
+				}
+				m_remove[i] = steppable.remove(subNow, interval);
+				if (!m_remove[i]) {
+					steppable.step(subNow, interval);
+				}
+			} catch (Exception e) {
+				// don't let one steppable stop the rest of the phase
+				System.err.println("caught in SteppableRegistry.step(): "
+						+ e.getMessage());
+				e.printStackTrace();
+				m_remove[i] = false;
+			}
+			if (m_timed) {
+				m_timings[i].record(System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * Remove all the steppables without stepping them again, cancelling their
+	 * futures.
+	 */
+	public void cancelAll() {
+		for (int i = 0; i < m_size; i++) {
+			CompletableFuture<Void> completion = m_completions[i];
+			m_steppables[i] = null;
+			m_lastCalls[i] = null;
+			m_completions[i] = null;
+			m_timings[i] = null;
+			m_intervals[i] = null;
+			m_remove[i] = false;
+			completion.cancel(false);
+		}
+		m_size = 0;
+	}
+
+	/**
+	 * Remove all the steppables which asked to be removed in the last step,
+	 * completing their futures.
+	 */
+	public void removeFinished() {
+		// going backwards means the slot swapped in has already been checked
+		for (int i = m_size - 1; i >= 0; i--) {
+			if (m_remove[i]) {
+				CompletableFuture<Void> completion = m_completions[i];
+				int last = --m_size;
+				m_steppables[i] = m_steppables[last];
+				m_stepRatios[i] = m_stepRatios[last];
+				m_countDowns[i] = m_countDowns[last];
+				m_lastCalls[i] = m_lastCalls[last];
+				m_completions[i] = m_completions[last];
+				m_timings[i] = m_timings[last];
+				m_intervals[i] = m_intervals[last];
+				m_remove[i] = m_remove[last];
+				m_steppables[last] = null;
+				m_lastCalls[last] = null;
+				m_completions[last] = null;
+				m_timings[last] = null;
+				m_intervals[last] = null;
+				m_remove[last] = false;
+
+				// exceptions from dependent stages end up in their own
+				// futures, so this can't fail
+				completion.complete(null);
+			}
+		}
+	}
+
+	/**
+	 * Capture the steppables currently in the registry along with their
+	 * states.
+	 *
+	 * @return
+	 */
+	public Contents getContents() {
+		Contents contents = new Contents(m_size);
+		System.arraycopy(m_steppables, 0, contents.steppables, 0, m_size);
+		System.arraycopy(m_stepRatios, 0, contents.stepRatios, 0, m_size);
+		System.arraycopy(m_countDowns, 0, contents.countDowns, 0, m_size);
+		System.arraycopy(m_lastCalls, 0, contents.lastCalls, 0, m_size);
+		System.arraycopy(m_timings, 0, contents.timings, 0, m_size);
+		for (int i = 0; i < m_size; i++) {
+			contents.states[i] = Restorable
+					.captureIfRestorable(m_steppables[i]);
+		}
+		return contents;
+	}
+
+	/**
+	 * Add the futures of all the steppables in the registry to the given
+	 * map.
+	 *
+	 * @param _completions
+	 */
+	public void getCompletions(
+			Map<SimulationSteppable, CompletableFuture<Void>> _completions) {
+		for (int i = 0; i < m_size; i++) {
+			_completions.put(m_steppables[i], m_completions[i]);
+		}
+	}
+
+	/**
+	 * Replace the steppables in the registry with previously captured
+	 * contents. This does not restore the steppables' states or touch the
+	 * futures of the steppables being replaced.
+	 *
+	 * @param _contents
+	 * @param _completionFor
+	 *            Gives the future to use for each restored steppable.
+	 */
+	public void setContents(Contents _contents,
+			Function<SimulationSteppable, CompletableFuture<Void>> _completionFor) {
+		for (int i = 0; i < m_size; i++) {
+			m_steppables[i] = null;
+			m_lastCalls[i] = null;
+			m_completions[i] = null;
+			m_timings[i] = null;
+			m_intervals[i] = null;
+			m_remove[i] = false;
+		}
+		m_size = 0;
+		for (int i = 0; i < _contents.steppables.length; i++) {
+			SimulationSteppable steppable = _contents.steppables[i];
+			add(steppable, _contents.stepRatios[i],
+					_completionFor.apply(steppable), _contents.timings[i]);
+			m_countDowns[i] = _contents.countDowns[i];
+			m_lastCalls[i] = _contents.lastCalls[i];
+		}
+	}
+}
@@ -88,7 +88,11 @@ public class SynchronisedMotor extends SimulatedMotor {
 			if (!m_calls.containsKey(_methodName)) {
 
 				SynchronisedMotor m = (SynchronisedMotor) _parameters[0];
-				m.getSim().waitForEndOfStep();
+				// cooperative controllers run in the act phase, before
+				// anything moves, so don't need to wait
+				if (!ControllerScheduler.isCooperative()) {
+					m.getSim().waitForEndOfStep();
+				}
 				// m.getSim().pause();
 
 				method = new SynchronisedMethodCall(mh, m_motorCount,
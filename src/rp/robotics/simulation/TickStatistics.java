@@ -0,0 +1,163 @@
+package rp.robotics.simulation;
+
+/**
+ * Immutable summary of how well a {@link SimulationCore} has kept to its
+ * target rate. Lateness is how long after its deadline a step actually
+ * started, step time is how long the steppables took to run. If lateness is
+ * high but step times are low then something outside the simulation (e.g. a
+ * busy controller) is starving the simulation thread. If step times are close
+ * to or above the period then the simulation itself is too slow.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class TickStatistics {
+
+	private final double m_targetRate;
+	private final long m_ticks;
+	private final long m_elapsedNanos;
+	private final long m_missedDeadlines;
+	private final long m_catchUpTicks;
+	private final long m_skippedTicks;
+	private final long m_totalLatenessNanos;
+	private final long m_maxLatenessNanos;
+	private final long m_totalStepNanos;
+	private final long m_maxStepNanos;
+	private final long m_subSteppedTicks;
+	private final long m_idleTicks;
+
+	public TickStatistics(double _targetRate, long _ticks, long _elapsedNanos,
+			long _missedDeadlines, long _catchUpTicks, long _skippedTicks,
+			long _totalLatenessNanos, long _maxLatenessNanos,
+			long _totalStepNanos, long _maxStepNanos, long _subSteppedTicks,
+			long _idleTicks) {
+		m_targetRate = _targetRate;
+		m_ticks = _ticks;
+		m_elapsedNanos = _elapsedNanos;
+		m_missedDeadlines = _missedDeadlines;
+		m_catchUpTicks = _catchUpTicks;
+		m_skippedTicks = _skippedTicks;
+		m_totalLatenessNanos = _totalLatenessNanos;
+		m_maxLatenessNanos = _maxLatenessNanos;
+		m_totalStepNanos = _totalStepNanos;
+		m_maxStepNanos = _maxStepNanos;
+		m_subSteppedTicks = _subSteppedTicks;
+		m_idleTicks = _idleTicks;
+	}
+
+	public double getTargetRate() {
+		return m_targetRate;
+	}
+
+	/**
+	 * The number of steps run since the statistics were last reset.
+	 *
+	 * @return
+	 */
+	public long getTicks() {
+		return m_ticks;
+	}
+
+	/**
+	 * The number of steps run per second of wall-clock time.
+	 *
+	 * @return
+	 */
+	public double getAchievedRate() {
+		if (m_elapsedNanos <= 0) {
+			return 0;
+		}
+		return m_ticks / (m_elapsedNanos / 1e9);
+	}
+
+	/**
+	 * The number of steps which finished after the deadline for the next
+	 * step.
+	 *
+	 * @return
+	 */
+	public long getMissedDeadlines() {
+		return m_missedDeadlines;
+	}
+
+	/**
+	 * The number of steps run back-to-back to catch up after an overrun.
+	 *
+	 * @return
+	 */
+	public long getCatchUpTicks() {
+		return m_catchUpTicks;
+	}
+
+	/**
+	 * The number of steps dropped after an overrun.
+	 *
+	 * @return
+	 */
+	public long getSkippedTicks() {
+		return m_skippedTicks;
+	}
+
+	/**
+	 * Mean time in milliseconds between a step's deadline and it starting.
+	 *
+	 * @return
+	 */
+	public double getMeanJitterMs() {
+		return mean(m_totalLatenessNanos);
+	}
+
+	public double getMaxJitterMs() {
+		return m_maxLatenessNanos / 1e6;
+	}
+
+	/**
+	 * Mean time in milliseconds taken to run all the steppables in a step.
+	 *
+	 * @return
+	 */
+	public double getMeanStepMs() {
+		return mean(m_totalStepNanos);
+	}
+
+	public double getMaxStepMs() {
+		return m_maxStepNanos / 1e6;
+	}
+
+	/**
+	 * The number of steps which were split into several integration steps
+	 * because something was moving quickly.
+	 *
+	 * @return
+	 */
+	public long getSubSteppedTicks() {
+		return m_subSteppedTicks;
+	}
+
+	/**
+	 * The number of steps skipped because the simulation was event-driven
+	 * and nothing would have happened in them.
+	 *
+	 * @return
+	 */
+	public long getIdleTicks() {
+		return m_idleTicks;
+	}
+
+	private double mean(long _totalNanos) {
+		if (m_ticks == 0) {
+			return 0;
+		}
+		return (_totalNanos / (double) m_ticks) / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return String
+				.format("%d ticks at %.1fHz (target %.1fHz), %d missed deadlines, %d caught up, %d skipped, %d sub-stepped, %d idle, jitter %.2fms mean %.2fms max, step %.2fms mean %.2fms max",
+						m_ticks, getAchievedRate(), m_targetRate,
+						m_missedDeadlines, m_catchUpTicks, m_skippedTicks,
+						m_subSteppedTicks, m_idleTicks, getMeanJitterMs(), getMaxJitterMs(), getMeanStepMs(),
+						getMaxStepMs());
+	}
+}
@@ -12,7 +12,8 @@ import lejos.robotics.navigation.Pose;
  * @author Nick Hawes
  *
  */
-public class TranslationObstacle implements DynamicObstacle {
+public class TranslationObstacle implements DynamicObstacle, MovingSteppable,
+		Restorable<TranslationObstacle.State> {
 
 	private final Line[] m_footprint;
 	private Movable m_mover;
@@ -43,6 +44,38 @@ public class TranslationObstacle implements DynamicObstacle {
 		return m_footprint;
 	}
 
+	@Override
+	public float getLinearSpeed() {
+		return m_mover.getLinearSpeed();
+	}
+
+	@Override
+	public float getAngularSpeed() {
+		return m_mover.getAngularSpeed();
+	}
+
+	/**
+	 * The state of the mover, if it has one.
+	 */
+	public static final class State {
+
+		private final Restorable.Captured<?> m_moverState;
+
+		private State(TranslationObstacle _obstacle) {
+			m_moverState = Restorable.captureIfRestorable(_obstacle.m_mover);
+		}
+	}
+
+	@Override
+	public State getState() {
+		return new State(this);
+	}
+
+	@Override
+	public void setState(State _state) {
+		_state.m_moverState.restore();
+	}
+
 	@Override
 	public boolean remove(Instant _now, Duration _stepInterval) {
 		return m_mover.remove(_now, _stepInterval);
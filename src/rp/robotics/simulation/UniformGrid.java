@@ -0,0 +1,169 @@
+package rp.robotics.simulation;
+
+import java.awt.geom.Rectangle2D;
+import java.util.function.IntConsumer;
+
+/**
+ * The geometry of a grid of square cells over a rectangle, used by the
+ * simulation's spatial indices. Cells are numbered row by row from the
+ * minimum corner.
+ *
+ * @author Nick Hawes
+ *
+ */
+final class UniformGrid {
+
+	/**
+	 * Called with each cell a line passes through, in order along the line.
+	 */
+	interface CellVisitor {
+
+		/**
+		 *
+		 * @param _cell
+		 * @param _exit
+		 *            How far along the line, from 0 to 1, it leaves the cell.
+		 * @return true to stop visiting cells.
+		 */
+		boolean visit(int _cell, double _exit);
+	}
+
+	private final double m_minX;
+	private final double m_minY;
+	private final double m_cellSize;
+	private final int m_columns;
+	private final int m_rows;
+
+	/**
+	 * Create a grid over the given bounds with cells of at least the given
+	 * size, made larger if needed to keep to the given number of cells.
+	 *
+	 * @param _bounds
+	 * @param _cellSize
+	 * @param _maxCells
+	 */
+	UniformGrid(Rectangle2D _bounds, double _cellSize, int _maxCells) {
+		m_minX = _bounds.getMinX();
+		m_minY = _bounds.getMinY();
+		double width = Math.max(_bounds.getWidth(), 1e-3);
+		double height = Math.max(_bounds.getHeight(), 1e-3);
+		m_cellSize = Math.max(Math.max(_cellSize, 1e-3),
+				Math.sqrt(width * height / Math.max(1, _maxCells)));
+		m_columns = Math.max(1, (int) Math.ceil(width / m_cellSize));
+		m_rows = Math.max(1, (int) Math.ceil(height / m_cellSize));
+	}
+
+	int getCellCount() {
+		return m_columns * m_rows;
+	}
+
+	private int column(double _x) {
+		return Math.min(m_columns - 1,
+				Math.max(0, (int) Math.floor((_x - m_minX) / m_cellSize)));
+	}
+
+	private int row(double _y) {
+		return Math.min(m_rows - 1,
+				Math.max(0, (int) Math.floor((_y - m_minY) / m_cellSize)));
+	}
+
+	/**
+	 * Pass each cell which overlaps the given box to _cells. Anything outside
+	 * the grid is treated as being in the nearest edge cell.
+	 */
+	void overlapping(double _minX, double _minY, double _maxX, double _maxY,
+			IntConsumer _cells) {
+		int lastColumn = column(_maxX);
+		int lastRow = row(_maxY);
+		for (int row = row(_minY); row <= lastRow; row++) {
+			for (int column = column(_minX); column <= lastColumn; column++) {
+				_cells.accept(row * m_columns + column);
+			}
+		}
+	}
+
+	/**
+	 * Visit the cells the given line passes through in order, using a DDA
+	 * walk. The parts of the line outside the grid are skipped.
+	 */
+	void traverse(double _x1, double _y1, double _x2, double _y2,
+			CellVisitor _visitor) {
+
+		double dx = _x2 - _x1;
+		double dy = _y2 - _y1;
+
+		// clip to the grid
+		double[] span = { 0, 1 };
+		if (!clip(-dx, _x1 - m_minX, span)
+				|| !clip(dx, m_minX + m_columns * m_cellSize - _x1, span)
+				|| !clip(-dy, _y1 - m_minY, span)
+				|| !clip(dy, m_minY + m_rows * m_cellSize - _y1, span)) {
+			return;
+		}
+
+		int column = column(_x1 + span[0] * dx);
+		int row = row(_y1 + span[0] * dy);
+		int endColumn = column(_x1 + span[1] * dx);
+		int endRow = row(_y1 + span[1] * dy);
+
+		int stepColumn = dx > 0 ? 1 : -1;
+		int stepRow = dy > 0 ? 1 : -1;
+
+		// how far along the line the next column and row boundaries are, and
+		// how far along it is between boundaries
+		double deltaX = dx == 0 ? Double.POSITIVE_INFINITY : m_cellSize
+				/ Math.abs(dx);
+		double deltaY = dy == 0 ? Double.POSITIVE_INFINITY : m_cellSize
+				/ Math.abs(dy);
+		double nextX = dx == 0 ? Double.POSITIVE_INFINITY
+				: ((m_minX + (column + (dx > 0 ? 1 : 0)) * m_cellSize) - _x1)
+						/ dx;
+		double nextY = dy == 0 ? Double.POSITIVE_INFINITY
+				: ((m_minY + (row + (dy > 0 ? 1 : 0)) * m_cellSize) - _y1)
+						/ dy;
+
+		while (true) {
+			boolean last = column == endColumn && row == endRow;
+			double exit = last ? 1 : Math.min(1, Math.min(nextX, nextY));
+			if (_visitor.visit(row * m_columns + column, exit) || last) {
+				return;
+			}
+			if (nextX < nextY) {
+				column += stepColumn;
+				nextX += deltaX;
+			} else {
+				row += stepRow;
+				nextY += deltaY;
+			}
+			if (column < 0 || column >= m_columns || row < 0 || row >= m_rows) {
+				// rounding took it past the end cell
+				return;
+			}
+		}
+	}
+
+	/**
+	 * One step of Liang-Barsky clipping, narrowing _span to the part of the
+	 * line inside one edge of the grid.
+	 *
+	 * @return false if none of the line is inside.
+	 */
+	private static boolean clip(double _p, double _q, double[] _span) {
+		if (_p == 0) {
+			return _q >= 0;
+		}
+		double t = _q / _p;
+		if (_p < 0) {
+			if (t > _span[1]) {
+				return false;
+			}
+			_span[0] = Math.max(_span[0], t);
+		} else {
+			if (t < _span[0]) {
+				return false;
+			}
+			_span[1] = Math.min(_span[1], t);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,379 @@
+package rp.robotics.simulation;
+
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.util.Collections;
+import java.util.List;
+
+import lejos.geom.Line;
+import lejos.robotics.navigation.Pose;
+
+/**
+ * The footprints of the robots and obstacles in a {@link MapBasedSimulation},
+ * and of the robots' touch sensors, transformed into the world frame at the
+ * poses published in one {@link WorldState.Frame}. Footprints are transformed
+ * once per step, however many times they are used, so sensing, collision
+ * detection and visualisation don't each transform them again.
+ *
+ * These are never changed once captured, so readers on any thread can keep
+ * using them for as long as they like, but should get the current footprints
+ * from {@link MapBasedSimulation#getWorldFootprints()} each time they need
+ * up to date ones.
+ *
+ * The segments of all footprints are packed into one array, see
+ * {@link #getSegments()}. The robots are numbered first, then the obstacles,
+ * in the order they were added to the simulation.
+ *
+ * @author Nick Hawes
+ *
+ */
+public final class WorldFootprints {
+
+	// x1, y1, x2, y2 for each segment
+	private static final int FIELDS = 4;
+
+	private final long m_tick;
+
+	// the version of the world state the poses came from, and which capture
+	// of the simulation's this is
+	private final long m_worldVersion;
+	private final long m_capture;
+	private final int m_robotCount;
+	private final int m_obstacleCount;
+
+	// x, y and heading of each robot and obstacle
+	private final float[] m_poses;
+
+	private final float[] m_segments;
+	private final int m_segmentCount;
+
+	// the segments of the footprint of robot or obstacle b are from
+	// m_start[b] up to m_start[b + 1], with those of the touch sensors of the
+	// robots after them, see m_firstTouch
+	private final int[] m_start;
+
+	// the touch sensors of robot r are footprints m_firstTouch[r] up to
+	// m_firstTouch[r + 1] in m_start
+	private final int[] m_firstTouch;
+
+	private final FootprintBroadPhase m_broadPhase;
+
+	/**
+	 * No footprints, as before anything has been captured.
+	 */
+	WorldFootprints() {
+		this(-1, -1, -1, new Pose[0], new Line[0][], Collections
+				.<List<Line[]>> emptyList(), 0, new Rectangle2D.Float());
+	}
+
+	/**
+	 * Transform the given footprints to the given poses. Only called by the
+	 * simulation.
+	 *
+	 * @param _tick
+	 *            The step the poses were published in.
+	 * @param _worldVersion
+	 *            The version of the world state they were published in.
+	 * @param _capture
+	 *            A number which is different for every capture by the
+	 *            simulation.
+	 * @param _poses
+	 *            The poses of the robots then the obstacles.
+	 * @param _footprints
+	 *            The footprints of the robots then the obstacles.
+	 * @param _touchSensors
+	 *            The touch sensor footprints of each robot, or null for
+	 *            those without any.
+	 * @param _robotCount
+	 * @param _bounds
+	 *            The area the footprints are usually in, e.g. the map.
+	 */
+	WorldFootprints(long _tick, long _worldVersion, long _capture,
+			Pose[] _poses, Line[][] _footprints,
+			List<List<Line[]>> _touchSensors, int _robotCount,
+			Rectangle2D _bounds) {
+
+		int bodies = _poses.length;
+		int footprints = bodies;
+		int segments = 0;
+		for (int b = 0; b < bodies; b++) {
+			segments += _footprints[b].length;
+		}
+		for (int r = 0; r < _robotCount; r++) {
+			List<Line[]> sensors = _touchSensors.get(r);
+			if (sensors != null) {
+				footprints += sensors.size();
+				for (Line[] sensor : sensors) {
+					segments += sensor.length;
+				}
+			}
+		}
+
+		m_poses = new float[bodies * 3];
+		m_segments = new float[segments * FIELDS];
+		m_start = new int[footprints + 1];
+		m_firstTouch = new int[_robotCount + 1];
+
+		int footprint = 0;
+		int segment = 0;
+		for (int b = 0; b < bodies; b++) {
+			m_poses[b * 3] = _poses[b].getX();
+			m_poses[b * 3 + 1] = _poses[b].getY();
+			m_poses[b * 3 + 2] = _poses[b].getHeading();
+			m_start[footprint++] = segment;
+			segment = transform(_poses[b], _footprints[b], segment);
+		}
+
+		for (int r = 0; r < _robotCount; r++) {
+			m_firstTouch[r] = footprint;
+			List<Line[]> sensors = _touchSensors.get(r);
+			if (sensors != null) {
+				for (Line[] sensor : sensors) {
+					m_start[footprint++] = segment;
+					segment = transform(_poses[r], sensor, segment);
+				}
+			}
+		}
+		m_firstTouch[_robotCount] = footprint;
+		m_start[footprint] = segment;
+
+		// the bounding box of each robot and obstacle as min x, min y, max x,
+		// max y, kept by the broad phase
+		float[] boxes = new float[bodies * 4];
+		for (int b = 0; b < bodies; b++) {
+			float minX = _poses[b].getX();
+			float minY = _poses[b].getY();
+			float maxX = minX;
+			float maxY = minY;
+			for (int s = m_start[b] * FIELDS; s < m_start[b + 1] * FIELDS; s += 2) {
+				minX = Math.min(minX, m_segments[s]);
+				maxX = Math.max(maxX, m_segments[s]);
+				minY = Math.min(minY, m_segments[s + 1]);
+				maxY = Math.max(maxY, m_segments[s + 1]);
+			}
+			boxes[b * 4] = minX;
+			boxes[b * 4 + 1] = minY;
+			boxes[b * 4 + 2] = maxX;
+			boxes[b * 4 + 3] = maxY;
+		}
+
+		m_segmentCount = segment;
+		m_robotCount = _robotCount;
+		m_obstacleCount = bodies - _robotCount;
+		m_broadPhase = new FootprintBroadPhase(boxes, bodies, _bounds);
+		m_tick = _tick;
+		m_worldVersion = _worldVersion;
+		m_capture = _capture;
+	}
+
+	/**
+	 * Write the given footprint transformed to the given pose into the
+	 * segments from _segment.
+	 *
+	 * @return The segment after the last one written.
+	 */
+	private int transform(Pose _pose, Line[] _footprint, int _segment) {
+		double heading = Math.toRadians(_pose.getHeading());
+		float cos = (float) Math.cos(heading);
+		float sin = (float) Math.sin(heading);
+		float x = _pose.getX();
+		float y = _pose.getY();
+		int offset = _segment * FIELDS;
+		for (Line line : _footprint) {
+			m_segments[offset++] = x + line.x1 * cos - line.y1 * sin;
+			m_segments[offset++] = y + line.x1 * sin + line.y1 * cos;
+			m_segments[offset++] = x + line.x2 * cos - line.y2 * sin;
+			m_segments[offset++] = y + line.x2 * sin + line.y2 * cos;
+		}
+		return _segment + _footprint.length;
+	}
+
+	/**
+	 * The step of the simulation the footprints were transformed in, or -1 if
+	 * they haven't been yet.
+	 *
+	 * @return
+	 */
+	public long getTick() {
+		return m_tick;
+	}
+
+	/**
+	 *
+	 * @return The version of the world state the poses came from, see
+	 *         {@link WorldState#getVersion()}.
+	 */
+	long getWorldVersion() {
+		return m_worldVersion;
+	}
+
+	/**
+	 *
+	 * @return A number which is different for each capture by the
+	 *         simulation, so anything calculated from these footprints can
+	 *         tell if it is still current.
+	 */
+	long getCapture() {
+		return m_capture;
+	}
+
+	public int getRobotCount() {
+		return m_robotCount;
+	}
+
+	public int getObstacleCount() {
+		return m_obstacleCount;
+	}
+
+	/**
+	 * The pose the given robot or obstacle's footprint was transformed to.
+	 *
+	 * @param _body
+	 *            The index of a robot, or of an obstacle plus the number of
+	 *            robots.
+	 * @return
+	 */
+	public Pose getPose(int _body) {
+		return new Pose(m_poses[_body * 3], m_poses[_body * 3 + 1],
+				m_poses[_body * 3 + 2]);
+	}
+
+	/**
+	 * The segments of all the footprints, as x1, y1, x2, y2 for each in turn.
+	 * This is shared rather than copied, so must not be changed.
+	 *
+	 * @return
+	 */
+	public float[] getSegments() {
+		return m_segments;
+	}
+
+	/**
+	 * The number of segments in all the footprints, those of the robots and
+	 * obstacles followed by those of the touch sensors.
+	 *
+	 * @return
+	 */
+	public int getSegmentCount() {
+		return m_segmentCount;
+	}
+
+	/**
+	 * The first segment of the footprint of the given robot or obstacle. Its
+	 * segments run up to the first one of the next, i.e.
+	 * getSegmentStart(_body + 1).
+	 *
+	 * @param _body
+	 *            The index of a robot, or of an obstacle plus the number of
+	 *            robots.
+	 * @return
+	 */
+	public int getSegmentStart(int _body) {
+		return m_start[_body];
+	}
+
+	/**
+	 * The number of touch sensors the given robot has.
+	 *
+	 * @param _robot
+	 * @return
+	 */
+	public int getTouchSensorCount(int _robot) {
+		return m_firstTouch[_robot + 1] - m_firstTouch[_robot];
+	}
+
+	/**
+	 * The first segment of the footprint of the given touch sensor.
+	 *
+	 * @param _robot
+	 * @param _sensor
+	 * @return
+	 */
+	public int getTouchSegmentStart(int _robot, int _sensor) {
+		return m_start[m_firstTouch[_robot] + _sensor];
+	}
+
+	/**
+	 * The segment after the last one of the footprint of the given touch
+	 * sensor.
+	 *
+	 * @param _robot
+	 * @param _sensor
+	 * @return
+	 */
+	public int getTouchSegmentEnd(int _robot, int _sensor) {
+		return m_start[m_firstTouch[_robot] + _sensor + 1];
+	}
+
+	FootprintBroadPhase getBroadPhase() {
+		return m_broadPhase;
+	}
+
+	/**
+	 * Write the box around the given segments into _box as min x, min y, max
+	 * x, max y.
+	 */
+	void getBounds(int _from, int _to, float[] _box) {
+		_box[0] = _box[1] = Float.POSITIVE_INFINITY;
+		_box[2] = _box[3] = Float.NEGATIVE_INFINITY;
+		for (int s = _from * FIELDS; s < _to * FIELDS; s += 2) {
+			_box[0] = Math.min(_box[0], m_segments[s]);
+			_box[1] = Math.min(_box[1], m_segments[s + 1]);
+			_box[2] = Math.max(_box[2], m_segments[s]);
+			_box[3] = Math.max(_box[3], m_segments[s + 1]);
+		}
+	}
+
+	/**
+	 * Whether any of the segments from _from up to _to cross any of those
+	 * from _otherFrom up to _otherTo, e.g. the footprints of two robots.
+	 */
+	boolean intersects(int _from, int _to, int _otherFrom, int _otherTo) {
+		for (int s = _from * FIELDS; s < _to * FIELDS; s += FIELDS) {
+			for (int o = _otherFrom * FIELDS; o < _otherTo * FIELDS; o += FIELDS) {
+				if (Line2D.linesIntersect(m_segments[s], m_segments[s + 1],
+						m_segments[s + 2], m_segments[s + 3], m_segments[o],
+						m_segments[o + 1], m_segments[o + 2], m_segments[o + 3])) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Whether the footprints from _from up to _to and from _otherFrom up to
+	 * _otherTo touch, i.e. their segments cross or one is inside the other,
+	 * as when a robot ends a step right inside another or a large obstacle.
+	 */
+	boolean overlaps(int _from, int _to, int _otherFrom, int _otherTo) {
+		return intersects(_from, _to, _otherFrom, _otherTo)
+				|| contains(_otherFrom, _otherTo, _from)
+				|| contains(_from, _to, _otherFrom);
+	}
+
+	/**
+	 * Whether the start of segment _point is inside the outline made by the
+	 * segments from _from up to _to, counting how many of them a ray from the
+	 * point crosses. The outline should be closed, e.g. a robot's footprint.
+	 */
+	boolean contains(int _from, int _to, int _point) {
+		if (_from == _to) {
+			return false;
+		}
+		float x = m_segments[_point * FIELDS];
+		float y = m_segments[_point * FIELDS + 1];
+		boolean inside = false;
+		for (int s = _from * FIELDS; s < _to * FIELDS; s += FIELDS) {
+			float x1 = m_segments[s];
+			float y1 = m_segments[s + 1];
+			float x2 = m_segments[s + 2];
+			float y2 = m_segments[s + 3];
+			if ((y1 > y) != (y2 > y)
+					&& x < x1 + (y - y1) * (x2 - x1) / (y2 - y1)) {
+				inside = !inside;
+			}
+		}
+		return inside;
+	}
+}
@@ -0,0 +1,121 @@
+package rp.robotics.simulation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import lejos.geom.Line;
+import lejos.robotics.navigation.Pose;
+
+import org.junit.Test;
+
+public class WorldFootprintsTest {
+
+	@Test
+	public void testFootprintsAreTransformedAndPacked() {
+
+		Line[] body = { new Line(0.1f, 0, 0.1f, 0.2f) };
+		Line[] bumper = { new Line(0.2f, -0.1f, 0.2f, 0.1f),
+				new Line(0.2f, 0.1f, 0.1f, 0.1f) };
+
+		Pose[] poses = { new Pose(1, 1, 90), new Pose(2, 0, 0) };
+		List<List<Line[]>> touchSensors = Collections
+				.singletonList(Collections.singletonList(bumper));
+
+		WorldFootprints footprints = new WorldFootprints(1, 1, 1, poses,
+				new Line[][] { body, body }, touchSensors, 1,
+				new Rectangle2D.Float(0, 0, 3, 3));
+
+		assertEquals(1, footprints.getTick());
+		assertEquals(1, footprints.getRobotCount());
+		assertEquals(1, footprints.getObstacleCount());
+		assertEquals(4, footprints.getSegmentCount());
+
+		float[] segments = footprints.getSegments();
+
+		// the robot, turned to face up the y axis
+		assertEquals(0, footprints.getSegmentStart(0));
+		assertEquals(1, footprints.getSegmentStart(1));
+		assertEquals(1, segments[0], 1e-6);
+		assertEquals(1.1, segments[1], 1e-6);
+		assertEquals(0.8, segments[2], 1e-6);
+		assertEquals(1.1, segments[3], 1e-6);
+
+		// the obstacle, only moved
+		assertEquals(2.1, segments[4], 1e-6);
+		assertEquals(0.2, segments[7], 1e-6);
+
+		// the robot's touch sensor, at the robot's pose
+		assertEquals(1, footprints.getTouchSensorCount(0));
+		assertEquals(2, footprints.getTouchSegmentStart(0, 0));
+		assertEquals(4, footprints.getTouchSegmentEnd(0, 0));
+		assertEquals(1.1, segments[8], 1e-6);
+		assertEquals(1.2, segments[9], 1e-6);
+	}
+
+	@Test
+	public void testFootprintsWhichCrossAreFound() {
+
+		Line[] square = { new Line(-0.1f, -0.1f, 0.1f, -0.1f),
+				new Line(0.1f, -0.1f, 0.1f, 0.1f),
+				new Line(0.1f, 0.1f, -0.1f, 0.1f),
+				new Line(-0.1f, 0.1f, -0.1f, -0.1f) };
+
+		// two robots overlapping, and an obstacle well away from both
+		Pose[] poses = { new Pose(1, 1, 0), new Pose(1.15f, 1, 45),
+				new Pose(2, 2, 0) };
+		List<List<Line[]>> touchSensors = Collections.nCopies(2, null);
+
+		WorldFootprints footprints = new WorldFootprints(0, 0, 0, poses,
+				new Line[][] { square, square, square }, touchSensors, 2,
+				new Rectangle2D.Float(0, 0, 3, 3));
+
+		assertTrue(footprints.intersects(0, 4, 4, 8));
+		assertFalse(footprints.intersects(0, 4, 8, 12));
+		assertFalse(footprints.intersects(4, 8, 8, 12));
+
+		float[] box = new float[4];
+		footprints.getBounds(8, 12, box);
+		assertEquals(1.9, box[0], 1e-6);
+		assertEquals(1.9, box[1], 1e-6);
+		assertEquals(2.1, box[2], 1e-6);
+		assertEquals(2.1, box[3], 1e-6);
+
+		List<Integer> near = new ArrayList<>();
+		footprints.getBroadPhase().overlapping(box[0], box[1], box[2], box[3],
+				2, near::add);
+		assertEquals(Collections.emptyList(), near);
+	}
+
+	@Test
+	public void testFootprintsInsideOthersOverlap() {
+
+		Line[] square = { new Line(-0.1f, -0.1f, 0.1f, -0.1f),
+				new Line(0.1f, -0.1f, 0.1f, 0.1f),
+				new Line(0.1f, 0.1f, -0.1f, 0.1f),
+				new Line(-0.1f, 0.1f, -0.1f, -0.1f) };
+		Line[] large = { new Line(-1, -1, 1, -1), new Line(1, -1, 1, 1),
+				new Line(1, 1, -1, 1), new Line(-1, 1, -1, -1) };
+
+		// a robot inside an obstacle, and one outside it
+		Pose[] poses = { new Pose(1, 1, 0), new Pose(2.8f, 2.8f, 0),
+				new Pose(1.2f, 1.2f, 30) };
+		List<List<Line[]>> touchSensors = Collections.nCopies(2, null);
+
+		WorldFootprints footprints = new WorldFootprints(0, 0, 0, poses,
+				new Line[][] { square, square, large }, touchSensors, 2,
+				new Rectangle2D.Float(0, 0, 3, 3));
+
+		assertFalse(footprints.intersects(0, 4, 8, 12));
+		assertTrue(footprints.contains(8, 12, 0));
+		assertTrue(footprints.overlaps(0, 4, 8, 12));
+		assertTrue(footprints.overlaps(8, 12, 0, 4));
+		assertFalse(footprints.contains(8, 12, 4));
+		assertFalse(footprints.overlaps(4, 8, 8, 12));
+	}
+}
@@ -0,0 +1,198 @@
+package rp.robotics.simulation;
+
+import lejos.robotics.localization.PoseProvider;
+import lejos.robotics.navigation.Pose;
+
+/**
+ * A copy of the poses of the things in a simulation. The poses are captured by
+ * the simulation thread at the end of the {@link SimulationPhase#INTEGRATE}
+ * phase of each step into a new, immutable {@link Frame}, which is then
+ * published in one go. Readers (steppables in other phases, sensors called
+ * from controller threads, visualisations) therefore always see the poses of
+ * all registered things from the same step, without taking any locks, and
+ * never see a world in which only some things have moved. Readers which need
+ * the poses of several things should get them all from one frame, see
+ * {@link #getFrame()}, as the frame may be replaced between separate reads.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class WorldState {
+
+	// x, y and heading for each registered pose provider
+	private static final int FIELDS = 3;
+
+	/**
+	 * The poses of the registered things as of one step. Never changed once
+	 * published.
+	 */
+	public static final class Frame {
+
+		private final float[] m_poses;
+		private final int m_count;
+		private final long m_tick;
+		private final long m_version;
+
+		private Frame(float[] _poses, int _count, long _tick, long _version) {
+			m_poses = _poses;
+			m_count = _count;
+			m_tick = _tick;
+			m_version = _version;
+		}
+
+		/**
+		 * The step of the simulation the frame was captured in, or -1 if
+		 * nothing has been captured yet.
+		 *
+		 * @return
+		 */
+		public long getTick() {
+			return m_tick;
+		}
+
+		/**
+		 * See {@link WorldState#getVersion()}.
+		 *
+		 * @return
+		 */
+		public long getVersion() {
+			return m_version;
+		}
+
+		/**
+		 * The pose of a registered thing in this frame.
+		 *
+		 * @param _published
+		 *            A pose provider returned by
+		 *            {@link WorldState#register(PoseProvider)}.
+		 * @return The pose, or the thing's live pose if it was registered
+		 *         after this frame was captured.
+		 */
+		public Pose getPose(PoseProvider _published) {
+			PublishedPose published = (PublishedPose) _published;
+			if (published.m_index >= m_count) {
+				// not captured yet
+				return published.m_live.getPose();
+			}
+			int offset = published.m_index * FIELDS;
+			return new Pose(m_poses[offset], m_poses[offset + 1],
+					m_poses[offset + 2]);
+		}
+	}
+
+	private final Object m_registerLock = new Object();
+
+	// copy-on-write array of the things to capture
+	private volatile PoseProvider[] m_providers = new PoseProvider[0];
+
+	// the last frame published
+	private volatile Frame m_frame = new Frame(new float[0], 0, -1, 0);
+
+	/**
+	 * A view of a registered pose provider which returns the pose from the
+	 * published state.
+	 */
+	private class PublishedPose implements PoseProvider {
+
+		private final int m_index;
+		private final PoseProvider m_live;
+
+		public PublishedPose(int _index, PoseProvider _live) {
+			m_index = _index;
+			m_live = _live;
+		}
+
+		@Override
+		public Pose getPose() {
+			return m_frame.getPose(this);
+		}
+
+		/**
+		 * Sets the pose of the underlying pose provider. This will not be
+		 * visible via this view until the next time the state is published.
+		 */
+		@Override
+		public void setPose(Pose _pose) {
+			m_live.setPose(_pose);
+		}
+	}
+
+	/**
+	 * Add a pose provider to the state. The returned pose provider gives the
+	 * last published pose of the given one, or its live pose if it has not
+	 * been published yet.
+	 *
+	 * @param _poser
+	 * @return
+	 */
+	public PoseProvider register(PoseProvider _poser) {
+		synchronized (m_registerLock) {
+			PoseProvider[] providers = new PoseProvider[m_providers.length + 1];
+			System.arraycopy(m_providers, 0, providers, 0, m_providers.length);
+			providers[m_providers.length] = _poser;
+			m_providers = providers;
+			return new PublishedPose(providers.length - 1, _poser);
+		}
+	}
+
+	/**
+	 * The poses as of the last step published, all from the same step.
+	 *
+	 * @return
+	 */
+	public Frame getFrame() {
+		return m_frame;
+	}
+
+	/**
+	 * The step of the simulation the current state was captured in, or -1 if
+	 * it has not been captured yet.
+	 *
+	 * @return
+	 */
+	public long getTick() {
+		return m_frame.getTick();
+	}
+
+	/**
+	 * How many times the state has been published. Unlike the tick this
+	 * changes whenever the published poses may have, including when a
+	 * snapshot is restored, so it can be used to tell when something
+	 * calculated from the poses is out of date.
+	 *
+	 * @return
+	 */
+	public long getVersion() {
+		return m_frame.getVersion();
+	}
+
+	/**
+	 * Capture the poses of all registered things into a new frame and publish
+	 * it. Only called from the simulation thread.
+	 *
+	 * @param _tick
+	 */
+	void publish(long _tick) {
+
+		PoseProvider[] providers = m_providers;
+		Frame previous = m_frame;
+		float[] poses = new float[providers.length * FIELDS];
+
+		for (int i = 0; i < providers.length; i++) {
+			Pose pose = providers[i].getPose();
+			int offset = i * FIELDS;
+			if (pose != null) {
+				poses[offset] = pose.getX();
+				poses[offset + 1] = pose.getY();
+				poses[offset + 2] = pose.getHeading();
+			} else if (i < previous.m_count) {
+				// keep the last pose known
+				System.arraycopy(previous.m_poses, offset, poses, offset,
+						FIELDS);
+			}
+		}
+
+		m_frame = new Frame(poses, providers.length, _tick,
+				previous.m_version + 1);
+	}
+}
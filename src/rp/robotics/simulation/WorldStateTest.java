@@ -0,0 +1,58 @@
+package rp.robotics.simulation;
+
+import static org.junit.Assert.assertEquals;
+
+import lejos.robotics.localization.PoseProvider;
+import lejos.robotics.navigation.Pose;
+
+import org.junit.Test;
+
+public class WorldStateTest {
+
+	private static class FixedPose implements PoseProvider {
+		Pose pose;
+
+		FixedPose(float _x) {
+			pose = new Pose(_x, 0, 0);
+		}
+
+		@Override
+		public Pose getPose() {
+			return pose;
+		}
+
+		@Override
+		public void setPose(Pose _pose) {
+			pose = _pose;
+		}
+	}
+
+	@Test
+	public void testFramesDoNotChangeOnceHeld() {
+
+		WorldState state = new WorldState();
+		FixedPose a = new FixedPose(1);
+		FixedPose b = new FixedPose(2);
+		PoseProvider publishedA = state.register(a);
+		PoseProvider publishedB = state.register(b);
+
+		state.publish(1);
+		WorldState.Frame held = state.getFrame();
+
+		// enough publications to have reused a double buffer
+		for (int tick = 2; tick < 5; tick++) {
+			a.setPose(new Pose(tick * 10, 0, 0));
+			b.setPose(new Pose(tick * 10 + 1, 0, 0));
+			state.publish(tick);
+		}
+
+		assertEquals(1, held.getTick());
+		assertEquals(1, held.getPose(publishedA).getX(), 0);
+		assertEquals(2, held.getPose(publishedB).getX(), 0);
+
+		assertEquals(4, state.getTick());
+		assertEquals(4, state.getVersion());
+		assertEquals(40, publishedA.getPose().getX(), 0);
+		assertEquals(41, state.getFrame().getPose(publishedB).getX(), 0);
+	}
+}
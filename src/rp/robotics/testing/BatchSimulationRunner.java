@@ -0,0 +1,414 @@
+package rp.robotics.testing;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lejos.robotics.navigation.Pose;
+import rp.robotics.DifferentialDriveRobot;
+import rp.robotics.MobileRobotWrapper;
+import rp.robotics.simulation.MapBasedSimulation;
+import rp.robotics.simulation.SimulationCore;
+import rp.robotics.simulation.SimulationDelay;
+import rp.robotics.simulation.SimulationRecorder;
+import rp.robotics.simulation.SimulationReplay;
+import rp.robotics.simulation.SimulationScheduler;
+import rp.robotics.simulation.TickStatistics;
+import rp.systems.StoppableRunnable;
+
+/**
+ * Runs many {@link Scenario}s at once without any visualisation, e.g. for
+ * marking or regression runs. Every scenario gets its own simulation. By
+ * default these run in real time with the controllers in their own threads,
+ * which works for any controller. Controllers which only block by waiting on
+ * the simulation can instead be run cooperatively, in virtual time, so that
+ * scenarios go as fast as the processors allow (see
+ * {@link #setCooperativeControllers(boolean)}). The simulations share a
+ * single {@link SimulationScheduler} with one thread per processor to be
+ * used, and a limited number of scenarios are run at the same time so that
+ * the controllers' threads don't swamp the simulations. A scenario which is
+ * still running after a wall-clock limit is stopped and fails (see
+ * {@link #setWallClockLimit(Duration)}), so one stuck controller can't hold
+ * up a whole batch.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class BatchSimulationRunner {
+
+	/**
+	 * How long a scenario may run on the wall clock unless told otherwise.
+	 */
+	public static final Duration DEFAULT_WALL_CLOCK_LIMIT = Duration
+			.ofMinutes(10);
+
+	private final SimulationScheduler m_scheduler;
+	private final ExecutorService m_runners;
+	private final double m_rate;
+	private final ScheduledExecutorService m_watchdog;
+	private volatile boolean m_cooperativeControllers = false;
+	private volatile Duration m_wallClockLimit = DEFAULT_WALL_CLOCK_LIMIT;
+	private volatile Path m_recordingDirectory = null;
+
+	/**
+	 * Stands in for the controller when replaying a run, finishing when the
+	 * replay does so that tests which wait for the controller end with the
+	 * recorded run.
+	 */
+	private static class ReplayController implements StoppableRunnable {
+
+		private final CompletableFuture<Void> m_replay;
+		private volatile boolean m_running = true;
+
+		public ReplayController(CompletableFuture<Void> _replay) {
+			m_replay = _replay;
+		}
+
+		@Override
+		public void run() {
+			while (m_running && !m_replay.isDone()) {
+				SimulationDelay.msDelay(100);
+			}
+		}
+
+		@Override
+		public void stop() {
+			m_running = false;
+		}
+	}
+
+	/**
+	 * Create a runner which uses all the available processors.
+	 */
+	public BatchSimulationRunner() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Create a runner which steps the simulations with the given number of
+	 * threads and runs up to twice that many scenarios at a time.
+	 *
+	 * @param _threads
+	 */
+	public BatchSimulationRunner(int _threads) {
+		this(_threads, _threads * 2, SimulationCore.DEFAULT_RATE);
+	}
+
+	/**
+	 *
+	 * @param _threads
+	 *            The number of threads used to step the simulations.
+	 * @param _maxConcurrentRuns
+	 *            The most scenarios run at the same time. Each of these uses
+	 *            a thread for its test and one for its controller on top of
+	 *            the simulation threads.
+	 * @param _rate
+	 *            The number of steps per second of each simulation.
+	 */
+	public BatchSimulationRunner(int _threads, int _maxConcurrentRuns,
+			double _rate) {
+		if (_maxConcurrentRuns < 1) {
+			throw new IllegalArgumentException(
+					"Maximum concurrent runs must be >= 1");
+		}
+		m_scheduler = new SimulationScheduler(_threads);
+		m_rate = _rate;
+		AtomicInteger count = new AtomicInteger();
+		m_runners = Executors.newFixedThreadPool(_maxConcurrentRuns, r -> {
+			Thread thread = new Thread(r, "scenario-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		m_watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "scenario-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Set whether the controllers in scenarios run from now on run
+	 * cooperatively in their simulations (see
+	 * {@link SimulationCore#setCooperativeControllers(boolean)}) and in
+	 * virtual time. This makes results repeatable and lets far more
+	 * scenarios run at once, much faster, but only works for controllers
+	 * which block by waiting on the simulation, e.g. with
+	 * {@link SimulationDelay} rather than {@link Thread#sleep(long)} or
+	 * polling a motor. Anything else stops the simulation's clock, so the
+	 * scenario only ends at the wall-clock limit. This is off by default, in
+	 * which case scenarios run in real time, as free controllers can fall
+	 * arbitrarily far behind a simulation running in virtual time.
+	 *
+	 * @param _cooperative
+	 */
+	public void setCooperativeControllers(boolean _cooperative) {
+		m_cooperativeControllers = _cooperative;
+	}
+
+	/**
+	 * Set how long on the wall clock a scenario run from now on may take
+	 * before it is stopped and failed. The simulation is shut down, which
+	 * ends any test waiting on it, and the run's result is a failure whatever
+	 * the test made of it. A cooperative controller which never yields to the
+	 * simulation can't be stopped like this, but its scenario still fails
+	 * and its slot is freed for the next one.
+	 *
+	 * @param _limit
+	 */
+	public void setWallClockLimit(Duration _limit) {
+		m_wallClockLimit = _limit;
+	}
+
+	/**
+	 * Record every scenario run from now on to a {@link SimulationRecorder}
+	 * log in the given directory, named after the scenario, so that failed
+	 * runs can be inspected afterwards with
+	 * {@link #replay(Scenario, Path)}. Runs of scenarios with the same name
+	 * overwrite each other's logs.
+	 *
+	 * @param _directory
+	 *            The directory, or null to stop recording.
+	 */
+	public void setRecordingDirectory(Path _directory) {
+		m_recordingDirectory = _directory;
+	}
+
+	/**
+	 * The log a scenario is recorded to by
+	 * {@link #setRecordingDirectory(Path)}.
+	 *
+	 * @param _directory
+	 * @param _scenario
+	 * @return
+	 */
+	public static Path getRecording(Path _directory, Scenario _scenario) {
+		return _directory.resolve(_scenario.getName().replaceAll(
+				"[^A-Za-z0-9._-]", "_")
+				+ ".simlog");
+	}
+
+	/**
+	 * Start running the given scenario once a slot is free.
+	 *
+	 * @param _scenario
+	 * @return A future which completes with the result of the run. It never
+	 *         completes exceptionally, failures are part of the result.
+	 */
+	public CompletableFuture<ScenarioResult> submit(Scenario _scenario) {
+		return CompletableFuture.supplyAsync(() -> run(_scenario), m_runners);
+	}
+
+	/**
+	 * Run all the given scenarios and wait for them to finish.
+	 *
+	 * @param _scenarios
+	 * @return The results in the same order as the scenarios.
+	 */
+	public List<ScenarioResult> runAll(List<Scenario> _scenarios) {
+		List<CompletableFuture<ScenarioResult>> futures = new ArrayList<>(
+				_scenarios.size());
+		for (Scenario scenario : _scenarios) {
+			futures.add(submit(scenario));
+		}
+
+		List<ScenarioResult> results = new ArrayList<>(futures.size());
+		for (CompletableFuture<ScenarioResult> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (InterruptedException | ExecutionException e) {
+				System.err.println("caught in BatchSimulationRunner.runAll(): "
+						+ e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Run a single scenario in the calling thread.
+	 *
+	 * @param _scenario
+	 * @return
+	 */
+	public ScenarioResult run(Scenario _scenario) {
+		return run(_scenario, null);
+	}
+
+	/**
+	 * Replay a run of the given scenario from a log recorded by
+	 * {@link #setRecordingDirectory(Path)}, in the calling thread. The
+	 * scenario's test is run again against the recorded run, but its
+	 * controller isn't.
+	 *
+	 * @param _scenario
+	 * @param _log
+	 * @return
+	 */
+	public ScenarioResult replay(Scenario _scenario, Path _log) {
+		return run(_scenario, _log);
+	}
+
+	private ScenarioResult run(Scenario _scenario, Path _replay) {
+
+		long wallStart = System.nanoTime();
+		MapBasedSimulation sim = null;
+		MobileRobotWrapper<DifferentialDriveRobot> robot = null;
+		Instant simStart = null;
+		Throwable failure = null;
+		SimulationRecorder recorder = null;
+		Duration limit = m_wallClockLimit;
+		AtomicBoolean timedOut = new AtomicBoolean(false);
+		AtomicBoolean finished = new AtomicBoolean(false);
+		ScheduledFuture<?> watchdog = null;
+
+		try {
+			// free controllers only keep up with the simulation in real time
+			boolean cooperative = m_cooperativeControllers;
+			sim = new MapBasedSimulation(_scenario.getMap(), false,
+					cooperative, m_rate, m_scheduler);
+			if (_scenario.getSeed() != null) {
+				sim.setSeed(_scenario.getSeed());
+			}
+			SimulationCore core = sim.getSimulationCore();
+			core.setCooperativeControllers(cooperative);
+			simStart = core.getTime();
+
+			MapBasedSimulation watched = sim;
+			Thread runner = Thread.currentThread();
+			watchdog = m_watchdog.schedule(() -> {
+				// locked so that the runner is never interrupted once it
+				// has finished with the scenario
+				synchronized (finished) {
+					if (!finished.get()) {
+						timedOut.set(true);
+						watched.shutdown();
+						// in case the test is waiting on a step which
+						// never ends
+						runner.interrupt();
+					}
+				}
+			}, limit.toNanos(), TimeUnit.NANOSECONDS);
+
+			robot = sim.addRobot(_scenario.createRobot(core),
+					_scenario.getStart());
+
+			StoppableRunnable controller;
+			if (_replay != null) {
+				controller = new ReplayController(SimulationReplay.replay(sim,
+						_replay));
+			} else {
+				controller = _scenario.createController(sim, robot);
+				Path directory = m_recordingDirectory;
+				if (directory != null) {
+					recorder = new SimulationRecorder(sim, getRecording(
+							directory, _scenario));
+				}
+			}
+			RobotTest<?> test = _scenario.createTest(sim, robot, controller);
+
+			sim.start();
+			test.run();
+
+		} catch (Throwable t) {
+			// assertion errors from the test are the expected way to fail
+			failure = t;
+		} finally {
+			synchronized (finished) {
+				finished.set(true);
+			}
+			if (watchdog != null) {
+				watchdog.cancel(false);
+			}
+			if (sim != null) {
+				sim.shutdown();
+			}
+			if (recorder != null) {
+				try {
+					recorder.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		if (timedOut.get()) {
+			AssertionError timeout = new AssertionError(
+					"Scenario was stopped after the wall-clock limit of "
+							+ limit);
+			if (failure != null) {
+				timeout.initCause(failure);
+			}
+			failure = timeout;
+			// the watchdog may have interrupted this thread after the test
+			// finished waiting
+			Thread.interrupted();
+		}
+
+		Duration wallTime = Duration.ofNanos(System.nanoTime() - wallStart);
+		Duration simulatedTime = Duration.ZERO;
+		TickStatistics statistics = null;
+		Pose finalPose = null;
+		Long seed = null;
+
+		if (sim != null) {
+			SimulationCore core = sim.getSimulationCore();
+			simulatedTime = Duration.between(simStart, core.getTime());
+			statistics = core.getTickStatistics();
+			seed = core.getSeed();
+		}
+		if (robot != null) {
+			finalPose = robot.getRobot().getPose();
+		}
+
+		return new ScenarioResult(_scenario, failure, wallTime,
+				simulatedTime, statistics, finalPose, seed);
+	}
+
+	/**
+	 * Write one line per result followed by the number which passed.
+	 *
+	 * @param _results
+	 * @param _out
+	 */
+	public static void printSummary(List<ScenarioResult> _results,
+			PrintStream _out) {
+		int passed = 0;
+		for (ScenarioResult result : _results) {
+			_out.println(result);
+			if (result.isPassed()) {
+				passed++;
+			}
+		}
+		_out.println(String.format("%d of %d scenarios passed", passed,
+				_results.size()));
+	}
+
+	/**
+	 * Stop the runner's threads once the scenarios already submitted have
+	 * finished, waiting for them to do so.
+	 */
+	public void shutdown() {
+		m_runners.shutdown();
+		try {
+			m_runners.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		m_watchdog.shutdownNow();
+		m_scheduler.shutdown();
+	}
+}
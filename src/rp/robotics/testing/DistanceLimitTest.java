@@ -7,8 +7,9 @@ import java.time.Duration;
 import java.time.Instant;
 
 import rp.robotics.MobileRobot;
+import rp.robotics.simulation.EventDrivenSteppable;
 import rp.robotics.simulation.MapBasedSimulation;
-import rp.robotics.simulation.SimulationSteppable;
+import rp.robotics.simulation.SimulationPhase;
 import rp.systems.StoppableRunnable;
 
 /**
@@ -52,8 +53,8 @@ public abstract class DistanceLimitTest<C extends StoppableRunnable> extends
 
 		getSimulation().start();
 
-		Thread t = new Thread(m_controller);
-		Instant now = Instant.now();
+		Thread t = m_sim.getSimulationCore().startController(m_controller);
+		Instant now = m_sim.getSimulationCore().getTime();
 
 		Instant endAt = now.plus(m_timeout);
 		Instant startAfter = now.plus(m_startupTime);
@@ -61,12 +62,12 @@ public abstract class DistanceLimitTest<C extends StoppableRunnable> extends
 		assertTrue(startAfter.isBefore(endAt));
 
 		try {
-			t.start();
 			m_sim.getSimulationCore().addAndWaitSteppable(
-					new SimulationSteppable() {
+					new EventDrivenSteppable() {
 
 						boolean ended = false;
 						Instant lastGood;
+						boolean lastWithinRange = true;
 
 						@Override
 						public void step(Instant _now, Duration _stepInterval) {
@@ -85,7 +86,17 @@ public abstract class DistanceLimitTest<C extends StoppableRunnable> extends
 								} else if (lastGood != null
 										&& _now.isAfter(startAfter)) {
 
+									// if the simulation skipped past the
+									// start, count from the last step before
+									// it as a run which didn't skip would
+									Instant beforeStart = startAfter
+											.minus(_stepInterval);
+									if (lastGood.isBefore(beforeStart)) {
+										lastGood = beforeStart;
+									}
+
 									float reading = getDistance();
+									lastWithinRange = isWithinRange(reading);
 
 									// System.out.println(reading);
 
@@ -122,7 +133,25 @@ public abstract class DistanceLimitTest<C extends StoppableRunnable> extends
 								Duration _stepInterval) {
 							return m_failed || ended;
 						}
-					});
+
+						/**
+						 * Readings only change when something moves, so the
+						 * events are the start and end of checking, and the
+						 * robot running out of time outside the limit.
+						 */
+						@Override
+						public Instant getNextEventTime(Instant _now) {
+							if (!_now.isAfter(startAfter)) {
+								return startAfter;
+							} else if (lastWithinRange) {
+								return endAt;
+							} else {
+								Instant limit = lastGood
+										.plus(m_allowableOutsideLimit);
+								return limit.isBefore(endAt) ? limit : endAt;
+							}
+						}
+					}, SimulationPhase.CHECK);
 
 			if (m_failed) {
 				// System.out.println("Rethrowing error on failure.");
@@ -0,0 +1,206 @@
+package rp.robotics.testing;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+import lejos.robotics.navigation.Pose;
+import rp.config.WheeledRobotConfiguration;
+import rp.robotics.DifferentialDriveRobot;
+import rp.robotics.MobileRobotWrapper;
+import rp.robotics.mapping.LineMap;
+import rp.robotics.simulation.MapBasedSimulation;
+import rp.robotics.simulation.SimulatedRobots;
+import rp.robotics.simulation.SimulationCore;
+import rp.systems.StoppableRunnable;
+
+/**
+ * A description of a single test run for a {@link BatchSimulationRunner}: a
+ * map, a robot, where it starts, the controller to drive it and the test
+ * which decides whether the run passed. A fresh simulation, robot, controller
+ * and test are created from the scenario each time it is run, so the same
+ * scenario can be run many times, including at the same time.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class Scenario {
+
+	/**
+	 * Creates the controller under test for a robot in a simulation.
+	 */
+	@FunctionalInterface
+	public interface ControllerFactory {
+		StoppableRunnable createController(MapBasedSimulation _sim,
+				MobileRobotWrapper<DifferentialDriveRobot> _robot);
+	}
+
+	/**
+	 * Creates the test which runs the controller and decides whether it
+	 * passed. The test should throw an {@link AssertionError} on failure, as
+	 * the tests in this package do.
+	 */
+	@FunctionalInterface
+	public interface TestFactory {
+		RobotTest<?> createTest(MapBasedSimulation _sim,
+				MobileRobotWrapper<DifferentialDriveRobot> _robot,
+				StoppableRunnable _controller);
+	}
+
+	private final String m_name;
+	private final LineMap m_map;
+	private final Function<SimulationCore, WheeledRobotConfiguration> m_robot;
+	private final Pose m_start;
+	private final ControllerFactory m_controller;
+	private final TestFactory m_test;
+	private final Long m_seed;
+
+	/**
+	 *
+	 * @param _name
+	 *            Identifies the scenario in its results.
+	 * @param _map
+	 * @param _robot
+	 *            Creates the configuration of the robot for a simulation, as
+	 *            the robot's motors belong to the simulation.
+	 * @param _start
+	 *            The starting pose of the robot.
+	 * @param _controller
+	 * @param _test
+	 */
+	public Scenario(String _name, LineMap _map,
+			Function<SimulationCore, WheeledRobotConfiguration> _robot,
+			Pose _start, ControllerFactory _controller, TestFactory _test) {
+		this(_name, _map, _robot, _start, _controller, _test, null);
+	}
+
+	private Scenario(String _name, LineMap _map,
+			Function<SimulationCore, WheeledRobotConfiguration> _robot,
+			Pose _start, ControllerFactory _controller, TestFactory _test,
+			Long _seed) {
+		m_seed = _seed;
+		m_name = _name;
+		m_map = _map;
+		m_robot = _robot;
+		m_start = _start;
+		m_controller = _controller;
+		m_test = _test;
+	}
+
+	/**
+	 * The standard simulated robot, optionally with touch and range sensors.
+	 *
+	 * @param _touchSensor
+	 * @param _rangeSensor
+	 * @return
+	 */
+	public static Function<SimulationCore, WheeledRobotConfiguration> wheeledRobot(
+			boolean _touchSensor, boolean _rangeSensor) {
+		return sim -> SimulatedRobots.makeWheeledConfiguration(sim,
+				_touchSensor, _rangeSensor);
+	}
+
+	/**
+	 * A scenario which passes if the robot visits the zones in the given
+	 * sequence within the timeout. The robot has both sensors, as in
+	 * {@link rp.assignments.AbstractTestHarness}.
+	 *
+	 * @param _name
+	 * @param _map
+	 * @param _sequence
+	 * @param _timeoutMillis
+	 *            In simulated time.
+	 * @param _failIfOutOfSequence
+	 * @param _controller
+	 * @return
+	 */
+	public static Scenario zoneSequence(String _name, LineMap _map,
+			ZoneSequence _sequence, long _timeoutMillis,
+			boolean _failIfOutOfSequence, ControllerFactory _controller) {
+		return new Scenario(_name, _map, wheeledRobot(true, true),
+				_sequence.getStart(), _controller,
+				(sim, robot, controller) -> new ZoneSequenceTest<>(sim,
+						_sequence, controller, robot.getRobot(),
+						_timeoutMillis, _failIfOutOfSequence));
+	}
+
+	/**
+	 * A scenario which passes if the robot's range sensor keeps its readings
+	 * under the given limit until the timeout.
+	 *
+	 * @param _name
+	 * @param _map
+	 * @param _start
+	 * @param _limit
+	 * @param _timeout
+	 *            In simulated time.
+	 * @param _allowableOutsideLimit
+	 * @param _startupTime
+	 * @param _controller
+	 * @return
+	 */
+	public static Scenario rangeLimit(String _name, LineMap _map, Pose _start,
+			float _limit, Duration _timeout, Duration _allowableOutsideLimit,
+			Duration _startupTime, ControllerFactory _controller) {
+		return new Scenario(_name, _map, wheeledRobot(false, true), _start,
+				_controller, (sim, robot, controller) -> new RangeLimitTest<>(
+						sim, sim.getRanger(robot), _limit, controller,
+						robot.getRobot(), _timeout, _allowableOutsideLimit,
+						_startupTime));
+	}
+
+	/**
+	 * A copy of this scenario which always runs with the given seed (see
+	 * {@link MapBasedSimulation#setSeed(long)}), e.g. to repeat a run using
+	 * the seed from its {@link ScenarioResult}. Controllers and noise models
+	 * must take their randomness from {@link MapBasedSimulation#createRandom()}
+	 * for this to repeat their choices.
+	 *
+	 * @param _seed
+	 * @return
+	 */
+	public Scenario withSeed(long _seed) {
+		return new Scenario(m_name, m_map, m_robot, m_start, m_controller,
+				m_test, _seed);
+	}
+
+	/**
+	 * The seed the scenario runs with, or null if each run gets its own.
+	 *
+	 * @return
+	 */
+	public Long getSeed() {
+		return m_seed;
+	}
+
+	public String getName() {
+		return m_name;
+	}
+
+	public LineMap getMap() {
+		return m_map;
+	}
+
+	public Pose getStart() {
+		return m_start;
+	}
+
+	WheeledRobotConfiguration createRobot(SimulationCore _sim) {
+		return m_robot.apply(_sim);
+	}
+
+	StoppableRunnable createController(MapBasedSimulation _sim,
+			MobileRobotWrapper<DifferentialDriveRobot> _robot) {
+		return m_controller.createController(_sim, _robot);
+	}
+
+	RobotTest<?> createTest(MapBasedSimulation _sim,
+			MobileRobotWrapper<DifferentialDriveRobot> _robot,
+			StoppableRunnable _controller) {
+		return m_test.createTest(_sim, _robot, _controller);
+	}
+
+	@Override
+	public String toString() {
+		return m_name;
+	}
+}
@@ -0,0 +1,111 @@
+package rp.robotics.testing;
+
+import java.time.Duration;
+
+import lejos.robotics.navigation.Pose;
+import rp.robotics.simulation.TickStatistics;
+
+/**
+ * The outcome of running a single {@link Scenario}.
+ *
+ * @author Nick Hawes
+ *
+ */
+public class ScenarioResult {
+
+	private final Scenario m_scenario;
+	private final Throwable m_failure;
+	private final Duration m_wallTime;
+	private final Duration m_simulatedTime;
+	private final TickStatistics m_tickStatistics;
+	private final Pose m_finalPose;
+	private final Long m_seed;
+
+	public ScenarioResult(Scenario _scenario, Throwable _failure,
+			Duration _wallTime, Duration _simulatedTime,
+			TickStatistics _tickStatistics, Pose _finalPose, Long _seed) {
+		m_seed = _seed;
+		m_scenario = _scenario;
+		m_failure = _failure;
+		m_wallTime = _wallTime;
+		m_simulatedTime = _simulatedTime;
+		m_tickStatistics = _tickStatistics;
+		m_finalPose = _finalPose;
+	}
+
+	public Scenario getScenario() {
+		return m_scenario;
+	}
+
+	public boolean isPassed() {
+		return m_failure == null;
+	}
+
+	/**
+	 * Why the scenario failed, either the assertion made by its test or
+	 * whatever went wrong setting it up, or null if it passed.
+	 *
+	 * @return
+	 */
+	public Throwable getFailure() {
+		return m_failure;
+	}
+
+	/**
+	 * How long the run took on the wall clock, including setting up.
+	 *
+	 * @return
+	 */
+	public Duration getWallTime() {
+		return m_wallTime;
+	}
+
+	/**
+	 * How much time passed in the simulation during the run.
+	 *
+	 * @return
+	 */
+	public Duration getSimulatedTime() {
+		return m_simulatedTime;
+	}
+
+	/**
+	 * How the simulation ran, or null if the run failed before the simulation
+	 * was created.
+	 *
+	 * @return
+	 */
+	public TickStatistics getTickStatistics() {
+		return m_tickStatistics;
+	}
+
+	/**
+	 * The pose of the robot at the end of the run, or null if the run failed
+	 * before the robot was created.
+	 *
+	 * @return
+	 */
+	public Pose getFinalPose() {
+		return m_finalPose;
+	}
+
+	/**
+	 * The seed the simulation ran with, which can be given to
+	 * {@link Scenario#withSeed(long)} to repeat the run, or null if the run
+	 * failed before the simulation was created.
+	 *
+	 * @return
+	 */
+	public Long getSeed() {
+		return m_seed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %s in %.3fs (%.3fs simulated, seed %d)%s",
+				m_scenario.getName(), isPassed() ? "passed" : "FAILED",
+				m_wallTime.toNanos() / 1e9,
+				m_simulatedTime.toNanos() / 1e9, m_seed,
+				isPassed() ? "" : ", " + m_failure);
+	}
+}
@@ -11,11 +11,13 @@ import java.time.Instant;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import lejos.robotics.navigation.Pose;
 import rp.robotics.MobileRobot;
+import rp.robotics.simulation.EventDrivenSteppable;
 import rp.robotics.simulation.MapBasedSimulation;
-import rp.robotics.simulation.SimulationSteppable;
+import rp.robotics.simulation.SimulationPhase;
 import rp.robotics.testing.TargetZone.Status;
 import rp.systems.StoppableRunnable;
 
@@ -55,15 +57,23 @@ public class ZoneSequenceTest<C extends StoppableRunnable> extends RobotTest<C>
 
 		assertThat(m_poser.getPose(), is(m_sequence.getStart()));
 
-		
-		Thread t = new Thread(m_controller);
-		Instant timeoutAt = Instant.now().plus(m_timeout);
+		// the simulation is woken when a controller finishes, after this is
+		// set, so the monitor sees it even if the simulation was idle
+		AtomicBoolean finished = new AtomicBoolean(false);
+		Thread t = m_sim.getSimulationCore().startController(() -> {
+			try {
+				m_controller.run();
+			} finally {
+				finished.set(true);
+			}
+		});
+		Instant timeoutAt = m_sim.getSimulationCore().getTime()
+				.plus(m_timeout);
 
 		zones.peek().setStatus(Status.LIVE);
 		try {
-			t.start();
 			m_sim.getSimulationCore().addAndWaitSteppable(
-					new SimulationSteppable() {
+					new EventDrivenSteppable() {
 
 						boolean failed = false;
 
@@ -98,9 +108,19 @@ public class ZoneSequenceTest<C extends StoppableRunnable> extends RobotTest<C>
 						@Override
 						public boolean remove(Instant _now,
 								Duration _stepInterval) {
-							return !t.isAlive() || failed || zones.size() == 0;
+							return finished.get() || failed || zones.size() == 0;
+						}
+
+						/**
+						 * The robot can only reach a zone by moving, so the
+						 * only event is the timeout. The controller finishing
+						 * wakes the simulation itself.
+						 */
+						@Override
+						public Instant getNextEventTime(Instant _now) {
+							return timeoutAt;
 						}
-					});
+					}, SimulationPhase.CHECK);
 
 			if (zones.size() > 0) {
 				fail(String.format("Test finished with %d zones unvisited.",
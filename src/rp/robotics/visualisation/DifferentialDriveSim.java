@@ -56,7 +56,7 @@ public class DifferentialDriveSim {
 		// It is important to note that this controller could also be used with
 		// a real robot provided you have a configuration object to describe it.
 		RandomWalkController controller = new RandomWalkController(
-				wrapper.getRobot());
+				wrapper.getRobot(), sim.createRandom());
 
 		// This call attaches the event listener implemented by the controller
 		// to the touch sensor on the simulated robot
@@ -81,9 +81,9 @@ public class DifferentialDriveSim {
 		// Add the visualisation to a JFrame to display it
 		displayVisualisation(viz);
 
-		// Start the controller running in a new thread
-		Thread controllerThread = new Thread(controller);
-		controllerThread.start();
+		// Start the controller running in a new thread, following the
+		// simulation's clock
+		sim.getSimulationCore().startController(controller);
 
 	}
 
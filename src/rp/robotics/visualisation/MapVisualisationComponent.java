@@ -24,11 +24,11 @@ import rp.config.RangeScannerDescription;
 import rp.geom.GeometryUtils;
 import rp.robotics.LocalisedRangeScanner;
 import rp.robotics.MobileRobot;
-import rp.robotics.MobileRobotWrapper;
 import rp.robotics.mapping.LineMap;
 import rp.robotics.mapping.MapUtils;
 import rp.robotics.simulation.DynamicObstacle;
 import rp.robotics.simulation.MapBasedSimulation;
+import rp.robotics.simulation.WorldFootprints;
 
 /**
  * 
@@ -78,6 +78,12 @@ public class MapVisualisationComponent extends JComponent {
 	private ArrayList<DynamicObstacle> m_obstacles = new ArrayList<>(1);
 	private ArrayList<LocalisedRangeScanner> m_rangers = new ArrayList<>(1);
 
+	// the simulation whose robots and obstacles are shown, if any, and its
+	// rangers, which are shown with the readings they last took
+	private MapBasedSimulation m_simulation;
+	private ArrayList<LocalisedRangeScanner> m_simulatedRangers = new ArrayList<>(
+			1);
+
 	private boolean m_trackRobots = true;
 
 	private ArrayList<Point> m_robotTracks = new ArrayList<Point>();
@@ -256,8 +262,20 @@ public class MapVisualisationComponent extends JComponent {
 			renderRobot(g2, r);
 		}
 
+		if (m_simulation != null) {
+			renderSimulation(g2);
+		}
+
 		for (LocalisedRangeScanner ranger : m_rangers) {
-			renderRanger(g2, ranger);
+			renderRanger(g2, ranger, ranger.getRangeValues());
+		}
+
+		for (LocalisedRangeScanner ranger : m_simulatedRangers) {
+			// taking readings here would cast rays from the Swing thread
+			RangeReadings readings = m_simulation.getLastReadings(ranger);
+			if (readings != null) {
+				renderRanger(g2, ranger, readings);
+			}
 		}
 
 		for (PoseProvider pp : m_poseProviders) {
@@ -274,15 +292,14 @@ public class MapVisualisationComponent extends JComponent {
 
 	}
 
-	private void renderRanger(Graphics2D _g2, LocalisedRangeScanner _ranger) {
+	private void renderRanger(Graphics2D _g2, LocalisedRangeScanner _ranger,
+			RangeReadings _readings) {
 
 		// System.out.println("renderRAnger");
 
 		Pose sensorPose = _ranger.getPose();
 
-		RangeReadings readings = _ranger.getRangeValues();
-
-		for (RangeReading reading : readings) {
+		for (RangeReading reading : _readings) {
 
 			float range = reading.getRange();
 
@@ -331,6 +348,32 @@ public class MapVisualisationComponent extends JComponent {
 
 	}
 
+	/**
+	 * Render the robots, obstacles and touch sensors of the simulation using
+	 * the footprints it has already transformed for the current step.
+	 * 
+	 * @param _g2
+	 */
+	private void renderSimulation(Graphics2D _g2) {
+		_g2.setStroke(new BasicStroke(2));
+		_g2.setPaint(Color.BLACK);
+
+		WorldFootprints footprints = m_simulation.getWorldFootprints();
+		float[] segments = footprints.getSegments();
+		for (int s = 0; s < footprints.getSegmentCount() * 4; s += 4) {
+			_g2.drawLine((int) scale(segments[s]) + X_MARGIN,
+					(int) scale(flipY(segments[s + 1])) + X_MARGIN,
+					(int) scale(segments[s + 2]) + X_MARGIN,
+					(int) scale(flipY(segments[s + 3])) + X_MARGIN);
+		}
+
+		if (m_trackRobots) {
+			for (int r = 0; r < footprints.getRobotCount(); r++) {
+				m_robotTracks.add(footprints.getPose(r).getLocation());
+			}
+		}
+	}
+
 	private void renderRelative(Line[] _lines, Pose _pose, Graphics2D _g2) {
 
 		for (Line l : _lines) {
@@ -508,19 +551,12 @@ public class MapVisualisationComponent extends JComponent {
 	public static void populateVisualisation(MapVisualisationComponent _viz,
 			MapBasedSimulation _sim) {
 		
-		for (MobileRobotWrapper<?> wrapper : _sim.getRobots()) {
-			_viz.addRobot(wrapper.getRobot());
-		}
-
-		if (_sim.getObstacles() != null) {
-			for (DynamicObstacle obstacle : _sim.getObstacles()) {
-				_viz.addObstacle(obstacle);
-			}
-		}
+		// robots and obstacles are drawn from the simulation's footprints
+		_viz.m_simulation = _sim;
 
 		if (_sim.getRangers() != null) {
 			for (LocalisedRangeScanner ranger : _sim.getRangers()) {
-				_viz.addRangeScanner(ranger);
+				_viz.m_simulatedRangers.add(ranger);
 			}
 		}
 